@@ -0,0 +1,1195 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * BTreeFile is a DbFile that keeps its tuples sorted by one key field in a
+ * B+ tree, so that equality and range predicates on the key read only the
+ * pages on the path to the first matching tuple and the leaves holding the
+ * matches.
+ * <p>
+ * Page 0 of the file is a {@link BTreeRootPtrPage} pointing to the root and
+ * to the first {@link BTreeHeaderPage}; the tree itself consists of
+ * {@link BTreeInternalPage}s and {@link BTreeLeafPage}s, the leaves linked
+ * to their siblings.  Keys may repeat.  Inserts split full pages, and
+ * deletes rebalance pages that become less than half full, merging them
+ * with a sibling when both fit in one page; the pages freed that way are
+ * noted in the header pages and used again by later splits.
+ * <p>
+ * All pages are read through the BufferPool, and only leaves are locked:
+ * readers take shared locks on the leaves they read, writers exclusive
+ * locks on the leaves they change.  The root pointer, internal and header
+ * pages are only latched, from the root pointer down, and unless an
+ * operation may change the structure of the tree, it lets go of each page
+ * once it has latched the next.  An insert or delete first changes just
+ * its leaf; if the leaf has to be split or rebalanced, the operation
+ * starts over holding the write latches of the root pointer and of its
+ * whole path, so that such changes are made one at a time.  Nobody waits
+ * for a lock while holding latches: an operation that finds its leaf
+ * locked lets go of its pages, waits, and starts over.
+ * <p>
+ * Each operation is logged as it is done, in one INDEX record holding the
+ * entry and the pages it changed, or just the slot of the entry if it only
+ * changed a leaf whose image was logged since the leaf was last written;
+ * see {@link LogFile}.  Since other writers may have changed the same
+ * pages meanwhile, an abort undoes the writer's changes entry by entry;
+ * see {@link #undo}.
+ * <p>
+ * A BTreeFile can hold a table of its own, or serve as a secondary index of
+ * another table, holding one tuple of the key and the record id for each
+ * tuple of it; see {@link #indexTupleDesc} and {@link Catalog#addIndex}.
+ *
+ * @see BufferPool
+ */
+public class BTreeFile implements IndexFile {
+
+    private static final long serialVersionUID = 1L;
+
+    private final File f;
+    private final TupleDesc td;
+    private final int keyField;
+    private final int pageSize;
+    private transient FileChannel channel;
+
+    /**
+     * Constructs a B+ tree file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this file
+     * @param keyField the field the tuples are sorted by
+     * @param td the tuple descriptor of the tuples in the file
+     */
+    public BTreeFile(File f, int keyField, TupleDesc td) {
+        this(f, keyField, td, BufferPool.PAGE_SIZE);
+    }
+
+    /**
+     * Constructs a B+ tree file whose pages are pageSize bytes long.
+     *
+     * @param pageSize the page size of the file; see
+     *            {@link BufferPool#checkPageSize}
+     */
+    public BTreeFile(File f, int keyField, TupleDesc td, int pageSize) {
+        if (keyField < 0 || keyField >= td.numFields())
+            throw new IllegalArgumentException("invalid key field " + keyField);
+        this.f = f;
+        this.keyField = keyField;
+        this.td = td;
+        this.pageSize = BufferPool.checkPageSize(pageSize);
+    }
+
+    /**
+     * @return the tuple descriptor of a secondary index on a field of type
+     *   keyType: the key followed by the page number and slot of the
+     *   indexed record
+     */
+    public static TupleDesc indexTupleDesc(Type keyType) {
+        return new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "key", "page", "slot" });
+    }
+
+    /**
+     * @return the page size of the indexes of table: that of its pages, so
+     *   that an index and its table are cached alike
+     */
+    static int indexPageSize(DbFile table) {
+        return table instanceof HeapFile ? ((HeapFile)table).getPageSize() : BufferPool.PAGE_SIZE;
+    }
+
+    /**
+     * Build a secondary index of field of table tableId in the file f,
+     * replacing whatever f held, and add it to the catalog under name.
+     * Other transactions only see the index once tid commits; if tid
+     * aborts, the index is removed from the catalog and f is deleted.
+     * The table is locked against writers until tid ends.  The entries are
+     * sorted and loaded into the tree a page at a time; see {@link #load}.
+     *
+     * @return the catalog entry of the index
+     */
+    public static Catalog.Index createIndex(TransactionId tid, String name, int tableId,
+            int field, File f) throws DbException, IOException, TransactionAbortedException {
+        Catalog catalog = Database.getCatalog();
+        DbFile table = catalog.getDbFile(tableId);
+        Database.getBufferPool().lockTable(tid, tableId, Permissions.READ_ONLY);
+        if (f.exists() && !f.delete())
+            throw new IOException("could not replace " + f);
+        BTreeFile tree = new BTreeFile(f, 0, indexTupleDesc(table.getTupleDesc().getFieldType(field)),
+                indexPageSize(table));
+        Catalog.Index index = catalog.addIndex(tree, name, tableId, field, tid);
+
+        ArrayList<Tuple> entries = new ArrayList<Tuple>();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            entries.add(index.entry(it.next()));
+        it.close();
+        // stable, so equal keys stay in record order
+        Collections.sort(entries, new Comparator<Tuple>() {
+            public int compare(Tuple a, Tuple b) {
+                return BTreeFile.compare(a.getField(0), b.getField(0));
+            }
+        });
+        tree.load(tid, entries);
+        return index;
+    }
+
+    /**
+     * Fill this empty tree with entries, sorted by key, bottom up: the
+     * leaves are filled evenly, left to right, then each level of internal
+     * pages above them, until one page is left, which becomes the root.
+     * Each page is logged in one INDEX record once it is built, instead
+     * of one record for each entry.
+     */
+    private void load(TransactionId tid, List<Tuple> entries)
+            throws DbException, IOException, TransactionAbortedException {
+        if (entries.isEmpty())
+            return;
+        int leaves = pagesFor(entries.size(), BTreeLeafPage.maxTuples(pageSize, td));
+        int first = appendPages(leaves);
+        // the page numbers of the pages of a level, and their lowest keys
+        ArrayList<Integer> level = new ArrayList<Integer>(leaves);
+        ArrayList<Field> lows = new ArrayList<Field>(leaves);
+        int from = 0;
+        for (int i = 0; i < leaves; i++) {
+            int to = (int)((long)entries.size() * (i + 1) / leaves);
+            BTreePageId pid = new BTreePageId(getId(), first + i, BTreePageId.LEAF);
+            Database.getBufferPool().lockPage(tid, pid, Permissions.READ_WRITE, true);
+            Latches ch = new Latches(tid, true, false);
+            try {
+                BTreeLeafPage leaf = (BTreeLeafPage)ch.write(pid);
+                for (Tuple e : entries.subList(from, to))
+                    leaf.tuples.add(copy(e));
+                leaf.left = i > 0 ? first + i - 1 : 0;
+                leaf.right = i < leaves - 1 ? first + i + 1 : 0;
+            } finally {
+                ch.done(LogFile.PAGE_LOADED, null);
+            }
+            level.add(first + i);
+            lows.add(entries.get(from).getField(keyField));
+            from = to;
+        }
+
+        int category = BTreePageId.LEAF;
+        int fanout = BTreeInternalPage.maxKeys(pageSize, td.getFieldType(keyField)) + 1;
+        while (level.size() > 1) {
+            int pages = pagesFor(level.size(), fanout);
+            first = appendPages(pages);
+            ArrayList<Integer> parents = new ArrayList<Integer>(pages);
+            ArrayList<Field> parentLows = new ArrayList<Field>(pages);
+            from = 0;
+            for (int i = 0; i < pages; i++) {
+                int to = (int)((long)level.size() * (i + 1) / pages);
+                Latches ch = new Latches(tid, true, false);
+                try {
+                    // internal pages of a new file need no lock: nobody else uses them
+                    BTreeInternalPage page = (BTreeInternalPage)ch.write(
+                            new BTreePageId(getId(), first + i, BTreePageId.INTERNAL));
+                    page.childCategory = category;
+                    page.children.addAll(level.subList(from, to));
+                    page.keys.addAll(lows.subList(from + 1, to));
+                } finally {
+                    ch.done(LogFile.PAGE_LOADED, null);
+                }
+                parents.add(first + i);
+                parentLows.add(lows.get(from));
+                from = to;
+            }
+            level = parents;
+            lows = parentLows;
+            category = BTreePageId.INTERNAL;
+        }
+
+        Latches ch = new Latches(tid, true, false);
+        try {
+            ((BTreeRootPtrPage)ch.write(rootPtrId())).setRootId(
+                    new BTreePageId(getId(), level.get(0), category));
+        } finally {
+            ch.done(LogFile.PAGE_LOADED, null);
+        }
+    }
+
+    /** @return the number of pages n items fill, at most perPage on each */
+    private static int pagesFor(int n, int perPage) {
+        return (n + perPage - 1) / perPage;
+    }
+
+    /** Returns the File backing this BTreeFile on disk. */
+    public File getFile() {
+        return f;
+    }
+
+    /** @return the index of the field the tuples are sorted by */
+    public int keyField() {
+        return keyField;
+    }
+
+    /** @return the size in bytes of the pages of this file */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this BTreeFile: the hash code of
+     * the absolute file name, like a HeapFile's.
+     */
+    public int getId() {
+        return f.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    private synchronized FileChannel getChannel() throws IOException {
+        if (channel == null || !channel.isOpen())
+            channel = new RandomAccessFile(f, "rw").getChannel();
+        return channel;
+    }
+
+    /** @return the number of pages in this file, including page 0 */
+    public int numPages() {
+        return (int)(f.length() / pageSize);
+    }
+
+    /** A tree answers equality and range predicates on its key. */
+    public boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.LIKE && op != Predicate.Op.NOT_EQUALS;
+    }
+
+    /**
+     * @return an estimate of the number of levels of the tree, from the
+     *   size of the file, for costing lookups without reading any page
+     */
+    public int estimateProbePages() {
+        int fanout = Math.max(2, (pageSize - 12) / (td.getFieldType(keyField).getLen() + 4));
+        int pages = Math.max(1, numPages() - 1);
+        return 1 + (int)Math.ceil(Math.log(pages) / Math.log(fanout));
+    }
+
+    /** Parse a page of the category pid names from data. */
+    static BTreePage createPage(BTreePageId pid, byte[] data) throws IOException {
+        switch (pid.pgcateg()) {
+        case BTreePageId.ROOT_PTR:
+            return new BTreeRootPtrPage(pid, data);
+        case BTreePageId.INTERNAL:
+            return new BTreeInternalPage(pid, data);
+        case BTreePageId.LEAF:
+            return new BTreeLeafPage(pid, data);
+        case BTreePageId.HEADER:
+            return new BTreeHeaderPage(pid, data);
+        default:
+            throw new IllegalArgumentException("unknown page category " + pid.pgcateg());
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pageNum = pid.pageNumber();
+        // page 0 of a new file is an empty root pointer page
+        if (pageNum < 0 || (pageNum >= numPages() && pageNum != 0))
+            throw new IllegalArgumentException("page " + pageNum + " does not exist in this file");
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(pageSize);
+            long offset = (long)pageNum * pageSize;
+            FileChannel ch = getChannel();
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, offset + buf.position()) < 0) break;
+            }
+            return createPage((BTreePageId)pid, buf.array());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        writeBytes(page.getId().pageNumber(), page.getPageData());
+    }
+
+    private void writeBytes(int pageNum, byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        long offset = (long)pageNum * pageSize;
+        FileChannel ch = getChannel();
+        while (buf.hasRemaining())
+            ch.write(buf, offset + buf.position());
+    }
+
+    private BTreePageId rootPtrId() {
+        return new BTreePageId(getId(), 0, BTreePageId.ROOT_PTR);
+    }
+
+    /**
+     * The pages one operation on the tree holds, each pinned and then
+     * latched, and those of them it changed.
+     */
+    private class Latches {
+        final TransactionId tid;
+        /** whether the operation may change the structure of the tree, and so write-latches every page */
+        final boolean exclusive;
+        /** whether the operation undoes a change of tid, which holds the locks it needs already */
+        final boolean undo;
+        final HashMap<PageId, BTreePage> pages = new HashMap<PageId, BTreePage>();
+        final HashMap<PageId, Permissions> modes = new HashMap<PageId, Permissions>();
+        final LinkedHashMap<PageId, BTreePage> written = new LinkedHashMap<PageId, BTreePage>();
+        /** leaves whose left pointer is set once the operation is done */
+        final LinkedHashMap<BTreePageId, Integer> links = new LinkedHashMap<BTreePageId, Integer>();
+        /** the leaf whose lock the operation has to wait for before it starts over */
+        BTreePageId blocked;
+        Permissions blockedPerm;
+        /** the leaf the entry was added to or removed from, and its slot there, for logging just that */
+        BTreeLeafPage entryLeaf;
+        int entrySlot;
+        boolean entryAdded;
+
+        Latches(TransactionId tid, boolean exclusive, boolean undo) {
+            this.tid = tid;
+            this.exclusive = exclusive;
+            this.undo = undo;
+        }
+
+        /** @return pid, latched for reading, or for writing if the operation is exclusive */
+        BTreePage read(BTreePageId pid) throws DbException, TransactionAbortedException {
+            return latch(pid, exclusive ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+        }
+
+        /** @return pid, latched for changing it */
+        BTreePage write(BTreePageId pid) throws DbException, TransactionAbortedException {
+            BTreePage page = latch(pid, Permissions.READ_WRITE);
+            written.put(pid, page);
+            return page;
+        }
+
+        /**
+         * A page latched for reading is let go of and latched again for
+         * writing, so only pages that nobody else can change meanwhile may
+         * be latched for reading first.
+         */
+        private BTreePage latch(BTreePageId pid, Permissions perm)
+                throws DbException, TransactionAbortedException {
+            BufferPool bp = Database.getBufferPool();
+            Permissions held = modes.get(pid);
+            if (held == null) {
+                pages.put(pid, (BTreePage)bp.pinPage(null, pid, perm));
+                bp.latchPage(pid, perm);
+                modes.put(pid, perm);
+            } else if (held != perm && perm == Permissions.READ_WRITE) {
+                bp.unlatchPage(pid, held);
+                bp.latchPage(pid, perm);
+                modes.put(pid, perm);
+            }
+            return pages.get(pid);
+        }
+
+        /** Let go of pid, unless the operation changed it. */
+        void release(BTreePageId pid) {
+            Permissions perm = modes.get(pid);
+            if (perm == null || written.containsKey(pid))
+                return;
+            BufferPool bp = Database.getBufferPool();
+            bp.unlatchPage(pid, perm);
+            bp.unpinPage(pid);
+            modes.remove(pid);
+            pages.remove(pid);
+        }
+
+        /** Let go of every page but pid. */
+        void keepOnly(BTreePageId pid) {
+            for (PageId other : new ArrayList<PageId>(modes.keySet())) {
+                if (!other.equals(pid))
+                    release((BTreePageId)other);
+            }
+        }
+
+        /**
+         * Lock pid for tid, or if another transaction holds it, note that
+         * the operation has to wait for it and start over.
+         *
+         * @return false if the operation has to start over
+         */
+        boolean lock(BTreePageId pid, Permissions perm) throws DbException, TransactionAbortedException {
+            if (tryLock(pid, perm))
+                return true;
+            blocked = pid;
+            blockedPerm = perm;
+            return false;
+        }
+
+        /** @return true if tid holds the lock on pid, without waiting for it */
+        boolean tryLock(BTreePageId pid, Permissions perm) throws DbException, TransactionAbortedException {
+            return undo || Database.getBufferPool().lockPage(tid, pid, perm, false);
+        }
+
+        /**
+         * Wait for the lock the operation could not get.  The caller holds
+         * no latches.
+         */
+        void waitForLock() throws DbException, TransactionAbortedException {
+            Database.getBufferPool().lockPage(tid, blocked, blockedPerm, true);
+        }
+
+        /**
+         * Set the left pointer of leaf pid to left once the operation is
+         * done.  The leaf may be locked by another transaction, so it is
+         * not latched until the operation pins no more pages.
+         */
+        void link(BTreePageId pid, int left) {
+            links.put(pid, left);
+        }
+
+        /** Note that the entry was added to leaf at slot, or removed from it. */
+        void changed(BTreeLeafPage leaf, int slot, boolean added) {
+            entryLeaf = leaf;
+            entrySlot = slot;
+            entryAdded = added;
+        }
+
+        /**
+         * Finish the operation: set the left pointers, log the changed
+         * pages with entry in one INDEX record of the given kind, if tid
+         * is running, mark them dirty and let go of every page.  If the
+         * operation only changed the entry's leaf, and the leaf has been
+         * logged since it was last written, the record holds the slot of
+         * the entry instead of the image of the leaf.
+         */
+        void done(int kind, Tuple entry) throws DbException, IOException, TransactionAbortedException {
+            BufferPool bp = Database.getBufferPool();
+            try {
+                // a committing transaction holds the pool's monitor while
+                // it waits for the latches of its leaves, and pinning may
+                // need the monitor: so all are pinned before any is latched
+                ArrayList<BTreePageId> pinned = new ArrayList<BTreePageId>();
+                for (BTreePageId pid : links.keySet()) {
+                    if (!modes.containsKey(pid)) {
+                        pages.put(pid, (BTreePage)bp.pinPage(null, pid, Permissions.READ_WRITE));
+                        pinned.add(pid);
+                    }
+                }
+                for (BTreePageId pid : pinned) {
+                    bp.latchPage(pid, Permissions.READ_WRITE);
+                    modes.put(pid, Permissions.READ_WRITE);
+                }
+                for (Map.Entry<BTreePageId, Integer> e : links.entrySet())
+                    ((BTreeLeafPage)write(e.getKey())).left = e.getValue();
+
+                if (written.isEmpty())
+                    return;
+                LogFile log = Database.getLogFile();
+                boolean logged = tid != null && log.isRunning(tid);
+                int slot = entryLeaf != null && written.size() == 1 && entryLeaf.getRecLsn() != 0
+                    ? entrySlot : -1;
+                long from = log.endLsn();
+                for (BTreePage page : written.values()) {
+                    page.markDirty(true, tid);
+                    if (logged)
+                        page.logging(from);
+                }
+                bp.wroteIndexPages(tid, written.keySet());
+                if (logged) {
+                    long lsn = log.logIndexChange(tid, getId(), kind, entry, written.values(),
+                            slot, entryAdded);
+                    for (BTreePage page : written.values())
+                        page.setLsn(lsn);
+                }
+            } finally {
+                releaseAll();
+            }
+        }
+
+        /** Let go of every page. */
+        void releaseAll() {
+            BufferPool bp = Database.getBufferPool();
+            for (PageId pid : pages.keySet()) {
+                Permissions perm = modes.get(pid);
+                if (perm != null)
+                    bp.unlatchPage(pid, perm);
+                bp.unpinPage(pid);
+            }
+            modes.clear();
+            pages.clear();
+        }
+    }
+
+    /** @return a negative number, zero, or a positive number as a is less than, equal to, or greater than b */
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.LESS_THAN, b))
+            return -1;
+        return a.compare(Predicate.Op.EQUALS, b) ? 0 : 1;
+    }
+
+    /**
+     * Descend from the root pid to the leftmost leaf that may hold key, or
+     * to the leftmost leaf if key is null.  The caller has latched the root
+     * pointer.  Unless ch is exclusive, each page is let go of once the
+     * next one is latched, and only the leaf's parent, or the root pointer,
+     * is still latched at the end; the leaf is not latched yet.
+     *
+     * @param path if not null, gets the internal pages on the way
+     */
+    private BTreePageId findLeaf(Latches ch, BTreePageId pid, Field key, List<BTreePageId> path)
+            throws DbException, TransactionAbortedException {
+        BTreePageId parent = rootPtrId();
+        while (pid.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage page = (BTreeInternalPage)ch.read(pid);
+            if (!ch.exclusive)
+                ch.release(parent);
+            if (path != null)
+                path.add(pid);
+            int i = 0;
+            if (key != null) {
+                while (i < page.keys.size() && compare(key, page.keys.get(i)) > 0)
+                    i++;
+            }
+            parent = pid;
+            pid = page.child(i);
+        }
+        return pid;
+    }
+
+    /** @return the index of the first tuple of leaf whose key is not less than key */
+    private static int lowerBound(BTreeLeafPage leaf, Field key) {
+        int lo = 0, hi = leaf.tuples.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(leaf.key(mid), key) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /** @return the index of the first tuple of leaf whose key is greater than key */
+    private static int upperBound(BTreeLeafPage leaf, Field key) {
+        int lo = 0, hi = leaf.tuples.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(leaf.key(mid), key) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private Tuple copy(Tuple t) {
+        Tuple c = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            c.setField(i, t.getField(i));
+        return c;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tuple does not match the schema of the file");
+        Tuple stored = copy(t);
+        boolean exclusive = false;
+        while (true) {
+            Latches ch = new Latches(tid, exclusive, false);
+            boolean inserted;
+            try {
+                inserted = insert(ch, t, stored);
+            } finally {
+                ch.done(LogFile.ENTRY_INSERTED, stored);
+            }
+            if (inserted) {
+                Database.getBufferPool().rememberEntry(tid, this, stored, true);
+                return new ArrayList<Page>(ch.written.values());
+            }
+            if (ch.blocked != null)
+                ch.waitForLock();
+            else
+                exclusive = true;
+        }
+    }
+
+    /**
+     * Insert stored, a copy of t, and set the record id of t.  Unless ch
+     * is exclusive, this only changes one leaf, and gives up if the leaf
+     * is full.
+     *
+     * @return false if ch has to start over, exclusive or after waiting
+     *   for the leaf's lock
+     */
+    private boolean insert(Latches ch, Tuple t, Tuple stored)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreePageId rootId = ((BTreeRootPtrPage)ch.read(rootPtrId())).getRootId();
+        if (rootId == null) {
+            if (!ch.exclusive)
+                return false;
+            rootId = newPage(ch, BTreePageId.LEAF).getId();
+            ((BTreeRootPtrPage)ch.write(rootPtrId())).setRootId(rootId);
+        }
+        Field key = stored.getField(keyField);
+        ArrayList<BTreePageId> path = new ArrayList<BTreePageId>();
+        BTreePageId leafId = findLeaf(ch, rootId, key, path);
+        if (!ch.lock(leafId, Permissions.READ_WRITE))
+            return false;
+        // the lock keeps other writers off the leaf, so it can be read
+        // before it is latched for writing
+        BTreeLeafPage leaf = (BTreeLeafPage)ch.read(leafId);
+        if (!ch.exclusive) {
+            if (leaf.tuples.size() >= leaf.maxTuples())
+                return false;
+            ch.keepOnly(leafId);
+        }
+        leaf = (BTreeLeafPage)ch.write(leafId);
+        int slot = upperBound(leaf, key);
+        leaf.tuples.add(slot, stored);
+        ch.changed(leaf, slot, true);
+        if (leaf.tuples.size() > leaf.maxTuples()) {
+            BTreeLeafPage right = splitLeaf(ch, leaf, path);
+            if (right.tuples.contains(stored))
+                leaf = right;
+        }
+        t.setRecordId(new RecordId(leaf.getId(), leaf.tuples.indexOf(stored)));
+        return true;
+    }
+
+    /**
+     * Move the upper half of the tuples of an overfull leaf to a new right
+     * sibling, and add the sibling to the parent.
+     *
+     * @param path the internal pages from the root to the leaf's parent
+     * @return the new sibling
+     */
+    private BTreeLeafPage splitLeaf(Latches ch, BTreeLeafPage leaf, List<BTreePageId> path)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreeLeafPage right = (BTreeLeafPage)newPage(ch, BTreePageId.LEAF);
+        int half = leaf.tuples.size() / 2;
+        List<Tuple> upper = leaf.tuples.subList(half, leaf.tuples.size());
+        right.tuples.addAll(upper);
+        upper.clear();
+
+        int rightNo = right.getId().pageNumber();
+        right.left = leaf.getId().pageNumber();
+        right.right = leaf.right;
+        if (leaf.right != 0)
+            ch.link(leaf.sibling(leaf.right), rightNo);
+        leaf.right = rightNo;
+
+        insertInParent(ch, path, leaf.getId(), right.key(0), right.getId());
+        return right;
+    }
+
+    /**
+     * Add key and right after left in the parent of left, the last page of
+     * path, or in a new root if left is the root.
+     */
+    private void insertInParent(Latches ch, List<BTreePageId> path, BTreePageId left, Field key,
+            BTreePageId right) throws DbException, IOException, TransactionAbortedException {
+        if (path.isEmpty()) {
+            BTreeInternalPage root = (BTreeInternalPage)newPage(ch, BTreePageId.INTERNAL);
+            root.childCategory = left.pgcateg();
+            root.children.add(left.pageNumber());
+            root.children.add(right.pageNumber());
+            root.keys.add(key);
+            ((BTreeRootPtrPage)ch.write(rootPtrId())).setRootId(root.getId());
+            return;
+        }
+        BTreeInternalPage parent = (BTreeInternalPage)ch.write(path.remove(path.size() - 1));
+        int i = parent.children.indexOf(left.pageNumber());
+        parent.keys.add(i, key);
+        parent.children.add(i + 1, right.pageNumber());
+        if (parent.keys.size() > parent.maxKeys())
+            splitInternal(ch, parent, path);
+    }
+
+    /**
+     * Move the upper half of the keys and children of an overfull internal
+     * page to a new right sibling, and push the middle key up.
+     */
+    private void splitInternal(Latches ch, BTreeInternalPage page, List<BTreePageId> path)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreeInternalPage right = (BTreeInternalPage)newPage(ch, BTreePageId.INTERNAL);
+        right.childCategory = page.childCategory;
+        int mid = page.keys.size() / 2;
+        Field up = page.keys.get(mid);
+        List<Field> upperKeys = page.keys.subList(mid, page.keys.size());
+        List<Integer> upperChildren = page.children.subList(mid + 1, page.children.size());
+        right.keys.addAll(upperKeys.subList(1, upperKeys.size()));
+        right.children.addAll(upperChildren);
+        upperKeys.clear();
+        upperChildren.clear();
+        insertInParent(ch, path, page.getId(), up, right.getId());
+    }
+
+    // see DbFile.java for javadocs
+    public Page deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        try {
+            boolean exclusive = false;
+            while (true) {
+                Latches ch = new Latches(tid, exclusive, false);
+                BTreeLeafPage leaf;
+                try {
+                    ArrayList<BTreePageId> path = new ArrayList<BTreePageId>();
+                    BTreePageId leafId = findTuple(ch, t, path);
+                    if (leafId == null)
+                        throw new DbException("tuple is not a member of the file");
+                    leaf = ch.lock(leafId, Permissions.READ_WRITE) ? remove(ch, leafId, t, path) : null;
+                } finally {
+                    ch.done(LogFile.ENTRY_DELETED, t);
+                }
+                if (leaf != null) {
+                    Database.getBufferPool().rememberEntry(tid, this, copy(t), false);
+                    return leaf;
+                }
+                if (ch.blocked != null)
+                    ch.waitForLock();
+                else
+                    exclusive = true;
+            }
+        } catch (IOException e) {
+            throw new DbException("could not delete tuple: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove t from leaf leafId, which {@link #findTuple} found and tid has
+     * locked.  Unless ch is exclusive, this gives up if the leaf would need
+     * rebalancing.
+     *
+     * @param path the internal pages from the root to the leaf's parent
+     * @return the leaf, or null if ch has to start over exclusive
+     */
+    private BTreeLeafPage remove(Latches ch, BTreePageId leafId, Tuple t, List<BTreePageId> path)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreeLeafPage leaf = (BTreeLeafPage)ch.read(leafId);
+        boolean underfull = !path.isEmpty() && leaf.tuples.size() - 1 < leaf.maxTuples() / 2;
+        if (underfull && !ch.exclusive)
+            return null;
+        leaf = (BTreeLeafPage)ch.write(leafId);
+        int slot = indexOf(leaf, t);
+        leaf.tuples.remove(slot);
+        ch.changed(leaf, slot, false);
+        if (underfull)
+            rebalanceLeaf(ch, leaf, path);
+        return leaf;
+    }
+
+    /** @return the index of a tuple of leaf equal to t, or -1 */
+    private int indexOf(BTreeLeafPage leaf, Tuple t) {
+        RecordId rid = t.getRecordId();
+        if (rid != null && leaf.getId().equals(rid.getPageId()) && rid.tupleno() < leaf.tuples.size()
+                && sameFields(leaf.tuples.get(rid.tupleno()), t))
+            return rid.tupleno();
+        Field key = t.getField(keyField);
+        for (int i = lowerBound(leaf, key); i < leaf.tuples.size() && compare(leaf.key(i), key) == 0; i++) {
+            if (sameFields(leaf.tuples.get(i), t))
+                return i;
+        }
+        return -1;
+    }
+
+    private boolean sameFields(Tuple a, Tuple b) {
+        for (int i = 0; i < td.numFields(); i++) {
+            if (!a.getField(i).equals(b.getField(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find the leaf that holds t.  The path to it stays latched, so that
+     * nobody can move t elsewhere, and unless ch is exclusive, the root
+     * pointer does not.
+     *
+     * @param path gets the internal pages from the root to the leaf's parent
+     * @return the leaf, or null if no leaf holds t
+     */
+    private BTreePageId findTuple(Latches ch, Tuple t, List<BTreePageId> path)
+            throws DbException, TransactionAbortedException {
+        BTreePageId rootId = ((BTreeRootPtrPage)ch.read(rootPtrId())).getRootId();
+        if (rootId == null)
+            return null;
+        ch.read(rootId);
+        if (!ch.exclusive)
+            ch.release(rootPtrId());
+        return findTuple(ch, rootId, t, path);
+    }
+
+    /**
+     * Find the leaf below pid that holds t.  Equal keys may span several
+     * leaves, so every child whose key range includes the key of t is
+     * searched; the pages searched in vain are let go of.
+     */
+    private BTreePageId findTuple(Latches ch, BTreePageId pid, Tuple t, List<BTreePageId> path)
+            throws DbException, TransactionAbortedException {
+        if (pid.pgcateg() == BTreePageId.LEAF) {
+            if (indexOf((BTreeLeafPage)ch.read(pid), t) >= 0)
+                return pid;
+            ch.release(pid);
+            return null;
+        }
+        Field key = t.getField(keyField);
+        BTreeInternalPage page = (BTreeInternalPage)ch.read(pid);
+        path.add(pid);
+        for (int i = 0; i < page.children.size(); i++) {
+            if (i < page.keys.size() && compare(key, page.keys.get(i)) > 0)
+                continue;
+            if (i > 0 && compare(key, page.keys.get(i - 1)) < 0)
+                break;
+            BTreePageId found = findTuple(ch, page.child(i), t, path);
+            if (found != null)
+                return found;
+        }
+        path.remove(path.size() - 1);
+        ch.release(pid);
+        return null;
+    }
+
+    /**
+     * Rebalance a leaf that is less than half full with a sibling under
+     * the same parent: merge them if their tuples fit in one page, and
+     * otherwise share the tuples evenly.  A sibling that another
+     * transaction has locked is left as it is, and so is the leaf.
+     */
+    private void rebalanceLeaf(Latches ch, BTreeLeafPage leaf, List<BTreePageId> path)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreeInternalPage parent = (BTreeInternalPage)ch.read(path.get(path.size() - 1));
+        int i = parent.children.indexOf(leaf.getId().pageNumber());
+        int sep = i > 0 ? i - 1 : i;
+        if (!ch.tryLock(parent.child(i > 0 ? i - 1 : i + 1), Permissions.READ_WRITE))
+            return;
+        ch.write(parent.getId());
+        BTreeLeafPage left = (BTreeLeafPage)ch.write(parent.child(sep));
+        BTreeLeafPage right = (BTreeLeafPage)ch.write(parent.child(sep + 1));
+
+        if (left.tuples.size() + right.tuples.size() <= left.maxTuples()) {
+            left.tuples.addAll(right.tuples);
+            right.tuples.clear();
+            left.right = right.right;
+            if (right.right != 0)
+                ch.link(right.sibling(right.right), left.getId().pageNumber());
+            parent.keys.remove(sep);
+            parent.children.remove(sep + 1);
+            freePage(ch, right);
+            rebalanceInternal(ch, parent, new ArrayList<BTreePageId>(path.subList(0, path.size() - 1)));
+        } else {
+            ArrayList<Tuple> all = new ArrayList<Tuple>(left.tuples);
+            all.addAll(right.tuples);
+            int half = all.size() / 2;
+            left.tuples.clear();
+            left.tuples.addAll(all.subList(0, half));
+            right.tuples.clear();
+            right.tuples.addAll(all.subList(half, all.size()));
+            parent.keys.set(sep, right.key(0));
+        }
+    }
+
+    /**
+     * Rebalance an internal page that may have become less than half full,
+     * like {@link #rebalanceLeaf}, pulling the key that separates it from
+     * its sibling down into the merged page.  A root left without keys is
+     * replaced by its only child.
+     *
+     * @param path the internal pages from the root to the page's parent
+     */
+    private void rebalanceInternal(Latches ch, BTreeInternalPage page, List<BTreePageId> path)
+            throws DbException, IOException, TransactionAbortedException {
+        if (path.isEmpty()) {
+            if (page.keys.isEmpty()) {
+                ((BTreeRootPtrPage)ch.write(rootPtrId())).setRootId(page.child(0));
+                freePage(ch, page);
+            }
+            return;
+        }
+        if (page.keys.size() >= page.maxKeys() / 2)
+            return;
+
+        BTreeInternalPage parent = (BTreeInternalPage)ch.write(path.get(path.size() - 1));
+        int i = parent.children.indexOf(page.getId().pageNumber());
+        int sep = i > 0 ? i - 1 : i;
+        BTreeInternalPage left = (BTreeInternalPage)ch.write(parent.child(sep));
+        BTreeInternalPage right = (BTreeInternalPage)ch.write(parent.child(sep + 1));
+
+        ArrayList<Field> keys = new ArrayList<Field>(left.keys);
+        keys.add(parent.keys.get(sep));
+        keys.addAll(right.keys);
+        ArrayList<Integer> children = new ArrayList<Integer>(left.children);
+        children.addAll(right.children);
+        left.keys.clear();
+        left.children.clear();
+        right.keys.clear();
+        right.children.clear();
+
+        if (keys.size() <= left.maxKeys()) {
+            left.keys.addAll(keys);
+            left.children.addAll(children);
+            parent.keys.remove(sep);
+            parent.children.remove(sep + 1);
+            freePage(ch, right);
+            rebalanceInternal(ch, parent, new ArrayList<BTreePageId>(path.subList(0, path.size() - 1)));
+        } else {
+            int mid = keys.size() / 2;
+            left.keys.addAll(keys.subList(0, mid));
+            left.children.addAll(children.subList(0, mid + 1));
+            parent.keys.set(sep, keys.get(mid));
+            right.keys.addAll(keys.subList(mid + 1, keys.size()));
+            right.children.addAll(children.subList(mid + 1, children.size()));
+        }
+    }
+
+    /**
+     * @return a new empty page of the given category, one the tree freed
+     *   before if there is one, otherwise one added to the end of the file.
+     *   A new leaf is locked exclusively, like every leaf a writer
+     *   changes, and an internal page in shared mode, so that a page is
+     *   not used again while a transaction that emptied it as a leaf still
+     *   holds it.
+     */
+    private BTreePage newPage(Latches ch, int category)
+            throws DbException, IOException, TransactionAbortedException {
+        Permissions perm = category == BTreePageId.LEAF ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+        BTreePageId hid = ((BTreeRootPtrPage)ch.read(rootPtrId())).getHeaderId();
+        int base = 0;
+        while (hid != null) {
+            BTreeHeaderPage header = (BTreeHeaderPage)ch.read(hid);
+            for (int slot = header.nextFree(0); slot >= 0; slot = header.nextFree(slot + 1)) {
+                BTreePageId pid = new BTreePageId(getId(), base + slot, category);
+                if (!ch.tryLock(pid, perm))
+                    continue;
+                BTreePage page = ch.read(pid);
+                // a page the pool still holds keeps the category it was freed with
+                if (category == BTreePageId.LEAF ? !(page instanceof BTreeLeafPage)
+                        : !(page instanceof BTreeInternalPage)) {
+                    ch.release(pid);
+                    continue;
+                }
+                ((BTreeHeaderPage)ch.write(hid)).setFree(slot, false);
+                return ch.write(pid);
+            }
+            base += header.numSlots();
+            hid = header.getNextId();
+        }
+        while (true) {
+            BTreePageId pid = new BTreePageId(getId(), appendPage(), category);
+            if (ch.tryLock(pid, perm))
+                return ch.write(pid);
+        }
+    }
+
+    /** @return the number of a new empty page at the end of the file */
+    private int appendPage() throws IOException {
+        return appendPages(1);
+    }
+
+    /** @return the number of the first of n new empty pages at the end of the file */
+    private synchronized int appendPages(int n) throws IOException {
+        int first = Math.max(1, numPages());
+        for (int i = 0; i < n; i++)
+            writeBytes(first + i, new byte[pageSize]);
+        return first;
+    }
+
+    /**
+     * Empty page and note in the header pages that it is free, adding
+     * header pages as needed.  An empty page reads as an empty page of
+     * any category, so it can be used again for either.
+     */
+    private void freePage(Latches ch, BTreePage page)
+            throws DbException, IOException, TransactionAbortedException {
+        if (page instanceof BTreeLeafPage) {
+            BTreeLeafPage leaf = (BTreeLeafPage)page;
+            leaf.tuples.clear();
+            leaf.left = leaf.right = 0;
+        } else {
+            BTreeInternalPage internal = (BTreeInternalPage)page;
+            internal.keys.clear();
+            internal.children.clear();
+            internal.childCategory = 0;
+        }
+        int pageNum = page.getId().pageNumber();
+        BTreePageId hid = ((BTreeRootPtrPage)ch.read(rootPtrId())).getHeaderId();
+        if (hid == null) {
+            hid = ch.write(new BTreePageId(getId(), appendPage(), BTreePageId.HEADER)).getId();
+            ((BTreeRootPtrPage)ch.write(rootPtrId())).setHeaderId(hid);
+        }
+        int base = 0;
+        while (true) {
+            BTreeHeaderPage header = (BTreeHeaderPage)ch.read(hid);
+            if (pageNum < base + header.numSlots()) {
+                ((BTreeHeaderPage)ch.write(hid)).setFree(pageNum - base, true);
+                return;
+            }
+            BTreePageId next = header.getNextId();
+            if (next == null) {
+                next = ch.write(new BTreePageId(getId(), appendPage(), BTreePageId.HEADER)).getId();
+                ((BTreeHeaderPage)ch.write(hid)).setNextId(next);
+            }
+            base += header.numSlots();
+            hid = next;
+        }
+    }
+
+    /**
+     * Undo a change tid made to this file, as part of rolling tid back:
+     * delete entry if tid inserted it, or insert it again if tid deleted
+     * it.  The pool and the log each undo a change only once, so this
+     * does not check for an equal entry first, which another change may
+     * have left.  Other writers may have changed the same pages since, so
+     * the change is undone entry by entry instead of putting back pages.
+     * tid still holds the locks it took, and takes no more.
+     */
+    public void undo(TransactionId tid, Tuple entry, boolean inserted)
+            throws DbException, IOException, TransactionAbortedException {
+        Latches ch = new Latches(tid, true, true);
+        try {
+            if (inserted) {
+                ArrayList<BTreePageId> path = new ArrayList<BTreePageId>();
+                BTreePageId leafId = findTuple(ch, entry, path);
+                if (leafId != null)
+                    remove(ch, leafId, entry, path);
+            } else {
+                insert(ch, entry, copy(entry));
+            }
+        } finally {
+            ch.done(LogFile.ENTRY_UNDONE, entry);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new BTreeFileIterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples whose key satisfies ipred, in key
+     * order.  Equality and lower bounds start at the first leaf that may
+     * hold a match, and equality and upper bounds stop at the first key
+     * past the matches.
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new BTreeFileIterator(tid, ipred);
+    }
+
+    /** Iterates over the leaves from left to right. */
+    private class BTreeFileIterator implements DbFileIterator {
+        private static final long serialVersionUID = 1L;
+
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private Iterator<Tuple> tuples;
+        private int nextLeaf;
+        private Tuple next;
+        private boolean done;
+
+        BTreeFileIterator(TransactionId tid, IndexPredicate ipred) {
+            this.tid = tid;
+            this.ipred = ipred;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            next = null;
+            done = false;
+            Field start = null;
+            if (ipred != null) {
+                switch (ipred.getOp()) {
+                case EQUALS:
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQ:
+                    start = ipred.getField();
+                    break;
+                default:
+                    break;
+                }
+            }
+            while (true) {
+                Latches ch = new Latches(tid, false, false);
+                try {
+                    BTreePageId rootId = ((BTreeRootPtrPage)ch.read(rootPtrId())).getRootId();
+                    if (rootId == null) {
+                        tuples = Collections.<Tuple>emptyList().iterator();
+                        nextLeaf = 0;
+                        return;
+                    }
+                    BTreePageId leafId = findLeaf(ch, rootId, start, null);
+                    if (ch.lock(leafId, Permissions.READ_ONLY)) {
+                        readLeaf(ch, leafId);
+                        return;
+                    }
+                } finally {
+                    ch.releaseAll();
+                }
+                ch.waitForLock();
+            }
+        }
+
+        /** Copy the tuples of leaf pid, which tid has locked. */
+        private void readLeaf(Latches ch, BTreePageId pid) throws DbException, TransactionAbortedException {
+            BTreeLeafPage leaf = (BTreeLeafPage)ch.read(pid);
+            // copied, so that changes to the leaf do not disturb the scan
+            ArrayList<Tuple> copies = new ArrayList<Tuple>(leaf.tuples.size());
+            for (int i = 0; i < leaf.tuples.size(); i++) {
+                Tuple t = copy(leaf.tuples.get(i));
+                t.setRecordId(new RecordId(pid, i));
+                copies.add(t);
+            }
+            tuples = copies.iterator();
+            nextLeaf = leaf.right;
+        }
+
+        /** @return true if no tuple after one with this key can match */
+        private boolean pastEnd(Field key) {
+            switch (ipred.getOp()) {
+            case EQUALS:
+            case LESS_THAN_OR_EQ:
+                return compare(key, ipred.getField()) > 0;
+            case LESS_THAN:
+                return compare(key, ipred.getField()) >= 0;
+            default:
+                return false;
+            }
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while (next == null && !done && tuples != null) {
+                if (!tuples.hasNext()) {
+                    if (nextLeaf == 0) {
+                        done = true;
+                        break;
+                    }
+                    // no latches are held, so the scan may wait for the lock
+                    BTreePageId pid = new BTreePageId(getId(), nextLeaf, BTreePageId.LEAF);
+                    Database.getBufferPool().lockPage(tid, pid, Permissions.READ_ONLY, true);
+                    Latches ch = new Latches(tid, false, false);
+                    try {
+                        readLeaf(ch, pid);
+                    } finally {
+                        ch.releaseAll();
+                    }
+                    continue;
+                }
+                Tuple t = tuples.next();
+                Field key = t.getField(keyField);
+                if (ipred == null || ipred.matches(key))
+                    next = t;
+                else if (pastEnd(key))
+                    done = true;
+            }
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            open();
+        }
+
+        public void close() {
+            tuples = null;
+            next = null;
+        }
+    }
+}
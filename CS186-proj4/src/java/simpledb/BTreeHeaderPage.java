@@ -0,0 +1,74 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A header page of a BTreeFile keeps track of the pages the tree has freed,
+ * so that they can be used again.  Header pages form a chain starting at
+ * the root pointer page, and the n-th header page has one bit for each of
+ * the pages from n * {@link #numSlots} on, set if the page is free.  Pages
+ * past the end of the chain are in use.
+ *
+ * @see BTreeFile
+ */
+public class BTreeHeaderPage extends BTreePage {
+
+    private static final int HEADER_SIZE = 4;
+
+    private int next;
+    private final byte[] bits;
+
+    /** Create a header page from a set of bytes of data read from disk. */
+    public BTreeHeaderPage(BTreePageId id, byte[] data) throws IOException {
+        super(id, data);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        next = buf.getInt(0);
+        bits = new byte[pageSize - HEADER_SIZE];
+        System.arraycopy(data, HEADER_SIZE, bits, 0, bits.length);
+    }
+
+    /** @return the number of pages a header page keeps track of */
+    int numSlots() {
+        return bits.length * 8;
+    }
+
+    /** @return the id of the next header page, or null if this is the last */
+    BTreePageId getNextId() {
+        return next == 0 ? null : new BTreePageId(pid.getTableId(), next, BTreePageId.HEADER);
+    }
+
+    void setNextId(BTreePageId id) {
+        next = id.pageNumber();
+    }
+
+    boolean isFree(int i) {
+        return (bits[i >>> 3] & (1 << (i & 7))) != 0;
+    }
+
+    void setFree(int i, boolean free) {
+        if (free)
+            bits[i >>> 3] |= 1 << (i & 7);
+        else
+            bits[i >>> 3] &= ~(1 << (i & 7));
+    }
+
+    /** @return the first free slot from from on, or -1 if there is none */
+    int nextFree(int from) {
+        for (int i = from; i < numSlots(); i++) {
+            if ((i & 7) == 0 && bits[i >>> 3] == 0) {
+                i += 7; // skip a byte of pages in use
+                continue;
+            }
+            if (isFree(i))
+                return i;
+        }
+        return -1;
+    }
+
+    void write(ByteBuffer buf) {
+        buf.putInt(0, next);
+        buf.position(HEADER_SIZE);
+        buf.put(bits);
+    }
+}
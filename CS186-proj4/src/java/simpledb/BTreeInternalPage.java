@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * An internal page of a BTreeFile holds n keys and the page numbers of
+ * n + 1 children, which are all of the same category.  Every key in the
+ * subtree of child i is less than or equal to key i, which is less than
+ * or equal to every key in the subtree of child i + 1.
+ * <p>
+ * The format of an internal page is the category of the children and the
+ * number of keys as integers, followed by room for the page numbers of
+ * the most children the page can hold, followed by the keys.
+ *
+ * @see BTreeFile
+ */
+public class BTreeInternalPage extends BTreePage {
+
+    private static final int HEADER_SIZE = 8;
+
+    int childCategory;
+    final ArrayList<Field> keys;
+    final ArrayList<Integer> children;
+
+    /** Create an internal page from a set of bytes of data read from disk. */
+    public BTreeInternalPage(BTreePageId id, byte[] data) throws IOException {
+        super(id, data);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        childCategory = buf.getInt(0);
+        int count = buf.getInt(4);
+        int max = maxKeys();
+        if (count < 0 || count > max)
+            throw new IOException("corrupt internal page " + id.pageNumber());
+        keys = new ArrayList<Field>(count);
+        children = new ArrayList<Integer>(count + 1);
+        for (int i = 0; i < count + 1; i++)
+            children.add(buf.getInt(HEADER_SIZE + i * 4));
+        for (int i = 0; i < count; i++)
+            keys.add(keyType().parse(buf, keyOffset(i)));
+        if (count == 0 && children.get(0) == 0)
+            children.clear(); // a new page
+    }
+
+    /** @return the most keys this page can hold */
+    int maxKeys() {
+        return maxKeys(pageSize, keyType());
+    }
+
+    /** @return the most keys of type keyType an internal page of pageSize bytes can hold */
+    static int maxKeys(int pageSize, Type keyType) {
+        return (pageSize - HEADER_SIZE - 4) / (keyType.getLen() + 4);
+    }
+
+    private int keyOffset(int i) {
+        return HEADER_SIZE + (maxKeys() + 1) * 4 + i * keyType().getLen();
+    }
+
+    /** @return the id of the i-th child */
+    BTreePageId child(int i) {
+        return new BTreePageId(pid.getTableId(), children.get(i), childCategory);
+    }
+
+    void write(ByteBuffer buf) {
+        buf.putInt(0, childCategory);
+        buf.putInt(4, keys.size());
+        for (int i = 0; i < children.size(); i++)
+            buf.putInt(HEADER_SIZE + i * 4, children.get(i));
+        for (int i = 0; i < keys.size(); i++)
+            keys.get(i).serialize(buf, keyOffset(i));
+    }
+}
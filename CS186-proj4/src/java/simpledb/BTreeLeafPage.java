@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A leaf page of a BTreeFile holds tuples of the file sorted by their key
+ * field, and the page numbers of its left and right siblings, 0 for none.
+ * <p>
+ * The format of a leaf page is the left sibling, the right sibling and the
+ * number of tuples as integers, followed by the tuples.  A page holds up to
+ * floor((page size - 12) / tuple size) tuples.
+ *
+ * @see BTreeFile
+ */
+public class BTreeLeafPage extends BTreePage {
+
+    private static final int HEADER_SIZE = 12;
+
+    int left;
+    int right;
+    /** The tuples of this page, sorted by key. */
+    final ArrayList<Tuple> tuples;
+
+    /** Create a leaf page from a set of bytes of data read from disk. */
+    public BTreeLeafPage(BTreePageId id, byte[] data) throws IOException {
+        super(id, data);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        left = buf.getInt(0);
+        right = buf.getInt(4);
+        int count = buf.getInt(8);
+        if (count < 0 || count > maxTuples())
+            throw new IOException("corrupt leaf page " + id.pageNumber());
+        tuples = new ArrayList<Tuple>(count);
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_SIZE + i * td.getSize();
+            Tuple t = new Tuple(td);
+            for (int f = 0; f < td.numFields(); f++)
+                t.setField(f, td.getFieldType(f).parse(buf, offset + td.getOffset(f)));
+            tuples.add(t);
+        }
+    }
+
+    /** @return the most tuples this page can hold */
+    int maxTuples() {
+        return maxTuples(pageSize, td);
+    }
+
+    /** @return the most tuples with descriptor td a leaf of pageSize bytes can hold */
+    static int maxTuples(int pageSize, TupleDesc td) {
+        return (pageSize - HEADER_SIZE) / td.getSize();
+    }
+
+    /** @return the key of the i-th tuple */
+    Field key(int i) {
+        return tuples.get(i).getField(keyField);
+    }
+
+    /** @return the id of the sibling with page number pgNo, null for 0 */
+    BTreePageId sibling(int pgNo) {
+        return pgNo == 0 ? null : new BTreePageId(pid.getTableId(), pgNo, BTreePageId.LEAF);
+    }
+
+    /** @return the i-th tuple, with its record id on this page */
+    Tuple tuple(int i) {
+        Tuple t = tuples.get(i);
+        t.setRecordId(new RecordId(pid, i));
+        return t;
+    }
+
+    void write(ByteBuffer buf) {
+        buf.putInt(0, left);
+        buf.putInt(4, right);
+        buf.putInt(8, tuples.size());
+        for (int i = 0; i < tuples.size(); i++) {
+            int offset = HEADER_SIZE + i * td.getSize();
+            Tuple t = tuples.get(i);
+            for (int f = 0; f < td.numFields(); f++)
+                t.getField(f).serialize(buf, offset + td.getOffset(f));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb;
+
+/**
+ * Unique identifier for the pages of a BTreeFile.  Besides the table and
+ * page number, it carries the category of the page, so that the file knows
+ * which kind of page to read.  The category is not part of the identity:
+ * two ids of the same page of the same table are equal, and equal to the
+ * HeapPageId with the same numbers, like any other PageId.
+ *
+ * @see BTreeFile
+ */
+public class BTreePageId implements PageId {
+
+    /** Page 0 of every BTreeFile, pointing to the root and the header pages. */
+    public final static int ROOT_PTR = 0;
+    public final static int INTERNAL = 1;
+    public final static int LEAF = 2;
+    public final static int HEADER = 3;
+
+    private final int tableId;
+    private final int pgNo;
+    private final int pgcateg;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific B+ tree.
+     *
+     * @param tableId The table that is being referenced
+     * @param pgNo The page number in that table.
+     * @param pgcateg The category of the page, one of ROOT_PTR, INTERNAL,
+     *   LEAF and HEADER
+     */
+    public BTreePageId(int tableId, int pgNo, int pgcateg) {
+        this.tableId = tableId;
+        this.pgNo = pgNo;
+        this.pgcateg = pgcateg;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the page number in the table getTableId() associated with
+     *   this PageId
+     */
+    public int pageNumber() {
+        return pgNo;
+    }
+
+    /** @return the category of this page */
+    public int pgcateg() {
+        return pgcateg;
+    }
+
+    /** @see HeapPageId#hashCode */
+    public int hashCode() {
+        return 31*tableId+pgNo;
+    }
+
+    /**
+     * Compares one PageId to another.
+     *
+     * @param o The object to compare against (must be a PageId)
+     * @return true if the objects are equal (e.g., page numbers and table
+     *   ids are the same)
+     */
+    public boolean equals(Object o) {
+        if(o == this) return true;
+        if(!(o instanceof PageId)) return false;
+        PageId target = (PageId)o;
+        return this.tableId == target.getTableId() && this.pgNo == target.pageNumber();
+    }
+
+    /**
+     *  Return a representation of this object as an array of
+     *  integers, for writing to disk.
+     */
+    public int[] serialize() {
+        int data[] = new int[3];
+
+        data[0] = tableId;
+        data[1] = pgNo;
+        data[2] = pgcateg;
+
+        return data;
+    }
+
+    public String toString() {
+        String[] names = { "root pointer", "internal", "leaf", "header" };
+        return names[pgcateg] + " page " + pgNo + " of table " + tableId;
+    }
+}
@@ -0,0 +1,52 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The first page of every BTreeFile.  It holds the page number and
+ * category of the root, or 0 while the tree is empty, and the page number
+ * of the first header page, or 0 if no page was ever freed.
+ *
+ * @see BTreeFile
+ */
+public class BTreeRootPtrPage extends BTreePage {
+
+    private int root;
+    private int rootCategory;
+    private int header;
+
+    /** Create a root pointer page from a set of bytes of data read from disk. */
+    public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
+        super(id, data);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        root = buf.getInt(0);
+        rootCategory = buf.getInt(4);
+        header = buf.getInt(8);
+    }
+
+    /** @return the id of the root page, or null if the tree is empty */
+    BTreePageId getRootId() {
+        return root == 0 ? null : new BTreePageId(pid.getTableId(), root, rootCategory);
+    }
+
+    void setRootId(BTreePageId id) {
+        root = id == null ? 0 : id.pageNumber();
+        rootCategory = id == null ? 0 : id.pgcateg();
+    }
+
+    /** @return the id of the first header page, or null if there is none */
+    BTreePageId getHeaderId() {
+        return header == 0 ? null : new BTreePageId(pid.getTableId(), header, BTreePageId.HEADER);
+    }
+
+    void setHeaderId(BTreePageId id) {
+        header = id.pageNumber();
+    }
+
+    void write(ByteBuffer buf) {
+        buf.putInt(0, root);
+        buf.putInt(4, rootCategory);
+        buf.putInt(8, header);
+    }
+}
@@ -1,7 +1,15 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,64 +21,268 @@ import java.util.*;
  * locks to read/write the page.
  */
 public class BufferPool {
-    /** Bytes per page, including header. */
+    /** Bytes per page, including header, unless a table chooses otherwise. */
     public static final int PAGE_SIZE = 4096;
 
+    /** Smallest and largest page size a table may use. */
+    public static final int MIN_PAGE_SIZE = 1024;
+    public static final int MAX_PAGE_SIZE = 65536;
+
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Number of stripes used to serialize concurrent loads of a page. */
+    private static final int LOAD_STRIPES = 64;
+
+    /** Largest ring handed to a bulk scan by {@link #scanRing}. */
+    private static final int MAX_RING_PAGES = 16;
+
+    /** Latch-free attempts a snapshot makes to copy a page being changed. */
+    private static final int OPTIMISTIC_READS = 8;
+
+    /** Milliseconds between rounds of the background page writer. */
+    public static final long DEFAULT_WRITER_INTERVAL = 200;
+
+    /** Most dirty pages the background writer writes per round. */
+    private static final int WRITER_BATCH_PAGES = 64;
+
+    /** Default number of pages a sequential scan reads ahead. */
+    public static final int DEFAULT_PREFETCH_WINDOW = 8;
+
+    /** Background threads shared by every pool for read-ahead I/O. */
+    private static final ExecutorService IO_EXECUTOR =
+        Executors.newFixedThreadPool(4, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-prefetch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /** Capacity of the pool in default-sized pages; used for sizing heuristics. */
     private final int numPages;
 
-    private HashMap<PageId, Node> Nodemap;
+    /** Capacity of the pool in bytes, and the bytes held by resident pages. */
+    private final long capacity;
+    private long usedBytes;
 
-    private Node header;
+    /** Off-heap memory for page bytes, or null to keep pages on the heap. */
+    private final FrameArena arena;
 
-    private Node tailer;
+    private final ConcurrentHashMap<PageId, Frame> frames;
 
+    private final Object[] loadLocks;
+
+    private final EvictionPolicy policy;
+
+    private volatile int prefetchWindow = DEFAULT_PREFETCH_WINDOW;
+    private final Set<PageId> prefetching;
+    private final AtomicLong pagesPrefetched = new AtomicLong(0);
+    private final AtomicLong prefetchHits = new AtomicLong(0);
+    private final AtomicLong optimisticReads = new AtomicLong(0);
+
+    private PageWriter writer;
+
+    private final LockManager lockManager = new LockManager();
+
+    private final VersionStore versions = new VersionStore();
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * The pages being written, each with the end of the log when its first
+     * write in progress began and the number of such writes.  Changes are
+     * logged right before their page is written, so these are the only
+     * pages with logged changes that may not be on disk.
+     */
+    private final HashMap<PageId, long[]> writing = new HashMap<PageId, long[]>();
+
+    /** An entry a running transaction inserted into or deleted from an index. */
+    private static class EntryChange {
+        final IndexFile file;
+        final Tuple entry;
+        final boolean inserted;
+
+        EntryChange(IndexFile file, Tuple entry, boolean inserted) {
+            this.file = file;
+            this.entry = entry;
+            this.inserted = inserted;
+        }
+    }
+
+    /**
+     * The index changes of each running transaction, oldest first.  Index
+     * pages are shared by the writers of different entries, so an abort
+     * undoes these entry by entry instead of putting back page versions.
+     */
+    private final HashMap<TransactionId, ArrayList<EntryChange>> entryChanges =
+        new HashMap<TransactionId, ArrayList<EntryChange>>();
+
+    /**
+     * The index pages each running transaction changed.  Only B+ tree
+     * leaves and hash buckets among them are locked, so unlike the pages
+     * it locked, these are forced to disk at its end without the pool's
+     * monitor.
+     */
+    private final HashMap<TransactionId, HashSet<PageId>> indexPages =
+        new HashMap<TransactionId, HashSet<PageId>>();
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting with
+     * a {@link TwoQueueEvictionPolicy}.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new TwoQueueEvictionPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the policy that decides which page to evict
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
         // some code goes here
-        this.numPages = numPages;
-        Nodemap = new HashMap<PageId, Node>(this.numPages);
+        this((long)numPages * PAGE_SIZE, policy, false);
     }
 
-    public class Node{
-        public Node pre;
-        public Node next;
-        public Page page;
+    /**
+     * Creates a BufferPool that caches pages up to a total of capacity
+     * bytes, so that a pool of a given size holds fewer pages of tables
+     * with larger pages.
+     *
+     * @param capacity maximum number of bytes of pages in this buffer pool.
+     * @param policy the policy that decides which page to evict
+     * @param offHeap whether to keep heap file pages in a {@link FrameArena}
+     */
+    private BufferPool(long capacity, EvictionPolicy policy, boolean offHeap) {
+        this.capacity = capacity;
+        this.arena = offHeap ? new FrameArena(capacity) : null;
+        this.numPages = (int)Math.max(1, Math.min(Integer.MAX_VALUE, capacity / PAGE_SIZE));
+        this.policy = policy;
+        frames = new ConcurrentHashMap<PageId, Frame>(this.numPages);
+        prefetching = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+        loadLocks = new Object[LOAD_STRIPES];
+        for (int i = 0; i < LOAD_STRIPES; i++)
+            loadLocks[i] = new Object();
+        writer = new PageWriter(this, DEFAULT_WRITER_INTERVAL, WRITER_BATCH_PAGES);
+    }
+
+    /**
+     * Creates a BufferPool that caches pages up to a total of capacity
+     * bytes, evicting with a {@link TwoQueueEvictionPolicy}.
+     */
+    public static BufferPool withCapacity(long capacity) {
+        return withCapacity(capacity, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches pages up to a total of capacity
+     * bytes.  If offHeap is true, the bytes of heap file pages are kept in
+     * an off-heap {@link FrameArena} allocated right away, so that even a
+     * very large pool adds little to garbage collection.
+     */
+    public static BufferPool withCapacity(long capacity, boolean offHeap) {
+        int pages = (int)Math.max(1, Math.min(Integer.MAX_VALUE, capacity / PAGE_SIZE));
+        return new BufferPool(capacity, new TwoQueueEvictionPolicy(pages), offHeap);
+    }
 
-        public Node(Page page){
+    /** @return true if this pool keeps pages off the Java heap */
+    public boolean isOffHeap() {
+        return arena != null;
+    }
+
+    /** @return the capacity of this pool in bytes */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Checks that pageSize is a power of two between {@link #MIN_PAGE_SIZE}
+     * and {@link #MAX_PAGE_SIZE}.
+     *
+     * @throws IllegalArgumentException if it is not
+     */
+    public static int checkPageSize(int pageSize) {
+        if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1)
+            throw new IllegalArgumentException("invalid page size " + pageSize);
+        return pageSize;
+    }
+
+    /**
+     * Stop the background page writer.  Dirty pages are then only written
+     * when they are evicted or flushed explicitly.
+     */
+    public synchronized void stopPageWriter() {
+        if (writer != null) {
+            writer.stop();
+            writer = null;
+        }
+    }
+
+    /**
+     * A slot of the buffer pool holding one resident page.
+     * <p>
+     * The pin count keeps the frame from being evicted while a caller is
+     * modifying its page; a negative count marks a frame that has been
+     * claimed by eviction and must not be handed out again.  The latch
+     * guards the page contents: writers hold it exclusively while they
+     * change the page, flushes hold it shared while they serialize it.
+     * The remaining fields are bookkeeping for the {@link EvictionPolicy}.
+     */
+    public static class Frame {
+        final Page page;
+        final int size;
+        ByteBuffer buffer;
+        final AtomicInteger pins = new AtomicInteger(0);
+        final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+        /** Number of threads in {@link BufferPool#discardPage} waiting for an unpin. */
+        final AtomicInteger waiters = new AtomicInteger(0);
+        private final BufferPool pool;
+
+        volatile boolean referenced;
+        volatile long lastAccess;
+        volatile boolean prefetched;
+        int slot = -1;
+
+        Frame(Page page, int size, BufferPool pool) {
             this.page = page;
+            this.size = size;
+            this.pool = pool;
         }
 
-        private Page getPage(){
-            return this.page;
+        public Page getPage() {
+            return page;
         }
 
-        private void remove(){
-            if(pre!=null) pre.next = next;
-            if(header == this) header = next;
-            if(next!=null) next.pre = pre;
-            if(tailer == this) tailer = pre;
+        public boolean isPinned() {
+            return pins.get() != 0;
         }
 
-        private void movetoHead(){
-            if(header == null){
-                header = this;
-                tailer = this;
+        /** @return false if the frame was already claimed by eviction */
+        boolean pin() {
+            while (true) {
+                int p = pins.get();
+                if (p < 0) return false;
+                if (pins.compareAndSet(p, p + 1)) return true;
             }
-            next = header;
-            header = this;
-            next.pre = this;
         }
 
+        void unpin() {
+            if (pins.decrementAndGet() == 0 && waiters.get() > 0) {
+                synchronized (pool) {
+                    pool.notifyAll();
+                }
+            }
+        }
+
+        /** Claim an unpinned frame for eviction. */
+        boolean retire() {
+            return pins.compareAndSet(0, -1);
+        }
     }
 
     /**
@@ -83,6 +295,9 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Hits never take a pool-wide lock, so any number of threads can read
+     * cached pages in parallel.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -91,46 +306,458 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-//        if(perm.permLevel != 0 || perm.permLevel != 1) {
-//            throw new IllegalArgumentException();
-//        }
-        if(Nodemap.containsKey(pid)){
-            Node node = Nodemap.get(pid);
-            node.remove();
-            node.movetoHead();
-            return Nodemap.get(pid).getPage();
-        }
-        else{
-            HeapFile hpfile =(HeapFile) Database.getCatalog().getDbFile(pid.getTableId());
-            HeapPage hppage = (HeapPage) hpfile.readPage(pid);
-            addpage(pid,hppage);
-            return hppage;
-        }
-    }
-    
-    private synchronized void addpage(PageId pid, Page newpage){
-        Node node = new Node(newpage);
-        //still have space
-        if(Nodemap.keySet().size() < numPages){
-            Nodemap.put(pid, node);
-            node.movetoHead();
-        }
-        else{
-            //commit a evicPage
-            Node pretail = tailer;
-            try{
-                flushPage(pretail.getPage().getId());
-            }catch(IOException e){
-                e.printStackTrace();
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve a page on behalf of a bulk scan.  If the page has to be read,
+     * it goes into the scan's ring; once the ring is full the scan recycles
+     * its own oldest frame rather than evicting a page from the shared pool.
+     *
+     * @param ring the scan's ring, or null to behave like {@link #getPage}
+     * @see #scanRing
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+        if (tid != null) {
+            Long snapshot = versions.snapshotOf(tid);
+            if (snapshot != null)
+                return snapshotPage(tid, pid, perm, snapshot);
+            lockManager.acquire(tid, pid, perm);
+        }
+        Frame frame = frames.get(pid);
+        if (frame == null)
+            frame = loadFrame(pid, ring);
+        else
+            policy.frameAccessed(frame);
+        countPrefetchHit(frame);
+        if (tid != null && perm == Permissions.READ_WRITE)
+            versions.rememberPage(tid, frame.page);
+        return frame.page;
+    }
+
+    /**
+     * Start a read-only snapshot for tid: until tid completes, the pages it
+     * gets are private copies showing exactly the changes of the
+     * transactions that committed before this call, and it takes no locks.
+     *
+     * @see VersionStore
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.beginSnapshot(tid);
+    }
+
+    /**
+     * @return true if tid is a read-only snapshot started with
+     *   {@link #beginSnapshot}, which can only read heap pages
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return tid != null && versions.snapshotOf(tid) != null;
+    }
+
+    /**
+     * Returns a private copy of pid as seen by a snapshot taken at ts.  The
+     * page is copied optimistically, without its latch: the copy is kept if
+     * the page's change counter shows no change was under way or made
+     * meanwhile.  Only after OPTIMISTIC_READS failed attempts does the
+     * reader take the latch, and so wait for writers.
+     */
+    private Page snapshotPage(TransactionId tid, PageId pid, Permissions perm, long ts)
+        throws DbException {
+        if (perm == Permissions.READ_WRITE)
+            throw new DbException("snapshot transaction " + tid.getId() + " is read-only");
+        Page page = pin(pid);
+        try {
+            if (!(page instanceof HeapPage))
+                throw new DbException("snapshots can only read heap pages");
+            HeapPage hp = (HeapPage)page;
+            for (int i = 0; i < OPTIMISTIC_READS; i++) {
+                int version = hp.version();
+                if ((version & 1) == 0) {
+                    HeapPage copy = versions.rollBack(new HeapPage(hp.getId(), hp.getPageData(), false), ts);
+                    if (hp.version() == version) {
+                        optimisticReads.incrementAndGet();
+                        return copy;
+                    }
+                }
+                Thread.yield(); // a writer is changing the page
+            }
+            latchPage(pid, Permissions.READ_ONLY);
+            try {
+                return versions.rollBack(new HeapPage(hp.getId(), hp.getPageData(), false), ts);
+            } finally {
+                unlatchPage(pid, Permissions.READ_ONLY);
             }
-            pretail.remove();
-            Nodemap.remove(pretail.getPage().getId());
-            
-            Nodemap.put(pid, node);
-            node.movetoHead();
+        } catch (IOException e) {
+            throw new DbException("could not copy page " + pid.pageNumber() + " for a snapshot");
+        } finally {
+            unpinPage(pid);
         }
     }
 
+    /** @return the number of snapshot reads that did not need a latch */
+    public long getOptimisticReads() {
+        return optimisticReads.get();
+    }
+
+    /**
+     * Returns a ring for a sequential scan over tablePages pages, or null if
+     * the table fits in the pool.  A table that does not fit cannot stay
+     * cached anyway, so scanning it through a ring costs nothing.
+     */
+    public BufferRing scanRing(int tablePages) {
+        return scanRing(tablePages, PAGE_SIZE);
+    }
+
+    /**
+     * Returns a ring for a sequential scan over tablePages pages of
+     * pageSize bytes, or null if the table fits in the pool.
+     */
+    public BufferRing scanRing(int tablePages, int pageSize) {
+        if ((long)tablePages * pageSize <= capacity)
+            return null;
+        long poolPages = capacity / pageSize;
+        return new BufferRing((int)Math.max(2, Math.min(MAX_RING_PAGES, poolPages / 8)));
+    }
+
+    /**
+     * Like {@link #getPage}, but also pins the page so that it cannot be
+     * evicted until {@link #unpinPage} is called.  Callers that modify a
+     * page must hold a pin for the duration of the change.
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (tid != null) {
+            if (versions.snapshotOf(tid) != null)
+                throw new DbException("snapshot transaction " + tid.getId() + " cannot pin pages");
+            lockManager.acquire(tid, pid, perm);
+        }
+        Page page = pin(pid);
+        if (tid != null && perm == Permissions.READ_WRITE)
+            versions.rememberPage(tid, page);
+        return page;
+    }
+
+    /**
+     * Like {@link #pinPage}, but only takes an intention lock on the page:
+     * the caller must lock each record it changes with {@link #lockRecord},
+     * and latch the page while changing it.
+     */
+    Page pinPageForRecords(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if (tid != null) {
+            if (versions.snapshotOf(tid) != null)
+                throw new DbException("snapshot transaction " + tid.getId() + " is read-only");
+            lockManager.acquire(tid, pid, LockManager.Mode.IX);
+        }
+        return pin(pid);
+    }
+
+    private Page pin(PageId pid) throws DbException {
+        while (true) {
+            Frame frame = frames.get(pid);
+            if (frame == null)
+                frame = loadFrame(pid);
+            if (frame.pin()) {
+                policy.frameAccessed(frame);
+                countPrefetchHit(frame);
+                return frame.page;
+            }
+            // lost a race with eviction, look the page up again
+        }
+    }
+
+    /**
+     * Release a pin taken by {@link #pinPage}.
+     *
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(PageId pid) {
+        Frame frame = frames.get(pid);
+        if (frame != null)
+            frame.unpin();
+    }
+
+    /**
+     * Lock the whole table tableId on behalf of tid, in shared mode for
+     * READ_ONLY and in exclusive mode for READ_WRITE.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.acquireTable(tid, tableId,
+                perm == Permissions.READ_WRITE ? LockManager.Mode.X : LockManager.Mode.S);
+    }
+
+    /**
+     * Lock the record rid exclusively on behalf of tid.
+     *
+     * @param wait whether to wait if another transaction holds the lock
+     * @return false if wait is false and the lock is not available
+     */
+    boolean lockRecord(TransactionId tid, RecordId rid, boolean wait)
+        throws TransactionAbortedException {
+        return tid == null || lockManager.acquireRecord(tid, rid, wait);
+    }
+
+    /**
+     * Lock pid on behalf of tid without getting the page, in shared mode for
+     * READ_ONLY and in exclusive mode for READ_WRITE.  Index files lock the
+     * pages holding the entries they read or change this way, and only
+     * latch their other pages.
+     *
+     * @param wait whether to wait if another transaction holds a
+     *   conflicting lock; callers holding latches must not
+     * @return false if wait is false and the lock is not available
+     */
+    boolean lockPage(TransactionId tid, PageId pid, Permissions perm, boolean wait)
+        throws TransactionAbortedException, DbException {
+        if (tid == null)
+            return true;
+        if (versions.snapshotOf(tid) != null)
+            throw new DbException("snapshots can only read heap pages");
+        return lockManager.acquire(tid, pid, perm, wait);
+    }
+
+    /**
+     * Remember that tid inserted entry into file, or deleted it from file,
+     * so that an abort can undo it.
+     */
+    void rememberEntry(TransactionId tid, IndexFile file, Tuple entry, boolean inserted) {
+        if (tid == null)
+            return;
+        synchronized (entryChanges) {
+            ArrayList<EntryChange> changes = entryChanges.get(tid);
+            if (changes == null) {
+                changes = new ArrayList<EntryChange>();
+                entryChanges.put(tid, changes);
+            }
+            changes.add(new EntryChange(file, entry, inserted));
+        }
+    }
+
+    /** Note that tid changed the index pages pids. */
+    void wroteIndexPages(TransactionId tid, Collection<? extends PageId> pids) {
+        if (tid == null)
+            return;
+        synchronized (indexPages) {
+            HashSet<PageId> pages = indexPages.get(tid);
+            if (pages == null) {
+                pages = new HashSet<PageId>();
+                indexPages.put(tid, pages);
+            }
+            pages.addAll(pids);
+        }
+    }
+
+    /**
+     * Write the index pages tid changed to disk.  Their writers may need
+     * the pool's monitor while they hold the pages' latches, so the caller
+     * must not hold it.
+     */
+    void flushIndexPages(TransactionId tid) throws IOException {
+        HashSet<PageId> pages;
+        synchronized (indexPages) {
+            pages = indexPages.remove(tid);
+        }
+        if (pages == null)
+            return;
+        for (PageId pid : pages) {
+            Frame frame = frames.get(pid);
+            if (frame == null || !frame.pin())
+                continue; // evicted, which wrote it
+            try {
+                flushFrame(frame);
+            } finally {
+                frame.unpin();
+            }
+        }
+    }
+
+    /**
+     * Undo the index changes of an aborting transaction, newest first,
+     * except those to indexes it was building, which are dropped anyway.
+     * This pins and latches index pages, so the caller must not hold the
+     * pool's monitor.
+     */
+    void undoEntries(TransactionId tid) throws IOException {
+        ArrayList<EntryChange> changes;
+        synchronized (entryChanges) {
+            changes = entryChanges.remove(tid);
+        }
+        if (changes == null)
+            return;
+        Catalog catalog = Database.getCatalog();
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            EntryChange c = changes.get(i);
+            if (catalog.isBuilding(tid, c.file.getId()))
+                continue;
+            try {
+                c.file.undo(tid, c.entry, c.inserted);
+            } catch (DbException e) {
+                throw new IOException("could not undo a change to an index: " + e.getMessage());
+            } catch (TransactionAbortedException e) {
+                throw new IOException("could not undo a change to an index");
+            }
+        }
+    }
+
+    /**
+     * Remember what the record rid held before tid changes it for the first
+     * time, so that an abort can put it back.
+     *
+     * @param data the bytes of the record, or null if its slot is empty
+     */
+    void rememberRecord(TransactionId tid, RecordId rid, byte[] data) {
+        if (tid != null)
+            versions.rememberRecord(tid, rid.getPageId(), rid.tupleno(), data);
+    }
+
+    /**
+     * Latch a pinned page for reading or writing its contents.  Latches
+     * are short-term and are not transactional locks.
+     */
+    void latchPage(PageId pid, Permissions perm) {
+        Frame frame = frames.get(pid);
+        if (frame == null)
+            throw new IllegalStateException("page " + pid.pageNumber() + " is not pinned");
+        if (perm == Permissions.READ_WRITE)
+            frame.latch.writeLock().lock();
+        else
+            frame.latch.readLock().lock();
+    }
+
+    /** Release a latch taken by {@link #latchPage}. */
+    void unlatchPage(PageId pid, Permissions perm) {
+        Frame frame = frames.get(pid);
+        if (frame == null)
+            return;
+        if (perm == Permissions.READ_WRITE)
+            frame.latch.writeLock().unlock();
+        else
+            frame.latch.readLock().unlock();
+    }
+
+    /**
+     * Read a page that is not resident into a free frame.  Loads of the same
+     * page are serialized on a lock stripe so that concurrent misses read it
+     * only once; the pool monitor is only taken to make room for the frame.
+     */
+    private Frame loadFrame(PageId pid) throws DbException {
+        return loadFrame(pid, null, false);
+    }
+
+    private Frame loadFrame(PageId pid, BufferRing ring) throws DbException {
+        return loadFrame(pid, ring, false);
+    }
+
+    private Frame loadFrame(PageId pid, BufferRing ring, boolean prefetch) throws DbException {
+        synchronized (loadLocks[(pid.hashCode() & 0x7fffffff) % LOAD_STRIPES]) {
+            Frame frame = frames.get(pid);
+            if (frame != null)
+                return frame;
+
+            DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+            int size = PAGE_SIZE;
+            if (file instanceof HeapFile)
+                size = ((HeapFile)file).getPageSize();
+            else if (file instanceof IndexFile)
+                size = ((IndexFile)file).getPageSize();
+            Page page = file.readPage(pid);
+            if (page == null)
+                throw new DbException("could not read page " + pid.pageNumber());
+            ByteBuffer buffer = arena != null && page instanceof HeapPage ? arena.allocate(size) : null;
+            if (buffer != null)
+                ((HeapPage)page).moveTo(buffer);
+            frame = new Frame(page, size, this);
+            frame.buffer = buffer;
+            frame.prefetched = prefetch;
+            synchronized (this) {
+                try {
+                    if (ring != null && ring.isFull())
+                        recycle(ring.removeOldest());
+                    while (!frames.isEmpty() && usedBytes + frame.size > capacity)
+                        evictPage();
+                } catch (DbException e) {
+                    if (buffer != null)
+                        arena.free(buffer);
+                    throw e;
+                }
+                frames.put(pid, frame);
+                usedBytes += frame.size;
+                policy.frameAdded(frame);
+                if (ring != null)
+                    ring.add(frame);
+            }
+            if (prefetch)
+                pagesPrefetched.incrementAndGet();
+            return frame;
+        }
+    }
+
+    /**
+     * Set how many pages ahead a sequential scan reads.  A scan never reads
+     * ahead by more than a quarter of the pool, or half of its ring.
+     *
+     * @param pages the read-ahead window; 0 disables read-ahead
+     */
+    public void setPrefetchWindow(int pages) {
+        prefetchWindow = pages;
+    }
+
+    /** @return the read-ahead window for a scan reading through ring */
+    int prefetchWindow(BufferRing ring) {
+        int window = Math.min(prefetchWindow, numPages / 4);
+        if (ring != null)
+            window = Math.min(window, ring.size() / 2);
+        return window;
+    }
+
+    /**
+     * Asynchronously read a page that a scan is about to ask for.  This is
+     * only a hint: nothing happens if the page is resident or already being
+     * read, and failures are ignored.  No locks are taken; the scan still
+     * gets its lock when it asks for the page.
+     *
+     * @param pid the ID of the page to read
+     * @param ring the scan's ring, or null
+     */
+    public void prefetchPage(final PageId pid, final BufferRing ring) {
+        if (frames.containsKey(pid) || !prefetching.add(pid))
+            return;
+        IO_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (!frames.containsKey(pid))
+                        loadFrame(pid, ring, true);
+                } catch (Exception e) {
+                    // a failed read-ahead is retried by the scan itself
+                } finally {
+                    prefetching.remove(pid);
+                }
+            }
+        });
+    }
+
+    private void countPrefetchHit(Frame frame) {
+        if (frame.prefetched) {
+            frame.prefetched = false;
+            prefetchHits.incrementAndGet();
+        }
+    }
+
+    /** @return the number of pages read by read-ahead */
+    public long getPagesPrefetched() {
+        return pagesPrefetched.get();
+    }
+
+    /**
+     * @return the number of pages read by read-ahead that were later asked
+     *   for; divided by {@link #getPagesPrefetched} this is the hit rate
+     */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -143,6 +770,7 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for proj1
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -153,13 +781,14 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for proj1
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for proj1
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -173,17 +802,169 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for proj1
+        try {
+            if (commit) {
+                flushPages(tid);
+                flushIndexPages(tid);
+                for (PageId pid : lockManager.writtenPages(tid)) {
+                    Frame frame = frames.get(pid);
+                    if (frame != null)
+                        frame.page.setBeforeImage();
+                }
+                versions.commit(tid);
+                synchronized (entryChanges) {
+                    entryChanges.remove(tid);
+                }
+                Database.getCatalog().commitIndexes(tid);
+            } else {
+                undoEntries(tid);
+                flushIndexPages(tid);
+                undo(tid);
+                versions.abort(tid);
+                dropIndexes(tid);
+            }
+        } finally {
+            lockManager.releaseAll(tid);
+        }
+    }
+
+    /**
+     * Undo the heap changes of aborting tid in the pool, and force the
+     * undone pages, before its ABORT record is logged.  The rest of the
+     * abort then finds nothing left to undo.
+     *
+     * @see LogFile#rollback
+     */
+    void undoBeforeAbort(TransactionId tid) throws IOException {
+        undo(tid);
+        versions.abort(tid);
+    }
+
+    /**
+     * Undo the changes of an aborting transaction, newest first on each
+     * page, using the versions it left in the version store.  Pages that
+     * were written to disk meanwhile are read back and undone in the pool,
+     * and like the pages of a committing transaction, the undone pages are
+     * then forced to disk.
+     */
+    private void undo(TransactionId tid) throws IOException {
+        for (VersionStore.Version v : versions.versionsOf(tid)) {
+            DbFile file = Database.getCatalog().getDbFile(v.pid.getTableId());
+            if (file instanceof HeapFile) {
+                ((HeapFile)file).undo(tid, v);
+            } else {
+                // waits for a write of the page that is in progress
+                discardPage(v.pid);
+            }
+        }
+        flushPages(tid);
+    }
+
+    /**
+     * Drop the indexes an aborting transaction was building: their pages
+     * are discarded, and their files deleted once the catalog forgets them.
+     */
+    private void dropIndexes(TransactionId tid) throws IOException {
+        for (Catalog.Index index : Database.getCatalog().abortIndexes(tid)) {
+            int id = index.getFile().getId();
+            for (PageId pid : frames.keySet()) {
+                if (pid.getTableId() == id)
+                    discardPage(pid);
+            }
+            File f = index.getFile().getFile();
+            if (f.exists() && !f.delete())
+                throw new IOException("could not delete " + f);
+        }
+    }
+
+    /**
+     * Follow the write-ahead rule for a page that is about to be written:
+     * log an UPDATE record for every running transaction that changed it,
+     * whose before image is the page without that transaction's changes,
+     * and stamp the page with the LSN of the last record.  The pages of
+     * index files need none of this: each change to them is logged as it
+     * is made; see {@link BTreeFile}.  The caller holds the page's latch,
+     * and forces the log up to the returned LSN before writing the page.
+     *
+     * @return the LSN the log must be forced to, 0 if none
+     */
+    private long logChanges(Page page) throws IOException {
+        if (page instanceof BTreePage)
+            return ((BTreePage)page).getLsn();
+        if (page instanceof HashPage)
+            return ((HashPage)page).getLsn();
+        if (!(page instanceof HeapPage) || page.isDirty() == null)
+            return 0;
+        HeapPage heapPage = (HeapPage)page;
+        LogFile log = Database.getLogFile();
+        long lsn = heapPage.getLsn();
+        for (Map.Entry<TransactionId, HeapPage> e : versions.beforeImages(heapPage).entrySet()) {
+            if (log.isRunning(e.getKey()))
+                lsn = Math.max(lsn, log.logWrite(e.getKey(), e.getValue(), page));
+        }
+        heapPage.setLsn(lsn);
+        return lsn;
+    }
+
+    /** Note that page pid is about to be logged and written. */
+    private void startWrite(PageId pid) {
+        long lsn = Database.getLogFile().endLsn();
+        synchronized (writing) {
+            long[] w = writing.get(pid);
+            if (w == null)
+                writing.put(pid, new long[] { lsn, 1 });
+            else
+                w[1]++;
+        }
+    }
+
+    /** Note that a write of page pid that began with startWrite is over. */
+    private void endWrite(PageId pid) {
+        synchronized (writing) {
+            long[] w = writing.get(pid);
+            if (--w[1] == 0)
+                writing.remove(pid);
+        }
+    }
+
+    /**
+     * The dirty page table for a checkpoint: the pages whose logged changes
+     * may not be on disk yet, each with the LSN recovery has to redo it
+     * from: those being written, and the pages of index files whose changes
+     * were logged as they were made.  This does not wait for any page.
+     */
+    Map<PageId, Long> dirtyPages() {
+        HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+        for (Frame frame : frames.values()) {
+            long recLsn = 0;
+            if (frame.page instanceof BTreePage)
+                recLsn = ((BTreePage)frame.page).getRecLsn();
+            else if (frame.page instanceof HashPage)
+                recLsn = ((HashPage)frame.page).getRecLsn();
+            if (recLsn > 0)
+                dirty.put(frame.page.getId(), recLsn);
+        }
+        synchronized (writing) {
+            for (Map.Entry<PageId, long[]> e : writing.entrySet()) {
+                Long recLsn = dirty.get(e.getKey());
+                if (recLsn == null || e.getValue()[0] < recLsn)
+                    dirty.put(e.getKey(), e.getValue()[0]);
+            }
+        }
+        return dirty;
     }
 
     /**
      * Add a tuple to the specified table behalf of transaction tid.  Will
-     * acquire a write lock on the page the tuple is added to(Lock 
-     * acquisition is not needed for lab2). May block if the lock cannot 
+     * acquire a write lock on the record the tuple is added as, and
+     * intention locks on its page and table, so that other writers can
+     * still add to the same page. May block if the lock cannot 
      * be acquired.
      * 
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and updates cached versions of any pages that have 
      * been dirtied so that future requests see up-to-date pages. 
+     * Also adds the tuple's entry to each secondary index of the table.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -193,8 +974,10 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for proj1
-        HeapFile heapfile = (HeapFile)Database.getCatalog().getDbFile(tableId);
-        ArrayList<Page> pages = heapfile.insertTuple(tid, t);
+        DbFile file = Database.getCatalog().getDbFile(tableId);
+        ArrayList<Page> pages = file.insertTuple(tid, t);
+        for (Catalog.Index index : Database.getCatalog().getIndexes(tableId, tid))
+            index.getFile().insertTuple(tid, index.entry(t));
 //        for(Page p : pages){
 //            try{
 //                heapfile.writePage(p);
@@ -207,13 +990,14 @@ public class BufferPool {
 
     /**
      * Remove the specified tuple from the buffer pool.
-     * Will acquire a write lock on the page the tuple is removed from. May block if
-     * the lock cannot be acquired.
+     * Will acquire a write lock on the tuple's record, and intention locks on
+     * its page and table. May block if the lock cannot be acquired.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit.  Does not need to update cached versions of any pages that have 
      * been dirtied, as it is not possible that a new page was created during the deletion
-     * (note difference from addTuple).
+     * (note difference from addTuple).  Also removes the tuple's entry from
+     * each secondary index of the table.
      *
      * @param tid the transaction adding the tuple.
      * @param t the tuple to add
@@ -223,8 +1007,15 @@ public class BufferPool {
         // some code goes here
         // not necessary for proj1
         int tableId = t.getRecordId().getPageId().getTableId();
-        HeapFile heapfile = (HeapFile)Database.getCatalog().getDbFile(tableId);
-        Page page = heapfile.deleteTuple(tid, t);
+        DbFile file = Database.getCatalog().getDbFile(tableId);
+        // the entries are taken while the tuple can still be read
+        List<Catalog.Index> indexes = Database.getCatalog().getIndexes(tableId, tid);
+        ArrayList<Tuple> entries = new ArrayList<Tuple>();
+        for (Catalog.Index index : indexes)
+            entries.add(index.entry(t));
+        Page page = file.deleteTuple(tid, t);
+        for (int i = 0; i < indexes.size(); i++)
+            indexes.get(i).getFile().deleteTuple(tid, entries.get(i));
 
     }
 
@@ -236,10 +1027,110 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for proj1
-        for(PageId pid : Nodemap.keySet()){
-            flushPage(pid);
+        writeDirtyPages(Integer.MAX_VALUE, true);
+    }
+
+    /**
+     * Write up to max dirty pages to disk in page-number order, coalescing
+     * runs of adjacent pages of a HeapFile into single writes.  Each page is
+     * pinned and read-latched while it is written, so it can neither be
+     * evicted nor modified under the write.
+     *
+     * @param max the most pages to write
+     * @param includePinned whether to also write pages that are pinned,
+     *   and so may have to wait for the writer that pinned them; if not,
+     *   pages latched for writing are skipped too
+     * @return the number of pages written
+     */
+    int writeDirtyPages(int max, boolean includePinned) throws IOException {
+        ArrayList<Frame> dirty = new ArrayList<Frame>();
+        for (Frame frame : frames.values()) {
+            if (frame.page.isDirty() != null && (includePinned || !frame.isPinned()))
+                dirty.add(frame);
+        }
+        Collections.sort(dirty, new Comparator<Frame>() {
+            public int compare(Frame a, Frame b) {
+                PageId pa = a.page.getId(), pb = b.page.getId();
+                if (pa.getTableId() != pb.getTableId())
+                    return pa.getTableId() < pb.getTableId() ? -1 : 1;
+                return pa.pageNumber() - pb.pageNumber();
+            }
+        });
+
+        int written = 0;
+        ArrayList<Frame> run = new ArrayList<Frame>();
+        for (Frame frame : dirty) {
+            if (written + run.size() >= max)
+                break;
+            // written before frame is pinned, so that nothing leaks if
+            // the write fails
+            if (!run.isEmpty() && !adjacent(run.get(run.size() - 1), frame)) {
+                written += writeRun(run);
+                run.clear();
+            }
+            if (!frame.pin())
+                continue; // being evicted, which writes it anyway
+            if (includePinned) {
+                frame.latch.readLock().lock();
+            } else if (!frame.latch.readLock().tryLock()) {
+                // the page is being changed; waiting for it while holding
+                // the latches of the run could deadlock with its writer
+                frame.unpin();
+                continue;
+            }
+            if (frame.page.isDirty() == null) {
+                release(frame);
+                continue;
+            }
+            run.add(frame);
         }
+        written += writeRun(run);
+        return written;
+    }
 
+    private static boolean adjacent(Frame a, Frame b) {
+        PageId pa = a.page.getId(), pb = b.page.getId();
+        return pa.getTableId() == pb.getTableId() && pa.pageNumber() + 1 == pb.pageNumber();
+    }
+
+    /** Write a run of pinned, latched, adjacent frames, then release them. */
+    private int writeRun(ArrayList<Frame> run) throws IOException {
+        if (run.isEmpty())
+            return 0;
+        for (Frame frame : run)
+            startWrite(frame.page.getId());
+        try {
+            int tableId = run.get(0).page.getId().getTableId();
+            if (!Database.getCatalog().hasTable(tableId))
+                return 0; // an index being dropped, whose pages are discarded
+            DbFile file = Database.getCatalog().getDbFile(tableId);
+            long lsn = 0;
+            for (Frame frame : run)
+                lsn = Math.max(lsn, logChanges(frame.page));
+            Database.getLogFile().forceTo(lsn);
+            if (file instanceof HeapFile && run.size() > 1) {
+                ArrayList<Page> pages = new ArrayList<Page>(run.size());
+                for (Frame frame : run)
+                    pages.add(frame.page);
+                ((HeapFile)file).writePages(pages);
+            } else {
+                for (Frame frame : run)
+                    file.writePage(frame.page);
+            }
+            for (Frame frame : run)
+                frame.page.markDirty(false, null);
+            return run.size();
+        } finally {
+            for (Frame frame : run) {
+                endWrite(frame.page.getId());
+                release(frame);
+            }
+        }
+    }
+
+    private static void release(Frame frame) {
+        frame.latch.readLock().unlock();
+        frame.unpin();
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -250,6 +1141,29 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
 	// not necessary for proj1
+        boolean interrupted = false;
+        while (true) {
+            Frame frame = frames.get(pid);
+            if (frame == null)
+                break;
+            if (frame.retire()) {
+                dropFrame(frame);
+                break;
+            }
+            // pinned by a writer or flush for a moment; wait() lets go of
+            // the pool's monitor, which the pin holder may need to unpin
+            frame.waiters.incrementAndGet();
+            try {
+                while (frame.pins.get() > 0)
+                    wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } finally {
+                frame.waiters.decrementAndGet();
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
     /**
@@ -259,12 +1173,27 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for proj1
-        if(!Nodemap.containsKey(pid)) return;
-        Page page = Nodemap.get(pid).getPage();
-        if(page.isDirty() == null) return;
+        Frame frame = frames.get(pid);
+        if (frame == null) return;
+        flushFrame(frame);
+    }
 
-        Database.getCatalog().getDbFile(pid.getTableId()).writePage(page);
-        page.markDirty(false, null);
+    private void flushFrame(Frame frame) throws IOException {
+        Page page = frame.page;
+        frame.latch.readLock().lock();
+        try {
+            if (page.isDirty() == null) return;
+            startWrite(page.getId());
+            try {
+                Database.getLogFile().forceTo(logChanges(page));
+                Database.getCatalog().getDbFile(page.getId().getTableId()).writePage(page);
+                page.markDirty(false, null);
+            } finally {
+                endWrite(page.getId());
+            }
+        } finally {
+            frame.latch.readLock().unlock();
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
@@ -272,15 +1201,67 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for proj1
+        for (PageId pid : lockManager.writtenPages(tid)) {
+            Frame frame = frames.get(pid);
+            if (frame != null)
+                flushFrame(frame);
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the pool's {@link EvictionPolicy}.
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for proj1
+        while (true) {
+            Frame victim = policy.chooseVictim();
+            if (victim == null)
+                throw new DbException("all pages in the buffer pool are pinned");
+            if (!victim.retire())
+                continue; // pinned since we looked at it
+            if (victim.page.isDirty() != null && writer != null)
+                writer.wakeUp(); // the writer is falling behind
+            removeFrame(victim);
+            return;
+        }
+    }
+
+    /**
+     * Evict a frame that a scan ring is done with, unless it has been
+     * evicted already or someone pinned it in the meantime.
+     */
+    private synchronized void recycle(Frame frame) throws DbException {
+        if (frames.get(frame.page.getId()) != frame || !frame.retire())
+            return;
+        removeFrame(frame);
+    }
+
+    /** Flush a frame claimed by {@link Frame#retire} and drop it from the pool. */
+    private void removeFrame(Frame frame) throws DbException {
+        PageId pid = frame.page.getId();
+        try {
+            flushFrame(frame);
+        } catch (IOException e) {
+            frame.pins.set(0);
+            throw new DbException("could not flush page " + pid.pageNumber() + " on eviction");
+        }
+        dropFrame(frame);
+    }
+
+    /** Remove a retired frame from the pool without writing it. */
+    private void dropFrame(Frame frame) {
+        frames.remove(frame.page.getId());
+        usedBytes -= frame.size;
+        policy.frameRemoved(frame);
+        if (frame.buffer != null) {
+            // whoever still holds the page keeps reading it from the heap
+            ((HeapPage)frame.page).moveToHeap();
+            arena.free(frame.buffer);
+            frame.buffer = null;
+        }
     }
 
 }
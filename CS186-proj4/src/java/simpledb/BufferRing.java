@@ -0,0 +1,43 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BufferRing is a small private set of buffer pool frames used by a bulk
+ * sequential scan.  Pages the scan has to read are placed in the ring, and
+ * once the ring is full the scan recycles its own oldest frame instead of
+ * evicting pages that other queries are still using.  A page that is
+ * already resident is simply used where it is.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)
+ */
+public class BufferRing {
+
+    private final int size;
+    private final ArrayDeque<BufferPool.Frame> frames;
+
+    /**
+     * @param size the number of frames the ring may hold
+     */
+    public BufferRing(int size) {
+        this.size = size;
+        this.frames = new ArrayDeque<BufferPool.Frame>(size);
+    }
+
+    /** @return the number of frames the ring may hold */
+    public int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return frames.size() >= size;
+    }
+
+    void add(BufferPool.Frame f) {
+        frames.addLast(f);
+    }
+
+    BufferPool.Frame removeOldest() {
+        return frames.pollFirst();
+    }
+}
@@ -3,8 +3,13 @@ package simpledb;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -20,6 +25,66 @@ public class Catalog {
     private HashMap<Integer, String> id2Name; 
     private HashMap<String, Integer> Name2id;
     private HashMap<Integer, String> id2Pkey;
+    /**
+     * The committed indexes of each table.  Read without the catalog's
+     * lock, so its lists are replaced rather than changed.
+     */
+    private ConcurrentHashMap<Integer, List<Index>> id2Indexes;
+    private HashMap<TransactionId, ArrayList<Index>> building;
+    private File schemaFile;
+
+    /**
+     * A line of the catalog file describing a secondary index, which
+     * {@link #commitIndexes} adds after the tables: index name on table
+     * using btree or hash (field).  The index is read from name.idx in the
+     * folder of the catalog file.
+     */
+    static final Pattern INDEX_LINE = Pattern.compile(
+            "\\s*index\\s+(\\w+)\\s+on\\s+(\\w+)\\s+using\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * A secondary index of a table: a file holding, for each tuple of the
+     * table, the value of one field and the record id of the tuple: a
+     * {@link BTreeFile}, or a {@link HashFile} for equality lookups only.
+     *
+     * @see BTreeFile#indexTupleDesc
+     */
+    public static class Index {
+        private final IndexFile file;
+        private final int tableId;
+        private final int field;
+
+        public Index(IndexFile file, int tableId, int field) {
+            this.file = file;
+            this.tableId = tableId;
+            this.field = field;
+        }
+
+        /** @return the file holding the index */
+        public IndexFile getFile() {
+            return file;
+        }
+
+        /** @return the id of the indexed table */
+        public int getTableId() {
+            return tableId;
+        }
+
+        /** @return the index of the indexed field in the table's tuples */
+        public int getField() {
+            return field;
+        }
+
+        /** @return the entry of this index for t, a tuple of the table with a record id */
+        public Tuple entry(Tuple t) {
+            Tuple e = new Tuple(file.getTupleDesc());
+            e.setField(0, t.getField(field));
+            e.setField(1, new IntField(t.getRecordId().getPageId().pageNumber()));
+            e.setField(2, new IntField(t.getRecordId().tupleno()));
+            return e;
+        }
+    }
 
     /**
      * Constructor.
@@ -31,6 +96,8 @@ public class Catalog {
         id2Name = new HashMap<Integer, String>();
         id2Dfile = new HashMap<Integer, DbFile>();
         Name2id = new HashMap<String, Integer>();
+        id2Indexes = new ConcurrentHashMap<Integer, List<Index>>();
+        building = new HashMap<TransactionId, ArrayList<Index>>();
     }
 
     /**
@@ -45,7 +112,9 @@ public class Catalog {
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
         int tempid = file.getId();
-        id2Dfile.put(tempid, file);
+        DbFile old = id2Dfile.put(tempid, file);
+        if (old != null && old != file)
+            close(old);
         id2Name.put(tempid, name);
         id2Pkey.put(tempid, pkeyField);
         Name2id.put(name, tempid);
@@ -66,6 +135,155 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a secondary index of field of table tableId to the catalog.  The
+     * index file is also added as a table of the given name, so that its
+     * pages can be read through the BufferPool.
+     *
+     * @param index the file holding the index, with tuples of the schema
+     *   {@link BTreeFile#indexTupleDesc} gives for the field's type
+     * @return the new catalog entry
+     */
+    public synchronized Index addIndex(IndexFile index, String name, int tableId, int field) {
+        addTable(index, name);
+        Index entry = new Index(index, tableId, field);
+        publish(entry);
+        return entry;
+    }
+
+    /**
+     * Add entry to the indexes of its table, copying the list, so that
+     * transactions iterating over the old one do not see it change.
+     */
+    private void publish(Index entry) {
+        ArrayList<Index> indexes = new ArrayList<Index>(getIndexes(entry.getTableId()));
+        indexes.add(entry);
+        id2Indexes.put(entry.getTableId(), indexes);
+    }
+
+    /**
+     * Add a secondary index that transaction tid is building to the
+     * catalog.  The index file is added as a table at once, like
+     * {@link #addIndex(IndexFile, String, int, int)} does, but only tid
+     * sees the index until it commits; if it aborts, the index is
+     * forgotten.
+     *
+     * @see #commitIndexes
+     * @see #abortIndexes
+     */
+    public synchronized Index addIndex(IndexFile index, String name, int tableId, int field,
+            TransactionId tid) {
+        addTable(index, name);
+        ArrayList<Index> indexes = building.get(tid);
+        if (indexes == null) {
+            indexes = new ArrayList<Index>();
+            building.put(tid, indexes);
+        }
+        Index entry = new Index(index, tableId, field);
+        indexes.add(entry);
+        return entry;
+    }
+
+    /**
+     * Make the indexes tid built visible to every transaction, and if the
+     * catalog was read with {@link #loadSchema}, add them to its file, so
+     * that they are loaded again with their tables.
+     */
+    public synchronized void commitIndexes(TransactionId tid) throws IOException {
+        ArrayList<Index> built = building.remove(tid);
+        if (built == null)
+            return;
+        if (schemaFile != null) {
+            for (Index entry : built)
+                saveIndex(entry);
+        }
+        for (Index entry : built)
+            publish(entry);
+    }
+
+    /** Append the line describing index to the catalog file. */
+    private void saveIndex(Index index) throws IOException {
+        TupleDesc td = getTupleDesc(index.getTableId());
+        String line = "index " + getTableName(index.getFile().getId())
+                + " on " + getTableName(index.getTableId())
+                + " using " + (index.getFile() instanceof HashFile ? "hash" : "btree")
+                + " (" + td.getFieldName(index.getField()) + ")\n";
+        // the last line of a hand-written file may lack its newline
+        RandomAccessFile raf = new RandomAccessFile(schemaFile, "r");
+        try {
+            if (raf.length() > 0) {
+                raf.seek(raf.length() - 1);
+                if (raf.read() != '\n')
+                    line = "\n" + line;
+            }
+        } finally {
+            raf.close();
+        }
+        FileWriter out = new FileWriter(schemaFile, true);
+        try {
+            out.write(line);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Forget the indexes tid was building, and their files as tables.
+     *
+     * @return the forgotten indexes, whose files the caller deletes
+     */
+    public synchronized List<Index> abortIndexes(TransactionId tid) {
+        ArrayList<Index> built = building.remove(tid);
+        if (built == null)
+            return Collections.<Index>emptyList();
+        for (Index entry : built) {
+            int id = entry.getFile().getId();
+            Name2id.remove(id2Name.remove(id));
+            id2Pkey.remove(id);
+            id2Dfile.remove(id);
+        }
+        return built;
+    }
+
+    /** @return true if tid is building the index whose file has id fileId */
+    public synchronized boolean isBuilding(TransactionId tid, int fileId) {
+        ArrayList<Index> built = building.get(tid);
+        if (built != null) {
+            for (Index entry : built) {
+                if (entry.getFile().getId() == fileId)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the secondary indexes of table tableid, possibly none */
+    public List<Index> getIndexes(int tableid) {
+        List<Index> indexes = id2Indexes.get(tableid);
+        return indexes == null ? Collections.<Index>emptyList() : indexes;
+    }
+
+    /**
+     * @return the secondary indexes of table tableid that tid sees: those
+     *   of {@link #getIndexes(int)}, and those tid is building
+     */
+    public synchronized List<Index> getIndexes(int tableid, TransactionId tid) {
+        ArrayList<Index> built = tid == null ? null : building.get(tid);
+        if (built == null)
+            return getIndexes(tableid);
+        ArrayList<Index> indexes = new ArrayList<Index>(getIndexes(tableid));
+        for (Index entry : built) {
+            if (entry.getTableId() == tableid)
+                indexes.add(entry);
+        }
+        return indexes;
+    }
+
+    /** @return true if the catalog has a table with the given id */
+    public boolean hasTable(int tableid) {
+        return id2Dfile.containsKey(tableid);
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -117,18 +335,40 @@ public class Catalog {
         return id2Name.get(id);
     }
     
+    /**
+     * Close the channels of a heap file the catalog forgets.  A failure
+     * only leaks the channel, so it is reported and otherwise ignored.
+     */
+    private static void close(DbFile file) {
+        if (!(file instanceof HeapFile))
+            return;
+        try {
+            ((HeapFile)file).close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        for (DbFile file : id2Dfile.values())
+            close(file);
         id2Name.clear();
         id2Pkey.clear();
         id2Dfile.clear();
         Name2id.clear();
+        id2Indexes.clear();
+        building.clear();
+        schemaFile = null;
     }
     
     /**
-     * Reads the schema from a file and creates the appropriate tables in the database.
+     * Reads the schema from a file and creates the appropriate tables in the database,
+     * and the secondary indexes of the tables that the file lists after them.
+     * Indexes built later are added to the file.
      * @param catalogFile
+     * @see #INDEX_LINE
      */
     public void loadSchema(String catalogFile) {
         String line = "";
@@ -137,7 +377,12 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                Matcher index = INDEX_LINE.matcher(line);
+                if (index.matches()) {
+                    loadIndex(baseFolder, index.group(1), index.group(2), index.group(3), index.group(4));
+                    continue;
+                }
+                //assume line is of the format name (field type, field type, ...) [pagesize n]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -168,7 +413,15 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                int pageSize = BufferPool.PAGE_SIZE;
+                String[] options = line.substring(line.indexOf(")") + 1).trim().split("\\s+");
+                if (options.length == 2 && options[0].toLowerCase().equals("pagesize"))
+                    pageSize = Integer.parseInt(options[1]);
+                else if (options[0].length() > 0) {
+                    System.out.println("Unknown table option " + options[0]);
+                    System.exit(0);
+                }
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, pageSize, false);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -178,7 +431,38 @@ public class Catalog {
         } catch (IndexOutOfBoundsException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
+        } catch (NoSuchElementException e) {
+            // an index of an unknown table or field
+            System.out.println ("Invalid catalog entry : " + line);
+            System.exit(0);
+        }
+        schemaFile = new File(catalogFile);
+    }
+
+    /**
+     * Add the index described by a line of the catalog file, whose table
+     * was read before it.
+     */
+    private void loadIndex(String baseFolder, String name, String table, String method,
+            String field) {
+        int tableId = getTableId(table);
+        TupleDesc td = getTupleDesc(tableId);
+        int fieldIndex = td.fieldNameToIndex(field);
+        File f = new File(baseFolder + "/" + name + ".idx");
+        TupleDesc itd = BTreeFile.indexTupleDesc(td.getFieldType(fieldIndex));
+        int pageSize = BTreeFile.indexPageSize(getDbFile(tableId));
+        IndexFile file;
+        if (method.equalsIgnoreCase("hash"))
+            file = new HashFile(f, 0, itd, pageSize);
+        else if (method.equalsIgnoreCase("btree"))
+            file = new BTreeFile(f, 0, itd, pageSize);
+        else {
+            System.out.println("Unknown index method " + method);
+            System.exit(0);
+            return;
         }
+        addIndex(file, name, tableId, fieldIndex);
+        System.out.println("Added index : " + name + " on " + table + "(" + field + ")");
     }
 }
 
@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CLOCK (second chance) eviction.  Frames sit on a ring swept by a clock
+ * hand; a hit only sets the frame's reference bit, and only if it is not
+ * already set, so hits neither allocate nor reorder anything.  The hand
+ * clears reference bits as it passes and evicts the first unpinned frame
+ * whose bit is already clear.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private final ArrayList<BufferPool.Frame> ring;
+    private final ArrayDeque<Integer> holes;
+    private int hand;
+
+    /**
+     * @param numPages the capacity of the buffer pool this policy serves
+     */
+    public ClockEvictionPolicy(int numPages) {
+        ring = new ArrayList<BufferPool.Frame>(numPages);
+        holes = new ArrayDeque<Integer>();
+        hand = 0;
+    }
+
+    /** @return the number of frames on the ring */
+    public int size() {
+        return ring.size() - holes.size();
+    }
+
+    public void frameAdded(BufferPool.Frame f) {
+        f.referenced = true;
+        if (holes.isEmpty()) {
+            f.slot = ring.size();
+            ring.add(f);
+        } else {
+            f.slot = holes.pop();
+            ring.set(f.slot, f);
+        }
+    }
+
+    public void frameAccessed(BufferPool.Frame f) {
+        if (!f.referenced)
+            f.referenced = true;
+    }
+
+    public BufferPool.Frame chooseVictim() {
+        int n = ring.size();
+        // two full sweeps: the first may only be clearing reference bits
+        for (int i = 0; i < 2 * n; i++) {
+            BufferPool.Frame f = ring.get(hand);
+            hand = (hand + 1) % n;
+            if (f == null || f.isPinned())
+                continue;
+            if (f.referenced) {
+                f.referenced = false;
+                continue;
+            }
+            return f;
+        }
+        return null;
+    }
+
+    public void frameRemoved(BufferPool.Frame f) {
+        if (f.slot < 0)
+            return;
+        ring.set(f.slot, null);
+        holes.push(f.slot);
+        f.slot = -1;
+    }
+}
@@ -16,11 +16,28 @@ public class Database {
     private BufferPool _bufferpool; 
 
     private final static String LOGFILENAME = "log";
+
+    /** System property giving the size of the buffer pool in bytes. */
+    public final static String BUFFERPOOL_BYTES = "simpledb.bufferpool.bytes";
+
+    /** System property that, if true, keeps buffer pool pages off the Java heap. */
+    public final static String BUFFERPOOL_OFFHEAP = "simpledb.bufferpool.offheap";
+
+    /**
+     * System property giving how many microseconds the log waits for more
+     * commits before forcing them together; 0 forces right away.
+     */
+    public final static String LOG_COMMIT_DELAY = "simpledb.log.commitdelay";
+
+    /** System property giving the size in bytes of the log's segment files. */
+    public final static String LOG_SEGMENT_SIZE = "simpledb.log.segmentsize";
     private LogFile _logfile;
 
     private Database() {
     	_catalog = new Catalog();
-    	_bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+    	_bufferpool = BufferPool.withCapacity(Long.getLong(BUFFERPOOL_BYTES,
+    	        (long)BufferPool.DEFAULT_PAGES * BufferPool.PAGE_SIZE),
+    	        Boolean.getBoolean(BUFFERPOOL_OFFHEAP));
     	try {
             _logfile = new LogFile(new File(LOGFILENAME));
         } catch(IOException e) {
@@ -50,12 +67,26 @@ public class Database {
         buffer pool and return it
     */
     public static BufferPool resetBufferPool(int pages) {
-        _instance._bufferpool = new BufferPool(pages);
+        _instance._bufferpool.stopPageWriter();
+        _instance._bufferpool = BufferPool.withCapacity((long)pages * BufferPool.PAGE_SIZE,
+                Boolean.getBoolean(BUFFERPOOL_OFFHEAP));
+        return _instance._bufferpool;
+    }
+
+    /** Method used for testing -- create a new buffer pool holding up to
+        bytes bytes of pages and return it
+    */
+    public static BufferPool resetBufferPoolBytes(long bytes) {
+        _instance._bufferpool.stopPageWriter();
+        _instance._bufferpool = BufferPool.withCapacity(bytes, Boolean.getBoolean(BUFFERPOOL_OFFHEAP));
         return _instance._bufferpool;
     }
 
     //reset the database, used for unit tests only.
     public static void reset() {
+        _instance._bufferpool.stopPageWriter();
+        _instance._logfile.stopFlusher();
+        _instance._catalog.clear();
     	_instance = new Database();
     }
 
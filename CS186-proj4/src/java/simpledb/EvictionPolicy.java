@@ -0,0 +1,32 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool gives up when
+ * it needs room for a new one.
+ * <p>
+ * {@link #frameAccessed} is called on every buffer pool hit without any
+ * lock held, so it must be cheap and may only touch the frame's volatile
+ * bookkeeping fields.  All other methods are called with the BufferPool
+ * monitor held.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /** A page was read into frame f. */
+    public void frameAdded(BufferPool.Frame f);
+
+    /** The page in frame f was requested and was already resident. */
+    public void frameAccessed(BufferPool.Frame f);
+
+    /**
+     * Pick an unpinned frame to evict.  The frame is not removed from the
+     * policy until {@link #frameRemoved} is called for it.
+     *
+     * @return the frame to evict, or null if every frame is pinned
+     */
+    public BufferPool.Frame chooseVictim();
+
+    /** Frame f is no longer part of the buffer pool. */
+    public void frameRemoved(BufferPool.Frame f);
+}
@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * FrameArena holds the bytes of buffer pool pages outside the Java heap,
+ * so that a large pool does not make the garbage collector trace or copy
+ * gigabytes of page data.
+ * <p>
+ * The arena allocates all of its memory up front, as direct buffers of
+ * SLAB_SIZE bytes, and carves frames out of them on demand.  Freed frames
+ * are kept on a free list per frame size.
+ * <p>
+ * Scans and tuples read pages they have not pinned, so a page may be
+ * evicted, and its frame freed, while a thread is still reading it.
+ * Evicted pages are therefore moved to the heap first (see
+ * {@link HeapPage#moveToHeap}), and frames are reclaimed by epochs: such
+ * a reader brackets its reads with {@link #enter} and {@link #exit},
+ * which publish the epoch it entered in, and a frame freed in epoch e is
+ * only handed out again once no reader that entered in e or earlier is
+ * still reading.  Readers that enter later can only see the page's heap
+ * copy.
+ * <p>
+ * When no frame is available, {@link #allocate} returns null and the pool
+ * keeps the page on the heap instead.
+ *
+ * @see BufferPool#withCapacity(long, boolean)
+ */
+public class FrameArena {
+
+    /** Bytes per direct buffer allocated from the system. */
+    private static final int SLAB_SIZE = 64 << 20;
+
+    /** Number of threads that can be reading unpinned frames at once. */
+    private static final int READERS = 64;
+
+    /** The current epoch; advanced whenever a frame is freed. */
+    private static final AtomicLong epoch = new AtomicLong(1);
+
+    /** The epoch each reader entered in, or 0 for a free slot. */
+    private static final AtomicLongArray readers = new AtomicLongArray(READERS);
+
+    /** A freed frame and the epoch it was freed in. */
+    private static class Retired {
+        final ByteBuffer frame;
+        final long epoch;
+
+        Retired(ByteBuffer frame, long epoch) {
+            this.frame = frame;
+            this.epoch = epoch;
+        }
+    }
+
+    private final long capacity;
+    private final ArrayList<ByteBuffer> slabs;
+    private int slab;
+    private int slabOffset;
+    private final HashMap<Integer, ArrayDeque<Retired>> free;
+
+    /** Allocate an arena for a pool of capacity bytes. */
+    public FrameArena(long capacity) {
+        this.capacity = capacity;
+        this.slabs = new ArrayList<ByteBuffer>();
+        for (long left = this.capacity; left > 0; left -= SLAB_SIZE)
+            slabs.add(ByteBuffer.allocateDirect((int)Math.min(SLAB_SIZE, left)));
+        this.free = new HashMap<Integer, ArrayDeque<Retired>>();
+    }
+
+    /** @return the number of bytes this arena holds */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns a frame of exactly size bytes, or null if the arena has none
+     * left.
+     */
+    synchronized ByteBuffer allocate(int size) {
+        ArrayDeque<Retired> frames = free.get(size);
+        if (frames != null && !frames.isEmpty() && frames.peek().epoch < oldestReader())
+            return frames.poll().frame;
+
+        while (slab < slabs.size()) {
+            ByteBuffer s = slabs.get(slab);
+            if (slabOffset + size <= s.capacity()) {
+                ByteBuffer frame = s.duplicate();
+                frame.position(slabOffset);
+                frame.limit(slabOffset + size);
+                slabOffset += size;
+                return frame.slice();
+            }
+            slab++;
+            slabOffset = 0;
+        }
+        return null;
+    }
+
+    /**
+     * Return a frame obtained from {@link #allocate}.  The page that was in
+     * it must have stopped using it already, so that readers entering from
+     * now on do not see it.
+     */
+    synchronized void free(ByteBuffer frame) {
+        ArrayDeque<Retired> frames = free.get(frame.capacity());
+        if (frames == null) {
+            frames = new ArrayDeque<Retired>();
+            free.put(frame.capacity(), frames);
+        }
+        frames.add(new Retired(frame, epoch.getAndIncrement()));
+    }
+
+    /**
+     * Start reading a page that may be in a frame without pinning it.  The
+     * page's buffer must be fetched again after this call.
+     *
+     * @return the reader slot to pass to {@link #exit}
+     */
+    static int enter() {
+        long e = epoch.get();
+        for (int i = (int)Thread.currentThread().getId(); ; i++) {
+            int slot = i & (READERS - 1);
+            if (readers.get(slot) == 0 && readers.compareAndSet(slot, 0, e))
+                return slot;
+            if (slot == READERS - 1)
+                Thread.yield(); // every slot is taken
+        }
+    }
+
+    /** Stop reading, after {@link #enter} returned slot. */
+    static void exit(int slot) {
+        readers.set(slot, 0);
+    }
+
+    /** @return the epoch the oldest current reader entered in */
+    private static long oldestReader() {
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < READERS; i++) {
+            long e = readers.get(i);
+            if (e != 0 && e < oldest)
+                oldest = e;
+        }
+        return oldest;
+    }
+}
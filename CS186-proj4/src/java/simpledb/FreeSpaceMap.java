@@ -0,0 +1,140 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have free slots, so that
+ * an insert can go straight to a page with room instead of reading every
+ * page of the table.
+ * <p>
+ * The map keeps one byte per page: the number of free slots, capped at 254,
+ * or UNKNOWN for pages it has not seen yet.  It is persisted in a side file
+ * next to the heap file ("&lt;name&gt;.fsm"), but only when a page turns
+ * full or gets room again, so the counts on disk are just hints.  That is
+ * enough: callers always check the page itself, and report what they found
+ * with {@link #update}.
+ *
+ * @see HeapFile#insertTuple
+ */
+class FreeSpaceMap {
+
+    /** Entry of a page the map has no information about. */
+    private static final int UNKNOWN = 0xff;
+    private static final int MAX_FREE = 0xfe;
+
+    private final File file;
+    private byte[] entries;
+    private int size;
+
+    /** No page below hint has free slots. */
+    private int hint;
+
+    private FileChannel channel;
+
+    /**
+     * Load the free space map of the heap file stored in heapFile.  A
+     * missing or short map file marks the remaining pages as unknown.
+     */
+    FreeSpaceMap(File heapFile) {
+        this.file = new File(heapFile.getPath() + ".fsm");
+        this.entries = new byte[0];
+        this.size = 0;
+        if (file.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    byte[] bytes = new byte[(int)file.length()];
+                    in.readFully(bytes);
+                    entries = bytes;
+                    size = bytes.length;
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // the map is only a hint; start over
+                entries = new byte[0];
+                size = 0;
+            }
+        }
+        this.hint = 0;
+    }
+
+    /**
+     * Forget the free space map of heapFile, e.g. because the file is being
+     * rewritten from scratch.
+     */
+    static void discard(File heapFile) {
+        new File(heapFile.getPath() + ".fsm").delete();
+    }
+
+    private int get(int pageNo) {
+        return pageNo < size ? entries[pageNo] & 0xff : UNKNOWN;
+    }
+
+    /**
+     * Returns the first page at or after from, and before numPages, that may
+     * have a free slot, or numPages if there is none.
+     */
+    synchronized int nextWithSpace(int from, int numPages) {
+        int i = Math.max(from, hint);
+        while (i < numPages && get(i) == 0)
+            i++;
+        if (from <= hint)
+            hint = i;
+        return i;
+    }
+
+    /**
+     * Record that page pageNo has freeSlots free slots.  A failure to
+     * persist the change is ignored, since the map is only a hint.
+     */
+    synchronized void update(int pageNo, int freeSlots) {
+        int old = get(pageNo);
+        int entry = Math.min(freeSlots, MAX_FREE);
+        if (pageNo >= size) {
+            if (pageNo >= entries.length) {
+                int length = Math.max(pageNo + 1, entries.length * 2);
+                entries = Arrays.copyOf(entries, length);
+            }
+            Arrays.fill(entries, size, pageNo, (byte)UNKNOWN);
+            size = pageNo + 1;
+        }
+        entries[pageNo] = (byte)entry;
+        if (entry > 0 && pageNo < hint)
+            hint = pageNo;
+
+        if (old == UNKNOWN || (old == 0) != (entry == 0)) {
+            try {
+                write(pageNo, entry);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Close the channel to the map file.  It is opened again by the next
+     * update that has to be persisted.
+     */
+    synchronized void close() throws IOException {
+        if (channel != null)
+            channel.close();
+        channel = null;
+    }
+
+    private void write(int pageNo, int entry) throws IOException {
+        if (channel == null || !channel.isOpen())
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        // pages in between that are still unknown must stay unknown on disk
+        long length = channel.size();
+        if (length < pageNo) {
+            byte[] unknown = new byte[(int)(pageNo - length)];
+            Arrays.fill(unknown, (byte)UNKNOWN);
+            channel.write(ByteBuffer.wrap(unknown), length);
+        }
+        channel.write(ByteBuffer.wrap(new byte[] { (byte)entry }), pageNo);
+    }
+}
@@ -0,0 +1,69 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A bucket page of a HashFile holds tuples of the file whose keys hash to
+ * its bucket, in no particular order, and the page number of the next
+ * overflow page of the bucket, 0 for none.  A free overflow page links to
+ * the next free one instead.
+ * <p>
+ * The format of a bucket page is the next page and the number of tuples as
+ * integers, followed by the tuples.  A page holds up to
+ * floor((page size - 8) / tuple size) tuples.
+ *
+ * @see HashFile
+ */
+public class HashBucketPage extends HashPage {
+
+    private static final int HEADER_SIZE = 8;
+
+    int next;
+    final ArrayList<Tuple> tuples;
+
+    /** Create a bucket page from a set of bytes of data read from disk. */
+    public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+        super(id, data);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        next = buf.getInt(0);
+        int count = buf.getInt(4);
+        if (count < 0 || count > maxTuples())
+            throw new IOException("corrupt bucket page " + id.pageNumber());
+        tuples = new ArrayList<Tuple>(count);
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_SIZE + i * td.getSize();
+            Tuple t = new Tuple(td);
+            for (int f = 0; f < td.numFields(); f++)
+                t.setField(f, td.getFieldType(f).parse(buf, offset + td.getOffset(f)));
+            tuples.add(t);
+        }
+    }
+
+    /** @return the most tuples this page can hold */
+    int maxTuples() {
+        return (pageSize - HEADER_SIZE) / td.getSize();
+    }
+
+    /** @return true if this page has no room for another tuple */
+    boolean isFull() {
+        return tuples.size() >= maxTuples();
+    }
+
+    /** @return the id of the next page, or null if this is the last */
+    HashPageId getNextId() {
+        return next == 0 ? null : new HashPageId(pid.getTableId(), next);
+    }
+
+    void write(ByteBuffer buf) {
+        buf.putInt(0, next);
+        buf.putInt(4, tuples.size());
+        for (int i = 0; i < tuples.size(); i++) {
+            int offset = HEADER_SIZE + i * td.getSize();
+            Tuple t = tuples.get(i);
+            for (int f = 0; f < td.numFields(); f++)
+                t.getField(f).serialize(buf, offset + td.getOffset(f));
+        }
+    }
+}
@@ -0,0 +1,799 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * HashFile is a DbFile that spreads its tuples over buckets by the hash of
+ * one key field, with linear hashing, so that an equality predicate on the
+ * key reads the meta page and the pages of one bucket, however large the
+ * file grows.
+ * <p>
+ * Page 0 of the file is a {@link HashMetaPage}; every other page is a
+ * {@link HashBucketPage}, either the primary page of a bucket or an
+ * overflow page chained to it.  The file starts with one bucket.  When an
+ * insert finds the chain of its bucket full, the file first splits the
+ * next bucket in turn, moving the tuples whose hash has the next higher
+ * bit set to a new bucket, and only adds an overflow page if the chain is
+ * still full.  So the number of buckets grows with the file, one at a
+ * time, and chains stay short unless many tuples share a key.  Overflow
+ * pages that become empty are freed and used again; buckets are never
+ * merged.
+ * <p>
+ * All pages are read through the BufferPool, and like the leaves of a
+ * {@link BTreeFile}, only buckets are locked: readers take shared locks,
+ * and writers exclusive locks, on the primary pages of the buckets they
+ * read or change, which cover their overflow pages too.  The meta page is
+ * only latched, and an insert or delete lets go of it once it has locked
+ * its bucket, which nobody can split while it is locked.  If the
+ * operation has to add or free a page, it starts over holding the meta
+ * page's write latch, so that such changes are made one at a time; a
+ * split only moves the tuples of a bucket whose lock it gets at once.
+ * Like a BTreeFile's, each operation is logged in one INDEX record, and
+ * an abort undoes the writer's changes entry by entry.
+ * <p>
+ * A HashFile can hold a table of its own, or serve as a secondary index of
+ * another table, holding the same entries as a B+ tree index; see
+ * {@link BTreeFile#indexTupleDesc} and {@link Catalog#addIndex}.
+ *
+ * @see BufferPool
+ */
+public class HashFile implements IndexFile {
+
+    private static final long serialVersionUID = 1L;
+
+    private final File f;
+    private final TupleDesc td;
+    private final int keyField;
+    private final int pageSize;
+    private transient FileChannel channel;
+
+    /**
+     * Constructs a hash file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this file
+     * @param keyField the field the tuples are hashed by
+     * @param td the tuple descriptor of the tuples in the file
+     */
+    public HashFile(File f, int keyField, TupleDesc td) {
+        this(f, keyField, td, BufferPool.PAGE_SIZE);
+    }
+
+    /**
+     * Constructs a hash file whose pages are pageSize bytes long.
+     *
+     * @param pageSize the page size of the file; see
+     *            {@link BufferPool#checkPageSize}
+     */
+    public HashFile(File f, int keyField, TupleDesc td, int pageSize) {
+        if (keyField < 0 || keyField >= td.numFields())
+            throw new IllegalArgumentException("invalid key field " + keyField);
+        this.f = f;
+        this.keyField = keyField;
+        this.td = td;
+        this.pageSize = BufferPool.checkPageSize(pageSize);
+    }
+
+    /**
+     * Build a hash index of field of table tableId in the file f,
+     * replacing whatever f held, and add it to the catalog under name,
+     * like {@link BTreeFile#createIndex}: other transactions only see the
+     * index once tid commits.  The table is locked against writers until
+     * tid ends.
+     *
+     * @return the catalog entry of the index
+     */
+    public static Catalog.Index createIndex(TransactionId tid, String name, int tableId,
+            int field, File f) throws DbException, IOException, TransactionAbortedException {
+        Catalog catalog = Database.getCatalog();
+        DbFile table = catalog.getDbFile(tableId);
+        Database.getBufferPool().lockTable(tid, tableId, Permissions.READ_ONLY);
+        if (f.exists() && !f.delete())
+            throw new IOException("could not replace " + f);
+        HashFile hash = new HashFile(f, 0,
+                BTreeFile.indexTupleDesc(table.getTupleDesc().getFieldType(field)),
+                BTreeFile.indexPageSize(table));
+        Catalog.Index index = catalog.addIndex(hash, name, tableId, field, tid);
+
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            hash.insertTuple(tid, index.entry(it.next()));
+        it.close();
+        return index;
+    }
+
+    /** Returns the File backing this HashFile on disk. */
+    public File getFile() {
+        return f;
+    }
+
+    /** @return the index of the field the tuples are hashed by */
+    public int keyField() {
+        return keyField;
+    }
+
+    /** @return the size in bytes of the pages of this file */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this HashFile: the hash code of
+     * the absolute file name, like a HeapFile's.
+     */
+    public int getId() {
+        return f.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    private synchronized FileChannel getChannel() throws IOException {
+        if (channel == null || !channel.isOpen())
+            channel = new RandomAccessFile(f, "rw").getChannel();
+        return channel;
+    }
+
+    /** @return the number of pages in this file, including page 0 */
+    public int numPages() {
+        return (int)(f.length() / pageSize);
+    }
+
+    /** A hash file only answers equality predicates on its key. */
+    public boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS;
+    }
+
+    /**
+     * @return the meta page and the primary page of the bucket; overflow
+     *   pages holding more matches are costed with the matches
+     */
+    public int estimateProbePages() {
+        return 2;
+    }
+
+    /** Parse page pid of a hash file from data. */
+    static HashPage createPage(HashPageId pid, byte[] data) throws IOException {
+        if (pid.pageNumber() == HashPageId.META)
+            return new HashMetaPage(pid, data);
+        return new HashBucketPage(pid, data);
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pageNum = pid.pageNumber();
+        // the pages set aside for buckets not added yet read as empty
+        if (pageNum < 0)
+            throw new IllegalArgumentException("page " + pageNum + " does not exist in this file");
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(pageSize);
+            long offset = (long)pageNum * pageSize;
+            FileChannel ch = getChannel();
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, offset + buf.position()) < 0) break;
+            }
+            return createPage(new HashPageId(pid.getTableId(), pageNum), buf.array());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        writeBytes(page.getId().pageNumber(), page.getPageData());
+    }
+
+    private void writeBytes(int pageNum, byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        long offset = (long)pageNum * pageSize;
+        FileChannel ch = getChannel();
+        while (buf.hasRemaining())
+            ch.write(buf, offset + buf.position());
+    }
+
+    private HashPageId pageId(int pageNum) {
+        return new HashPageId(getId(), pageNum);
+    }
+
+    /**
+     * @return the hash value of key: its hash code, with the bits mixed so
+     *   that the low bits the buckets are chosen by depend on all of them
+     */
+    static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /** @return the primary page of the bucket key hashes to, as meta says */
+    private HashPageId bucketId(HashMetaPage meta, Field key) {
+        return pageId(meta.bucketPage(meta.bucket(hash(key))));
+    }
+
+    /**
+     * The pages one operation on the file holds, each pinned and then
+     * latched, and those of them it changed.
+     */
+    private class Latches {
+        final TransactionId tid;
+        /** whether the operation may add or free pages, and so write-latches every page, the meta page first */
+        final boolean exclusive;
+        /** whether the operation undoes a change of tid, which holds the locks it needs already */
+        final boolean undo;
+        final HashMap<PageId, HashPage> pages = new HashMap<PageId, HashPage>();
+        final HashMap<PageId, Permissions> modes = new HashMap<PageId, Permissions>();
+        final LinkedHashMap<PageId, HashPage> written = new LinkedHashMap<PageId, HashPage>();
+        /** the bucket whose lock the operation has to wait for before it starts over */
+        HashPageId blocked;
+        Permissions blockedPerm;
+        /** the page the entry was added to or removed from, and its slot there, for logging just that */
+        HashBucketPage entryPage;
+        int entrySlot;
+        boolean entryAdded;
+
+        Latches(TransactionId tid, boolean exclusive, boolean undo) {
+            this.tid = tid;
+            this.exclusive = exclusive;
+            this.undo = undo;
+        }
+
+        /** @return pid, latched for reading, or for writing if the operation is exclusive */
+        HashPage read(HashPageId pid) throws DbException, TransactionAbortedException {
+            return latch(pid, exclusive ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+        }
+
+        /** @return pid, latched for changing it */
+        HashPage write(HashPageId pid) throws DbException, TransactionAbortedException {
+            HashPage page = latch(pid, Permissions.READ_WRITE);
+            written.put(pid, page);
+            return page;
+        }
+
+        /**
+         * A page latched for reading is let go of and latched again for
+         * writing, so only pages of a bucket tid has locked may be latched
+         * for reading first.
+         */
+        private HashPage latch(HashPageId pid, Permissions perm)
+                throws DbException, TransactionAbortedException {
+            BufferPool bp = Database.getBufferPool();
+            Permissions held = modes.get(pid);
+            if (held == null) {
+                pages.put(pid, (HashPage)bp.pinPage(null, pid, perm));
+                bp.latchPage(pid, perm);
+                modes.put(pid, perm);
+            } else if (held != perm && perm == Permissions.READ_WRITE) {
+                bp.unlatchPage(pid, held);
+                bp.latchPage(pid, perm);
+                modes.put(pid, perm);
+            }
+            return pages.get(pid);
+        }
+
+        /** Let go of pid, unless the operation changed it. */
+        void release(HashPageId pid) {
+            Permissions perm = modes.get(pid);
+            if (perm == null || written.containsKey(pid))
+                return;
+            BufferPool bp = Database.getBufferPool();
+            bp.unlatchPage(pid, perm);
+            bp.unpinPage(pid);
+            modes.remove(pid);
+            pages.remove(pid);
+        }
+
+        /**
+         * Lock the bucket whose primary page is pid for tid, or if another
+         * transaction holds it, note that the operation has to wait for it
+         * and start over.
+         *
+         * @return false if the operation has to start over
+         */
+        boolean lock(HashPageId pid, Permissions perm) throws DbException, TransactionAbortedException {
+            if (tryLock(pid, perm))
+                return true;
+            blocked = pid;
+            blockedPerm = perm;
+            return false;
+        }
+
+        /** @return true if tid holds the lock on pid, without waiting for it */
+        boolean tryLock(HashPageId pid, Permissions perm) throws DbException, TransactionAbortedException {
+            return undo || Database.getBufferPool().lockPage(tid, pid, perm, false);
+        }
+
+        /**
+         * Wait for the lock the operation could not get.  The caller holds
+         * no latches.
+         */
+        void waitForLock() throws DbException, TransactionAbortedException {
+            Database.getBufferPool().lockPage(tid, blocked, blockedPerm, true);
+        }
+
+        /** Note that the entry was added to page at slot, or removed from it. */
+        void changed(HashBucketPage page, int slot, boolean added) {
+            entryPage = page;
+            entrySlot = slot;
+            entryAdded = added;
+        }
+
+        /**
+         * Finish the operation: log the changed pages with entry in one
+         * INDEX record of the given kind, if tid is running, mark them
+         * dirty and let go of every page.  Like a BTreeFile's, the record
+         * holds just the slot of the entry if that is all that changed on
+         * a page logged since it was last written.
+         */
+        void done(int kind, Tuple entry) throws IOException {
+            try {
+                if (written.isEmpty())
+                    return;
+                LogFile log = Database.getLogFile();
+                boolean logged = tid != null && log.isRunning(tid);
+                int slot = entryPage != null && written.size() == 1 && entryPage.getRecLsn() != 0
+                    ? entrySlot : -1;
+                long from = log.endLsn();
+                for (HashPage page : written.values()) {
+                    page.markDirty(true, tid);
+                    if (logged)
+                        page.logging(from);
+                }
+                Database.getBufferPool().wroteIndexPages(tid, written.keySet());
+                if (logged) {
+                    long lsn = log.logIndexChange(tid, getId(), kind, entry, written.values(),
+                            slot, entryAdded);
+                    for (HashPage page : written.values())
+                        page.setLsn(lsn);
+                }
+            } finally {
+                releaseAll();
+            }
+        }
+
+        /** Let go of every page. */
+        void releaseAll() {
+            BufferPool bp = Database.getBufferPool();
+            for (PageId pid : pages.keySet()) {
+                Permissions perm = modes.get(pid);
+                if (perm != null)
+                    bp.unlatchPage(pid, perm);
+                bp.unpinPage(pid);
+            }
+            modes.clear();
+            pages.clear();
+        }
+    }
+
+    /** @return the last page of the chain starting at first, which tid has locked */
+    private HashBucketPage lastPage(Latches ch, HashPageId first) throws DbException, TransactionAbortedException {
+        HashBucketPage page = (HashBucketPage)ch.read(first);
+        while (page.next != 0) {
+            HashPageId next = page.getNextId();
+            ch.release(page.getId());
+            page = (HashBucketPage)ch.read(next);
+        }
+        return page;
+    }
+
+    private Tuple copy(Tuple t) {
+        Tuple c = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            c.setField(i, t.getField(i));
+        return c;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tuple does not match the schema of the file");
+        Tuple stored = copy(t);
+        boolean exclusive = false;
+        while (true) {
+            Latches ch = new Latches(tid, exclusive, false);
+            boolean inserted;
+            try {
+                inserted = insert(ch, t, stored);
+            } finally {
+                ch.done(LogFile.ENTRY_INSERTED, stored);
+            }
+            if (inserted) {
+                Database.getBufferPool().rememberEntry(tid, this, stored, true);
+                return new ArrayList<Page>(ch.written.values());
+            }
+            if (ch.blocked != null)
+                ch.waitForLock();
+            else
+                exclusive = true;
+        }
+    }
+
+    /**
+     * Insert stored, a copy of t, and set the record id of t.  Unless ch
+     * is exclusive, this only changes the last page of the bucket's chain,
+     * and gives up if that page is full.
+     *
+     * @return false if ch has to start over, exclusive or after waiting
+     *   for the bucket's lock
+     */
+    private boolean insert(Latches ch, Tuple t, Tuple stored)
+            throws DbException, IOException, TransactionAbortedException {
+        Field key = stored.getField(keyField);
+        HashMetaPage meta = (HashMetaPage)ch.read(pageId(HashPageId.META));
+        HashPageId first = bucketId(meta, key);
+        if (!ch.lock(first, Permissions.READ_WRITE))
+            return false;
+        // nobody splits a locked bucket, so unless pages are added, the
+        // meta page is not needed any more
+        if (!ch.exclusive)
+            ch.release(pageId(HashPageId.META));
+        HashBucketPage page = lastPage(ch, first);
+        if (page.isFull()) {
+            if (!ch.exclusive)
+                return false;
+            // an undo does not lock the buckets it would split
+            if (!ch.undo && split(ch))
+                page = lastPage(ch, bucketId(meta, key));
+        }
+        page = (HashBucketPage)ch.write(page.getId());
+        if (page.isFull()) {
+            HashBucketPage over = newPage(ch);
+            page.next = over.getId().pageNumber();
+            page = over;
+        }
+        page.tuples.add(stored);
+        ch.changed(page, page.tuples.size() - 1, true);
+        t.setRecordId(new RecordId(page.getId(), page.tuples.size() - 1));
+        return true;
+    }
+
+    /**
+     * Add the next bucket, and move the tuples of the bucket it splits
+     * from whose hash selects the new bucket to it.  Both buckets are
+     * locked for the writer first; if another transaction holds either
+     * lock, the file is not split.
+     *
+     * @return true if the file was split
+     */
+    private boolean split(Latches ch) throws DbException, IOException, TransactionAbortedException {
+        HashMetaPage meta = (HashMetaPage)ch.write(pageId(HashPageId.META));
+        int from = meta.maxBucket;
+        int to = from + 1;
+        if (to < 0)
+            return false; // no more buckets; chains just grow
+        int old = to - Integer.highestOneBit(to);
+        HashPageId first = pageId(meta.bucketPage(old));
+        HashPageId toId = pageId(meta.bucketPage(to));
+        // A bucket nobody else holds has only committed tuples, and moving
+        // them does not change what any transaction sees, so the locks
+        // taken here only keep others out while the split runs.  Only if
+        // tid used the old bucket must it keep the new one, where its own
+        // tuples may end up.
+        BufferPool bp = Database.getBufferPool();
+        boolean used = bp.holdsLock(ch.tid, first);
+        if (!ch.tryLock(first, Permissions.READ_WRITE))
+            return false;
+        if (!ch.tryLock(toId, Permissions.READ_WRITE)) {
+            if (!used)
+                bp.releasePage(ch.tid, first);
+            return false;
+        }
+        int high = HashMetaPage.group(to);
+        if (high != HashMetaPage.group(from))
+            meta.spares[high] = meta.spares[HashMetaPage.group(from)];
+        meta.maxBucket = to;
+
+        HashBucketPage firstPage = (HashBucketPage)ch.write(first);
+        ArrayList<Tuple> stay = new ArrayList<Tuple>();
+        ArrayList<Tuple> move = new ArrayList<Tuple>();
+        for (HashBucketPage page = firstPage; page != null;
+                page = page.next == 0 ? null : (HashBucketPage)ch.write(page.getNextId())) {
+            for (Tuple tup : page.tuples) {
+                if (meta.bucket(hash(tup.getField(keyField))) == to)
+                    move.add(tup);
+                else
+                    stay.add(tup);
+            }
+        }
+        fill(ch, firstPage, stay);
+        fill(ch, (HashBucketPage)ch.write(toId), move);
+        if (!used) {
+            bp.releasePage(ch.tid, first);
+            bp.releasePage(ch.tid, toId);
+        }
+        return true;
+    }
+
+    /**
+     * Replace the tuples of the chain starting at first by tuples, adding
+     * overflow pages as needed and freeing those left empty.
+     */
+    private void fill(Latches ch, HashBucketPage first, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        HashBucketPage page = first;
+        int i = 0;
+        while (true) {
+            page.tuples.clear();
+            while (i < tuples.size() && !page.isFull())
+                page.tuples.add(tuples.get(i++));
+            if (i == tuples.size())
+                break;
+            if (page.next == 0)
+                page.next = newPage(ch).getId().pageNumber();
+            page = (HashBucketPage)ch.write(page.getNextId());
+        }
+        int next = page.next;
+        page.next = 0;
+        while (next != 0) {
+            HashBucketPage rest = (HashBucketPage)ch.write(pageId(next));
+            next = rest.next;
+            freePage(ch, rest);
+        }
+    }
+
+    /**
+     * @return a new empty overflow page, one the file freed before if
+     *   there is one, otherwise one after the pages set aside for the
+     *   buckets of the current split group.  No chain holds it, so it
+     *   needs no lock.
+     */
+    private HashBucketPage newPage(Latches ch) throws DbException, IOException, TransactionAbortedException {
+        HashMetaPage meta = (HashMetaPage)ch.write(pageId(HashPageId.META));
+        if (meta.free != 0) {
+            HashBucketPage page = (HashBucketPage)ch.write(pageId(meta.free));
+            meta.free = page.next;
+            page.next = 0;
+            return page;
+        }
+        int g = HashMetaPage.group(meta.maxBucket);
+        int pageNum = 1 + (1 << g) + meta.spares[g];
+        meta.spares[g]++;
+        writeBytes(pageNum, new byte[pageSize]);
+        return (HashBucketPage)ch.write(pageId(pageNum));
+    }
+
+    /** Empty an overflow page that is no longer chained, and free it. */
+    private void freePage(Latches ch, HashBucketPage page)
+            throws DbException, TransactionAbortedException {
+        HashMetaPage meta = (HashMetaPage)ch.write(pageId(HashPageId.META));
+        page.tuples.clear();
+        page.next = meta.free;
+        meta.free = page.getId().pageNumber();
+    }
+
+    // see DbFile.java for javadocs
+    public Page deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        try {
+            boolean exclusive = false;
+            while (true) {
+                Latches ch = new Latches(tid, exclusive, false);
+                HashBucketPage page;
+                try {
+                    page = remove(ch, t);
+                } finally {
+                    ch.done(LogFile.ENTRY_DELETED, t);
+                }
+                if (page != null) {
+                    Database.getBufferPool().rememberEntry(tid, this, copy(t), false);
+                    return page;
+                }
+                if (ch.blocked != null)
+                    ch.waitForLock();
+                else
+                    exclusive = true;
+            }
+        } catch (IOException e) {
+            throw new DbException("could not delete tuple: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove t from its bucket.  Unless ch is exclusive, this gives up if
+     * t is the last tuple of an overflow page, which would be freed.
+     *
+     * @return the page t was on, or null if ch has to start over,
+     *   exclusive or after waiting for the bucket's lock
+     */
+    private HashBucketPage remove(Latches ch, Tuple t) throws DbException, TransactionAbortedException {
+        HashMetaPage meta = (HashMetaPage)ch.read(pageId(HashPageId.META));
+        HashPageId first = bucketId(meta, t.getField(keyField));
+        if (!ch.lock(first, Permissions.READ_WRITE))
+            return null;
+        if (!ch.exclusive)
+            ch.release(pageId(HashPageId.META));
+        HashBucketPage prev = null;
+        HashBucketPage page = (HashBucketPage)ch.read(first);
+        int i;
+        while ((i = indexOf(page, t)) < 0) {
+            if (page.next == 0)
+                throw new DbException("tuple is not a member of the file");
+            prev = page;
+            page = (HashBucketPage)ch.read(page.getNextId());
+        }
+        boolean empties = prev != null && page.tuples.size() == 1;
+        if (empties && !ch.exclusive)
+            return null;
+        page = (HashBucketPage)ch.write(page.getId());
+        page.tuples.remove(i);
+        ch.changed(page, i, false);
+        if (empties) {
+            prev = (HashBucketPage)ch.write(prev.getId());
+            prev.next = page.next;
+            freePage(ch, page);
+        }
+        return page;
+    }
+
+    /** @return the index of a tuple of page equal to t, or -1 */
+    private int indexOf(HashBucketPage page, Tuple t) {
+        RecordId rid = t.getRecordId();
+        if (rid != null && page.getId().equals(rid.getPageId()) && rid.tupleno() < page.tuples.size()
+                && sameFields(page.tuples.get(rid.tupleno()), t))
+            return rid.tupleno();
+        for (int i = 0; i < page.tuples.size(); i++) {
+            if (sameFields(page.tuples.get(i), t))
+                return i;
+        }
+        return -1;
+    }
+
+    private boolean sameFields(Tuple a, Tuple b) {
+        for (int i = 0; i < td.numFields(); i++) {
+            if (!a.getField(i).equals(b.getField(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Undo a change tid made to this file, like {@link BTreeFile#undo}.
+     * Putting an entry back never splits the file, since tid may not be
+     * able to lock the bucket a split would move tuples out of.
+     */
+    public void undo(TransactionId tid, Tuple entry, boolean inserted)
+            throws DbException, IOException, TransactionAbortedException {
+        Latches ch = new Latches(tid, true, true);
+        try {
+            if (inserted)
+                remove(ch, entry);
+            else
+                insert(ch, entry, copy(entry));
+        } finally {
+            ch.done(LogFile.ENTRY_UNDONE, entry);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashFileIterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples whose key satisfies ipred.  An
+     * equality predicate reads only the bucket of its value; any other
+     * predicate reads every bucket.
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new HashFileIterator(tid, ipred);
+    }
+
+    /**
+     * Iterates over the chains of the buckets, in bucket order, locking
+     * each bucket before reading it.  Buckets added meanwhile are read
+     * too: a split only moves tuples from a bucket nobody has locked to
+     * the new last bucket.
+     */
+    private class HashFileIterator implements DbFileIterator {
+        private static final long serialVersionUID = 1L;
+
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private final boolean equality;
+        private int bucket;
+        private int nextPage;
+        private Iterator<Tuple> tuples;
+        private Tuple next;
+
+        HashFileIterator(TransactionId tid, IndexPredicate ipred) {
+            this.tid = tid;
+            this.ipred = ipred;
+            this.equality = ipred != null && ipred.getOp() == Predicate.Op.EQUALS;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            next = null;
+            readBucket(0);
+        }
+
+        /**
+         * Lock bucket b, or the bucket of the value of an equality
+         * predicate, and start reading it.
+         *
+         * @return false if there is no bucket b
+         */
+        private boolean readBucket(int b) throws DbException, TransactionAbortedException {
+            while (true) {
+                Latches ch = new Latches(tid, false, false);
+                try {
+                    HashMetaPage meta = (HashMetaPage)ch.read(pageId(HashPageId.META));
+                    if (equality)
+                        b = meta.bucket(hash(ipred.getField()));
+                    else if (b > meta.maxBucket)
+                        return false;
+                    HashPageId first = pageId(meta.bucketPage(b));
+                    if (ch.lock(first, Permissions.READ_ONLY)) {
+                        bucket = b;
+                        readPage(ch, first);
+                        return true;
+                    }
+                } finally {
+                    ch.releaseAll();
+                }
+                ch.waitForLock();
+            }
+        }
+
+        /** Copy the tuples of page pid of a bucket tid has locked. */
+        private void readPage(Latches ch, HashPageId pid) throws DbException, TransactionAbortedException {
+            HashBucketPage page = (HashBucketPage)ch.read(pid);
+            // copied, so that changes to the page do not disturb the scan
+            ArrayList<Tuple> copies = new ArrayList<Tuple>(page.tuples.size());
+            for (int i = 0; i < page.tuples.size(); i++) {
+                Tuple t = copy(page.tuples.get(i));
+                t.setRecordId(new RecordId(pid, i));
+                copies.add(t);
+            }
+            tuples = copies.iterator();
+            nextPage = page.next;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while (next == null && tuples != null) {
+                if (!tuples.hasNext()) {
+                    if (nextPage != 0) {
+                        Latches ch = new Latches(tid, false, false);
+                        try {
+                            readPage(ch, pageId(nextPage));
+                        } finally {
+                            ch.releaseAll();
+                        }
+                    } else if (equality || !readBucket(bucket + 1)) {
+                        tuples = null;
+                    }
+                    continue;
+                }
+                Tuple t = tuples.next();
+                if (ipred == null || ipred.matches(t.getField(keyField)))
+                    next = t;
+            }
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            open();
+        }
+
+        public void close() {
+            tuples = null;
+            next = null;
+        }
+    }
+}
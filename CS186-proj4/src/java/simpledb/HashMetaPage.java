@@ -0,0 +1,65 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The first page of every HashFile.  It holds the number of the highest
+ * bucket, from which the hash masks follow, the page number of the first
+ * free overflow page, 0 for none, and for each split group the number of
+ * overflow pages added to the file up to the end of the group.
+ * <p>
+ * Buckets are numbered from 0, and split group g &gt; 0 holds buckets
+ * 2^(g-1) to 2^g - 1; group 0 holds bucket 0.  When the first bucket of a
+ * group is added, the pages of all buckets of the group are set aside at
+ * the end of the file, so a bucket's primary page is found from its number
+ * and the overflow counts alone: see {@link #bucketPage}.
+ *
+ * @see HashFile
+ */
+public class HashMetaPage extends HashPage {
+
+    /** The number of split groups, enough for any int bucket number. */
+    static final int GROUPS = 32;
+
+    int maxBucket;
+    int free;
+    final int[] spares = new int[GROUPS];
+
+    /** Create a meta page from a set of bytes of data read from disk. */
+    public HashMetaPage(HashPageId id, byte[] data) throws IOException {
+        super(id, data);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        maxBucket = buf.getInt(0);
+        free = buf.getInt(4);
+        for (int g = 0; g < GROUPS; g++)
+            spares[g] = buf.getInt(8 + g * 4);
+        if (maxBucket < 0)
+            throw new IOException("corrupt meta page");
+    }
+
+    /** @return the split group of bucket */
+    static int group(int bucket) {
+        return 32 - Integer.numberOfLeadingZeros(bucket);
+    }
+
+    /** @return the page number of the primary page of bucket */
+    int bucketPage(int bucket) {
+        int g = group(bucket);
+        return 1 + bucket + (g == 0 ? 0 : spares[g - 1]);
+    }
+
+    /** @return the bucket that holds the keys with hash value h */
+    int bucket(int h) {
+        int highMask = maxBucket == 0 ? 0 : (Integer.highestOneBit(maxBucket) << 1) - 1;
+        int b = h & highMask;
+        return b > maxBucket ? b & (highMask >>> 1) : b;
+    }
+
+    void write(ByteBuffer buf) {
+        buf.putInt(0, maxBucket);
+        buf.putInt(4, free);
+        for (int g = 0; g < GROUPS; g++)
+            buf.putInt(8 + g * 4, spares[g]);
+    }
+}
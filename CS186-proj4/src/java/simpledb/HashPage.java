@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * HashPage is the base of the pages of a HashFile.  Like a BTreePage, a
+ * hash page is parsed into Java objects when it is read, changed in place
+ * by the file while it holds the page's write latch, and serialized again
+ * by {@link #getPageData}.  The pages of a hash file are identified by
+ * {@link HashPageId}s, which need no category: page 0 is the
+ * {@link HashMetaPage}, and every other page a {@link HashBucketPage}.
+ *
+ * @see HashFile
+ */
+public abstract class HashPage implements Page {
+
+    final HashPageId pid;
+    final TupleDesc td;
+    final int keyField;
+    final int pageSize;
+
+    private TransactionId lasttid;
+    private boolean isdirty;
+    private byte[] oldData;
+
+    /** The end of the record that logged the last change to this page. */
+    private volatile long lsn;
+    /** The end of the log before the first change logged since the page was written, or 0. */
+    private volatile long recLsn;
+
+    /** Parse a page of the file that pid belongs to from data. */
+    HashPage(HashPageId pid, byte[] data) throws IOException {
+        this.pid = pid;
+        HashFile file = (HashFile)Database.getCatalog().getDbFile(pid.getTableId());
+        this.td = file.getTupleDesc();
+        this.keyField = file.keyField();
+        this.pageSize = file.getPageSize();
+        if (data.length < pageSize)
+            throw new IOException("page data is shorter than a page");
+        this.oldData = data.clone();
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.isdirty = dirty;
+        this.lasttid = dirty ? tid : null;
+        if (!dirty)
+            recLsn = 0;
+    }
+
+    long getLsn() {
+        return lsn;
+    }
+
+    long getRecLsn() {
+        return recLsn;
+    }
+
+    /** Like {@link BTreePage#logging}. */
+    void logging(long from) {
+        if (recLsn == 0)
+            recLsn = from;
+    }
+
+    /** Note that a change to this page was logged by a record ending at lsn. */
+    void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    public TransactionId isDirty() {
+        return isdirty ? lasttid : null;
+    }
+
+    public HashPage getBeforeImage() {
+        try {
+            return HashFile.createPage(pid, oldData);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        oldData = getPageData();
+    }
+
+    public byte[] getPageData() {
+        ByteBuffer buf = ByteBuffer.allocate(pageSize);
+        write(buf);
+        return buf.array();
+    }
+
+    /** Serialize this page into buf, a zeroed buffer of the page size. */
+    abstract void write(ByteBuffer buf);
+}
@@ -0,0 +1,79 @@
+package simpledb;
+
+/**
+ * Unique identifier for the pages of a HashFile.  Page 0 is the
+ * {@link HashMetaPage}, and every other page a {@link HashBucketPage}, so
+ * the id needs no category.  Like a {@link BTreePageId}, it is equal to
+ * the HeapPageId with the same numbers, like any other PageId.
+ *
+ * @see HashFile
+ */
+public class HashPageId implements PageId {
+
+    /** Page 0 of every HashFile, describing its buckets. */
+    public final static int META = 0;
+
+    private final int tableId;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific hash file.
+     *
+     * @param tableId The table that is being referenced
+     * @param pgNo The page number in that table.
+     */
+    public HashPageId(int tableId, int pgNo) {
+        this.tableId = tableId;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the page number in the table getTableId() associated with
+     *   this PageId
+     */
+    public int pageNumber() {
+        return pgNo;
+    }
+
+    /** @see HeapPageId#hashCode */
+    public int hashCode() {
+        return 31*tableId+pgNo;
+    }
+
+    /**
+     * Compares one PageId to another.
+     *
+     * @param o The object to compare against (must be a PageId)
+     * @return true if the objects are equal (e.g., page numbers and table
+     *   ids are the same)
+     */
+    public boolean equals(Object o) {
+        if(o == this) return true;
+        if(!(o instanceof PageId)) return false;
+        PageId target = (PageId)o;
+        return this.tableId == target.getTableId() && this.pgNo == target.pageNumber();
+    }
+
+    /**
+     *  Return a representation of this object as an array of
+     *  integers, for writing to disk.
+     */
+    public int[] serialize() {
+        int data[] = new int[2];
+
+        data[0] = tableId;
+        data[1] = pgNo;
+
+        return data;
+    }
+
+    public String toString() {
+        return (pgNo == META ? "meta" : "bucket") + " page " + pgNo + " of table " + tableId;
+    }
+}
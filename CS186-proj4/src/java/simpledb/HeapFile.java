@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -15,6 +18,9 @@ import java.util.*;
  */
 public class HeapFile implements DbFile {
 
+    /** Bytes per memory-mapped segment; keeps each mapping far below 2GB. */
+    private static final int SEGMENT_SIZE = 64 << 20;
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -24,11 +30,59 @@ public class HeapFile implements DbFile {
      */
     private TupleDesc td;
     private File file;
+    private boolean mapped;
+    private int pageSize;
+    private transient FileChannel channel;
+    private transient ArrayList<MappedByteBuffer> segments;
+    private transient FreeSpaceMap freeSpace;
 
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally
+     * reading its pages through a read-only memory mapping.  Mapped pages
+     * are parsed straight out of the mapping without first being copied
+     * into a heap buffer; they are still cached, pinned and evicted by the
+     * BufferPool like any other page.  Writes always go through the file
+     * channel, which the mapping observes.
+     *
+     * @param mapped true to read pages through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
+        this(f, td, BufferPool.PAGE_SIZE, mapped);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file whose pages are
+     * pageSize bytes long.  Tables that are mostly scanned sequentially
+     * can use larger pages to read more data per I/O.
+     *
+     * @param pageSize the page size of the file; see
+     *            {@link BufferPool#checkPageSize}
+     * @param mapped true to read pages through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, int pageSize, boolean mapped) {
         this.td = td;
         this.file = f;
+        this.mapped = mapped;
+        this.pageSize = BufferPool.checkPageSize(pageSize);
+    }
+
+    /**
+     * @return the size in bytes of the pages of this file
+     */
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * @return true if pages of this file are read through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return this.mapped;
     }
 
     /**
@@ -65,64 +119,140 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /**
+     * Returns the channel used for all page I/O on this file.  It is opened
+     * on first use and shared by every thread; positional reads and writes
+     * do not move a shared file pointer, so no further locking is needed.
+     */
+    private synchronized FileChannel getChannel() throws IOException {
+        if (channel == null || !channel.isOpen())
+            channel = new RandomAccessFile(this.file, "rw").getChannel();
+        return channel;
+    }
+
+    /**
+     * Close the channel of this file and that of its free space map, e.g.
+     * because the table is dropped.  Both are opened again if the file is
+     * used after this.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null)
+            channel.close();
+        channel = null;
+        if (freeSpace != null)
+            freeSpace.close();
+    }
+
+    /** Returns the free space map of this file, loading it on first use. */
+    private synchronized FreeSpaceMap freeSpaceMap() {
+        if (freeSpace == null)
+            freeSpace = new FreeSpaceMap(this.file);
+        return freeSpace;
+    }
+
+    /**
+     * Returns a buffer positioned over page pageNum of the memory mapping,
+     * mapping or re-mapping its segment if necessary, or null if the page is
+     * not completely inside the file.
+     */
+    private synchronized ByteBuffer mappedPage(int pageNum) throws IOException {
+        if (segments == null)
+            segments = new ArrayList<MappedByteBuffer>();
+        int pagesPerSegment = SEGMENT_SIZE / pageSize;
+        int seg = pageNum / pagesPerSegment;
+        int offset = (pageNum % pagesPerSegment) * pageSize;
+        while (segments.size() <= seg)
+            segments.add(null);
+
+        MappedByteBuffer segment = segments.get(seg);
+        if (segment == null || segment.capacity() < offset + pageSize) {
+            // the file has grown since the segment was mapped
+            FileChannel ch = getChannel();
+            long start = (long)seg * SEGMENT_SIZE;
+            long length = Math.min((long)SEGMENT_SIZE, ch.size() - start);
+            if (length < offset + pageSize)
+                return null;
+            segment = ch.map(FileChannel.MapMode.READ_ONLY, start, length);
+            segments.set(seg, segment);
+        }
+
+        ByteBuffer page = segment.duplicate();
+        page.position(offset);
+        page.limit(offset + pageSize);
+        return page;
+    }
+
     // see DbFile.java for javadocs
     //from file, pid, new an instance of Page
     public Page readPage(PageId pid)  {
         // some code goes here
-        byte[] buf = new byte[BufferPool.PAGE_SIZE];
-        Page page = null;
+        int pageNum = pid.pageNumber();
+        if(pageNum < 0 || pageNum >= numPages())
+            throw new IllegalArgumentException("page " + pageNum + " does not exist in this file");
+
         try{
-            FileInputStream fis = new FileInputStream(this.file);
-            int pageNum = pid.pageNumber();
-            int count = 0;
-            int n;
-            while(count != pageNum){
-                n = fis.read(buf);
-                count++;
-            }
-            while((n = fis.read(buf)) == -1){
+            if(mapped){
+                ByteBuffer page = mappedPage(pageNum);
+                if(page != null) return new HeapPage((HeapPageId)pid, page);
             }
 
-            page = new HeapPage((HeapPageId)pid, buf);
+            ByteBuffer buf = ByteBuffer.allocate(pageSize);
+            long offset = (long)pageNum * pageSize;
+            FileChannel ch = getChannel();
+            while(buf.hasRemaining()){
+                // a short last page is left zero-filled
+                if(ch.read(buf, offset + buf.position()) < 0) break;
+            }
+            return new HeapPage((HeapPageId)pid, buf.array(), false);
         }catch(IOException e){
             e.printStackTrace();
         }
-        return page;        // or use RandomAccessFile
-
-        //use randomAccessFile
-//        Page page = null;
-//        int pageNum = pid.pageNumber();
-//        byte[] data = new byte[BufferPool.PAGE_SIZE];
-//        try{
-//            RandomAccessFile raf = new RandomAccessFile(this.file,"r");
-//
-//            raf.seek(pageNum*BufferPool.PAGE_SIZE);
-//            raf.read(data);
-//
-//            page = new HeapPage((HeapPageId)pid, data);
-//        }
-//        catch(IOException e){
-//            e.printStackTrace();
-//        }
-//        return page;
-
+        return null;
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for proj1
-        byte[] pagedata = page.getPageData();
-        int pageNo = page.getId().pageNumber();
+        ByteBuffer buf = bufferOf(page);
+        long offset = (long)page.getId().pageNumber() * pageSize;
 
-        try{
-            RandomAccessFile raf = new RandomAccessFile(this.file, "rws");
+        FileChannel ch = getChannel();
+        while(buf.hasRemaining()){
+            ch.write(buf, offset + buf.position());
+        }
+    }
 
-            raf.seek(pageNo*BufferPool.PAGE_SIZE > raf.length() ? raf.length() : pageNo*BufferPool.PAGE_SIZE);
-            raf.write(pagedata);
-            raf.close();
-        }catch(IOException e){
-            e.printStackTrace();
+    /** The bytes to write for page, without a copy where the page allows it. */
+    private static ByteBuffer bufferOf(Page page) {
+        return page instanceof HeapPage ? ((HeapPage)page).pageData() : ByteBuffer.wrap(page.getPageData());
+    }
+
+    /**
+     * Write a run of pages with consecutive page numbers to disk with a
+     * single gathering write.
+     *
+     * @param pages the pages to write, in page number order
+     * @throws IllegalArgumentException if the page numbers are not consecutive
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        if(pages.isEmpty()) return;
+        int first = pages.get(0).getId().pageNumber();
+        ByteBuffer[] bufs = new ByteBuffer[pages.size()];
+        for(int i=0; i<bufs.length; i++){
+            Page page = pages.get(i);
+            if(page.getId().pageNumber() != first + i)
+                throw new IllegalArgumentException("pages are not consecutive");
+            bufs[i] = bufferOf(page);
+        }
+
+        // gathering writes use the channel position, unlike single page I/O
+        FileChannel ch = getChannel();
+        synchronized(ch){
+            ch.position((long)first * pageSize);
+            long remaining = (long)bufs.length * pageSize;
+            while(remaining > 0)
+                remaining -= ch.write(bufs);
         }
     }
 
@@ -131,7 +261,7 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        int pagesize = BufferPool.PAGE_SIZE;
+        int pagesize = this.pageSize;
         return (int)Math.ceil((double)this.file.length()/pagesize);
     }
 
@@ -140,40 +270,78 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for proj1
-        int Pagenums = numPages();
-        for(int i=0; i<Pagenums; i++){
-            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
+        BufferPool bp = Database.getBufferPool();
+        FreeSpaceMap fsm = freeSpaceMap();
+        while(true){
+            // only visit pages the free space map says may have room
+            int Pagenums = numPages();
+            for(int i=fsm.nextWithSpace(0, Pagenums); i<Pagenums; i=fsm.nextWithSpace(i+1, Pagenums)){
+                HeapPageId pid = new HeapPageId(getId(), i);
+                HeapPage page = (HeapPage)bp.pinPageForRecords(tid, pid);
+                try{
+                    boolean inserted = page.getNumEmptySlots() > 0 && insertInto(page, tid, t);
+                    fsm.update(i, page.getNumEmptySlots());
+                    if(inserted){
+                        ArrayList<Page> ans = new ArrayList<Page>();
+                        ans.add(page);
+                        return ans;
+                    }
+                }finally{
+                    bp.unpinPage(pid);
+                }
+            }
 
-            if(page.getNumEmptySlots() == 0) continue;
+            //如果找不到空闲page，重新建立一个page
+            //writePage:把修改后的page数据写入file？page.getPageData();
+            HeapPageId npid;
+            synchronized(fsm){
+                // another inserter may have appended a page meanwhile
+                if(numPages() != Pagenums) continue;
+                npid = new HeapPageId(getId(), Pagenums);
+                writePage(new HeapPage(npid, HeapPage.createEmptyPageData(pageSize), false));
+            }
+            HeapPage newpage = (HeapPage)bp.pinPageForRecords(tid, npid);
             try{
-                page.insertTuple(t);
-                page.markDirty(true, tid);
-                //writePage(page);
-            }catch(DbException e){
-                System.out.println("shouldn't reach here");
+                boolean inserted = insertInto(newpage, tid, t);
+                fsm.update(Pagenums, newpage.getNumEmptySlots());
+                if(inserted){
+                    ArrayList<Page> ans = new ArrayList<Page>();
+                    ans.add(newpage);
+                    return ans;
+                }
+            }finally{
+                bp.unpinPage(npid);
             }
-            ArrayList<Page> ans = new ArrayList<Page>();
-            ans.add(page);
-            return ans;
-        }
-        //如果找不到空闲page，重新建立一个page
-        //writePage:把修改后的page数据写入file？page.getPageData();
-        HeapPageId npid = new HeapPageId(getId(), Pagenums);
-        HeapPage newpage= new HeapPage(npid, HeapPage.createEmptyPageData());
+        }
+
+    }
+
+    /**
+     * Insert t into a pinned page under its write latch, in the first empty
+     * slot tid can lock.  Slots emptied by transactions that are still
+     * running stay locked by them, since an abort would fill them again.
+     * @return false if no empty slot could be locked, e.g. because another
+     *   writer filled the page first
+     */
+    private boolean insertInto(HeapPage page, TransactionId tid, Tuple t)
+            throws TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        bp.latchPage(page.getId(), Permissions.READ_WRITE);
         try{
-            writePage(newpage);
-            newpage = (HeapPage)Database.getBufferPool().getPage(tid,npid, Permissions.READ_WRITE);
-            newpage.insertTuple(t);
-            newpage.markDirty(true, tid);
+            for(int slot=page.nextEmptySlot(0); slot>=0; slot=page.nextEmptySlot(slot+1)){
+                RecordId rid = new RecordId(page.getId(), slot);
+                if(!bp.lockRecord(tid, rid, false)) continue;
+                bp.rememberRecord(tid, rid, null);
+                page.insertTuple(t, slot);
+                page.markDirty(true, tid);
+                return true;
+            }
+            return false;
         }catch(DbException e){
-            System.out.println("empty page is not empty?");
-        }catch(IOException e){
-            e.printStackTrace();
+            return false;
+        }finally{
+            bp.unlatchPage(page.getId(), Permissions.READ_WRITE);
         }
-        ArrayList<Page> ans = new ArrayList<Page>();
-        ans.add(newpage);
-        return ans;
-
     }
 
     // see DbFile.java for javadocs
@@ -181,41 +349,156 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // some code goes here
         // not necessary for proj1
-        HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-
-        page.deleteTuple(t);
-        page.markDirty(true, tid);
-//        try{
-//            writePage(page);
-//        }catch(IOException e){
-//            e.printStackTrace();
-//        }
+        BufferPool bp = Database.getBufferPool();
+        RecordId rid = t.getRecordId();
+        PageId pid = rid.getPageId();
+        // wait for the record before pinning, so a blocked delete does not
+        // keep the page from being dropped by an abort
+        bp.lockRecord(tid, rid, true);
+        HeapPage page = (HeapPage)bp.pinPageForRecords(tid, pid);
+        try{
+            bp.latchPage(pid, Permissions.READ_WRITE);
+            try{
+                bp.rememberRecord(tid, rid, page.getSlotData(rid.tupleno()));
+                page.deleteTuple(t);
+                page.markDirty(true, tid);
+            }finally{
+                bp.unlatchPage(pid, Permissions.READ_WRITE);
+            }
+            freeSpaceMap().update(pid.pageNumber(), page.getNumEmptySlots());
+        }finally{
+            bp.unpinPage(pid);
+        }
         return page;
     }
 
+    /** A change that undo or redo makes to a page, see {@link #changePage}. */
+    private interface PageChange {
+        void apply(HeapPage page) throws IOException;
+    }
+
+    /**
+     * Undo the change the version v of tid records, as part of aborting
+     * tid.  tid still holds the locks it changed the page under.
+     */
+    void undo(TransactionId tid, final VersionStore.Version v) throws IOException {
+        changePage(tid, v.pid, new PageChange() {
+            public void apply(HeapPage page) throws IOException {
+                v.undo(page);
+            }
+        });
+    }
+
+    /**
+     * Set the given slots of page pid to data, on behalf of tid, e.g. to
+     * undo a change of tid's that was logged; null stands for an empty slot.
+     */
+    void restoreSlots(TransactionId tid, PageId pid, final int[] slots, final byte[][] data)
+            throws IOException {
+        changePage(tid, pid, new PageChange() {
+            public void apply(HeapPage page) {
+                for (int i = slots.length - 1; i >= 0; i--)
+                    page.restoreSlot(slots[i], data[i]);
+            }
+        });
+    }
+
+    /**
+     * Apply change to page pid in the buffer pool, without taking locks, and
+     * mark the page dirtied by tid.
+     */
+    private void changePage(TransactionId tid, PageId pid, PageChange change) throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        HeapPage page;
+        try{
+            page = (HeapPage)bp.pinPage(null, pid, Permissions.READ_WRITE);
+        }catch(DbException e){
+            throw new IOException("could not change page " + pid.pageNumber() + ": " + e.getMessage());
+        }catch(TransactionAbortedException e){
+            // cannot happen, the page is pinned without taking locks
+            throw new IOException("could not change page " + pid.pageNumber());
+        }
+        try{
+            bp.latchPage(pid, Permissions.READ_WRITE);
+            try{
+                change.apply(page);
+                page.markDirty(true, tid);
+            }finally{
+                bp.unlatchPage(pid, Permissions.READ_WRITE);
+            }
+            freeSpaceMap().update(pid.pageNumber(), page.getNumEmptySlots());
+        }finally{
+            bp.unpinPage(pid);
+        }
+    }
+
+    /**
+     * Write a page that recovery rebuilt outside the buffer pool, and note
+     * its free space.
+     */
+    void writeRecovered(HeapPage page) throws IOException {
+        writePage(page);
+        freeSpaceMap().update(page.getId().pageNumber(), page.getNumEmptySlots());
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(tid);
+        return new HeapFileIterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator that reads pages through the given scan ring, so
+     * that scanning this file does not flush the rest of the buffer pool.
+     *
+     * @param ring the ring to read through, or null to read normally
+     * @see BufferPool#scanRing
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferRing ring) {
+        return new HeapFileIterator(tid, ring);
     }
 
     public class HeapFileIterator implements DbFileIterator {
         int PagePos;
         Iterator<Tuple> pageIterator;
         TransactionId tid;
+        BufferRing ring;
+        int lastPage;
+        int prefetchedTo;
 
-        public HeapFileIterator(TransactionId tid){
+        public HeapFileIterator(TransactionId tid, BufferRing ring){
             this.tid = tid;
+            this.ring = ring;
         }
         @Override
         public void open() throws DbException, TransactionAbortedException{
             PagePos = 0;
+            lastPage = -2;
+            prefetchedTo = -1;
             HeapPageId pid = new HeapPageId(getId(), PagePos);
             pageIterator = getPage(pid).iterator();
         }
 
         private HeapPage getPage(PageId pid) throws TransactionAbortedException, DbException{
-            return (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            readAhead(pid.pageNumber());
+            return (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring);
+        }
+
+        /**
+         * Once two consecutive pages have been read, keep the next few pages
+         * of the file being read in the background.
+         */
+        private void readAhead(int pageNo){
+            boolean sequential = pageNo == lastPage + 1;
+            lastPage = pageNo;
+            BufferPool bp = Database.getBufferPool();
+            int window = bp.prefetchWindow(ring);
+            if(!sequential || window <= 0) return;
+
+            int end = Math.min(numPages() - 1, pageNo + window);
+            for(int p = Math.max(prefetchedTo + 1, pageNo + 1); p <= end; p++)
+                bp.prefetchPage(new HeapPageId(getId(), p), ring);
+            prefetchedTo = Math.max(prefetchedTo, end);
         }
 
 
@@ -107,6 +107,7 @@ public class HeapFileEncoder {
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
     FileOutputStream os = new FileOutputStream(outFile);
+    FreeSpaceMap.discard(outFile);
 
     // our numbers probably won't be much larger than 1024 digits
     char buf[] = new char[1024];
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 /**
@@ -16,55 +18,185 @@ public class HeapPage implements Page {
 
     HeapPageId pid;
     TupleDesc td;
-    byte header[];
+
+    /**
+     * The bytes of this page, exactly as they are stored on disk.  They are
+     * either on the heap or in a frame of the buffer pool's off-heap arena,
+     * until the page is evicted and moved to the heap.
+     */
+    volatile ByteBuffer buf;
+
+    /** buf viewed as little-endian words, so that bit i of the header is bit i%64 of word i/64 */
+    volatile ByteBuffer bits;
+
+    /** True while buf is a frame of the arena, which may be reused once freed. */
+    private volatile boolean framed;
+
+    /** Tuples handed out or inserted so far, by slot; created lazily. */
     Tuple tuples[];
 
     TransactionId lasttid;
     boolean isdirty;
 
     int numSlots;
+    int numEmpty;
+    int pageSize;
+    int headerSize;
+    int tupleSize;
 
     byte[] oldData;
 
+    /**
+     * Counts changes to the page's contents: odd while a change is under
+     * way, even otherwise.  Changes to a page are serialized by its latch or
+     * an exclusive lock, so only one thread updates it at a time.
+     */
+    volatile int version;
+
+    /**
+     * The LSN of the end of the last log record that logged a change to
+     * this page.  It is kept in memory only: recovery does not need it,
+     * since it applies log records slot by slot, which can be repeated.
+     */
+    private volatile long lsn;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.PAGE_SIZE*8) / (tuple size * 8 + 1))
+     *          floor((page size*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
-     * database table, which can be determined via {@link Catalog#getTupleDesc}.
+     * database table, which can be determined via {@link Catalog#getTupleDesc},
+     * and page size is the page size of its HeapFile, normally
+     * BufferPool.PAGE_SIZE.
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps its own copy of data; tuples are only parsed out of it
+     * when they are read.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#PAGE_SIZE
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, true);
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the bytes of the page, starting
+     * at the buffer's position, e.g. a slice of a memory-mapped file.  The
+     * bytes are copied and the buffer is not retained.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, data, true);
+    }
+
+    /**
+     * Create a HeapPage over data.  If copy is false the page takes
+     * ownership of the array, which the caller must not touch afterwards.
+     */
+    HeapPage(HeapPageId id, byte[] data, boolean copy) throws IOException {
+        this(id, ByteBuffer.wrap(data), copy);
+    }
+
+    /**
+     * Create a HeapPage over the bytes of data from its position on.  If
+     * copy is false the page works directly on those bytes, e.g. on a frame
+     * of the off-heap arena, and the caller must not touch them afterwards.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data, boolean copy) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = pageSizeOf(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        if (data.remaining() < pageSize)
+            throw new IOException("page data is shorter than a page");
+
+        ByteBuffer page = data.slice();
+        page.limit(pageSize);
+        if (copy) {
+            byte[] bytes = new byte[pageSize];
+            page.get(bytes);
+            page = ByteBuffer.wrap(bytes);
+        }
+        setBuffer(page.slice());
+        this.tuples = new Tuple[numSlots];
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+        int used = 0;
+        for (int w = 0; w < numSlots; w += 64)
+            used += Long.bitCount(headerWord(w >>> 6));
+        this.numEmpty = numSlots - used;
 
-        try{
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-        //System.out.println("empty slots:"+getNumEmptySlots()+"/"+numSlots);
+        // the before image is only materialized once the page is modified
+        oldData = null;
+    }
+
+    /** @return the page size of the table with the given id */
+    private static int pageSizeOf(int tableId) {
+        DbFile file = Database.getCatalog().getDbFile(tableId);
+        return file instanceof HeapFile ? ((HeapFile)file).getPageSize() : BufferPool.PAGE_SIZE;
+    }
+
+    private void setBuffer(ByteBuffer page) {
+        this.bits = page.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.buf = page;
+    }
+
+    /** @return the buffer holding the bytes of this page */
+    ByteBuffer buffer() {
+        return buf;
+    }
 
-        setBeforeImage();
+    /**
+     * Start reading this page without a pin.  The bytes of the page must
+     * be fetched after this call and only used until {@link #endRead}.
+     *
+     * @return the slot to pass to endRead, or -1 if the page is not in an
+     *   arena frame, whose bytes could be reused meanwhile
+     * @see FrameArena#enter
+     */
+    int beginRead() {
+        return framed ? FrameArena.enter() : -1;
+    }
+
+    /** Stop reading this page, after {@link #beginRead} returned slot. */
+    static void endRead(int slot) {
+        if (slot >= 0)
+            FrameArena.exit(slot);
+    }
+
+    /**
+     * Copy the bytes of this page into frame, a buffer of exactly the page
+     * size, and work on frame from now on.  Only used on pages that have
+     * not been handed out yet.
+     *
+     * @see FrameArena
+     */
+    void moveTo(ByteBuffer frame) {
+        frame.duplicate().put(buf.duplicate());
+        setBuffer(frame);
+        framed = true;
+    }
+
+    /**
+     * Copy the bytes of this page to the heap, so that its off-heap frame
+     * can be reused while the page itself is still referenced, e.g. by a
+     * scan or by tuples that have not parsed all their fields yet.
+     */
+    void moveToHeap() {
+        if (!buf.isDirect())
+            return;
+        byte[] bytes = new byte[pageSize];
+        buf.duplicate().get(bytes);
+        setBuffer(ByteBuffer.wrap(bytes));
+        framed = false;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -73,7 +205,7 @@ public class HeapPage implements Page {
     private int getNumTuples() {        
         // some code goes here
         int tuplesize = this.td.getSize();
-        int Pagesize = BufferPool.PAGE_SIZE;
+        int Pagesize = this.pageSize;
         int ans =(int) Math.floor((double)(Pagesize*8/(tuplesize*8+1)));
         return ans;
 
@@ -94,7 +226,7 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            return new HeapPage(pid,oldData);
+            return oldData != null ? new HeapPage(pid, oldData) : new HeapPage(pid, getPageData(), false);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -104,7 +236,15 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
-        oldData = getPageData().clone();
+        // the current contents are the before image until the next change
+        oldData = null;
+    }
+
+    /** Remember the current contents before the first change since the
+        last call to setBeforeImage. */
+    private void captureBeforeImage() {
+        if (oldData == null)
+            oldData = getPageData();
     }
 
     /**
@@ -115,40 +255,34 @@ public class HeapPage implements Page {
         return this.pid;
     }
 
+    /** @return the offset of the tuple in the given slot within the page */
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Return the tuple in the given slot, creating it on first use.  Its
+     * fields are parsed lazily from the page bytes.
+     * Returns null if the slot is empty.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    private Tuple readTuple(int slotId) {
+        if (!isSlotUsed(slotId))
             return null;
-        }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new Tuple(td, this, slotOffset(slotId));
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
         }
-
         return t;
     }
 
+    /** @return the tuple in slot i, or null if the slot is empty */
+    Tuple getTuple(int i) {
+        return readTuple(i);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -161,64 +295,23 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
+        byte[] bytes = new byte[pageSize];
+        int reader = beginRead();
         try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            buf.duplicate().get(bytes);
+        } finally {
+            endRead(reader);
         }
+        return bytes;
+    }
 
-        return baos.toByteArray();
+    /**
+     * Returns the bytes of this page without copying them.  The caller must
+     * hold the page latch for as long as it uses them and must not modify
+     * them.
+     */
+    ByteBuffer pageData() {
+        return buf.duplicate();
     }
 
     /**
@@ -231,7 +324,15 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.PAGE_SIZE;
+        return createEmptyPageData(BufferPool.PAGE_SIZE);
+    }
+
+    /**
+     * Like {@link #createEmptyPageData()}, for a file with pages of pageSize
+     * bytes.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        int len = pageSize;
         return new byte[len]; //all 0
     }
 
@@ -249,10 +350,21 @@ public class HeapPage implements Page {
         if(!t.getRecordId().getPageId().equals(this.pid) || !isSlotUsed(tuplenum)){
             throw new DbException("tuple is not on this tuple");
         }
+        captureBeforeImage();
+        version++;
         //error, maybe a tuple can be not used while it still can be deleted
         //if(!isSlotUsed(tuplenum)) throw new IllegalArgumentException("tuple is not used and cannot be deleted");
+        if(tuples[tuplenum] != null){
+            // whoever still holds the tuple keeps its values
+            tuples[tuplenum].detach();
+            tuples[tuplenum] = null;
+        }
         markSlotUsed(tuplenum, false);
-        tuples[tuplenum] = null;
+        int offset = slotOffset(tuplenum);
+        ByteBuffer page = buf;
+        for(int k=offset; k<offset + tupleSize; k++)
+            page.put(k, (byte)0);
+        version++;
         //if(isSlotUsed(tuplenum)) throw new DbException("fail to delete this tuple");
         
     }
@@ -268,14 +380,28 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         if(getNumEmptySlots() == 0) throw new DbException("the page is full");
-        for(int i=0; i<getNumTuples(); i++){
-            if(isSlotUsed(i)) continue;
+        insertTuple(t, nextSlot(0, false));
+    }
 
+    /**
+     * Adds the specified tuple to the given empty slot of this page.
+     * @throws DbException if the slot is in use.
+     */
+    void insertTuple(Tuple t, int i) throws DbException {
+        if(i >= numSlots || isSlotUsed(i)) throw new DbException("slot " + i + " is not empty");
+        captureBeforeImage();
+        version++;
+        try{
             markSlotUsed(i,true);
             if(!isSlotUsed(i)) throw new DbException("fail to insert");
+            int offset = slotOffset(i);
+            for(int j=0; j<td.numFields(); j++){
+                t.getField(j).serialize(buf, offset + td.getOffset(j));
+            }
             tuples[i] = t;
             t.setRecordId(new RecordId(this.pid, i));
-            break;
+        }finally{
+            version++;
         }
     }
     /**
@@ -304,11 +430,116 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int count = 0;
-        for(int i=0; i<this.tuples.length; i++){
-            if(!isSlotUsed(i)) count++;
+        return numEmpty;
+    }
+
+    /**
+     * Returns 64 header bits starting at slot 64*w, with the bits past the
+     * last slot cleared.
+     */
+    private long headerWord(int w) {
+        int offset = w * 8;
+        long word;
+        ByteBuffer words = bits;
+        if (offset + 8 <= pageSize) {
+            word = words.getLong(offset);
+        } else {
+            word = 0;
+            for (int b = 0; offset + b < pageSize; b++)
+                word |= (words.get(offset + b) & 0xffL) << (8 * b);
+        }
+        int rest = numSlots - w * 64;
+        return rest >= 64 ? word : word & ((1L << rest) - 1);
+    }
+
+    /**
+     * Returns the first slot at or after from that is used (or free, if
+     * used is false), or numSlots if there is none.
+     */
+    private int nextSlot(int from, boolean used) {
+        if (from >= numSlots)
+            return numSlots;
+        int w = from >>> 6;
+        long word = used ? headerWord(w) : ~headerWord(w);
+        word &= -1L << (from & 63);
+        while (word == 0) {
+            if (++w * 64 >= numSlots)
+                return numSlots;
+            word = used ? headerWord(w) : ~headerWord(w);
+        }
+        return Math.min(numSlots, w * 64 + Long.numberOfTrailingZeros(word));
+    }
+
+    /**
+     * Returns the change counter of this page.  A reader that copies the
+     * page without its latch can trust the copy if the counter was even
+     * before and unchanged after.
+     */
+    int version() {
+        return version;
+    }
+
+    /** Returns the LSN the log must be forced to before this page is written. */
+    long getLsn() {
+        return lsn;
+    }
+
+    /** Note that a change to this page was logged by a record ending at lsn. */
+    synchronized void setLsn(long lsn) {
+        if (lsn > this.lsn)
+            this.lsn = lsn;
+    }
+
+    /**
+     * Returns the first empty slot at or after from, or -1 if there is none.
+     */
+    int nextEmptySlot(int from) {
+        int i = nextSlot(from, false);
+        return i < numSlots ? i : -1;
+    }
+
+    /**
+     * Returns a copy of the bytes of the tuple in slot i, or null if the
+     * slot is empty.
+     */
+    byte[] getSlotData(int i) {
+        if(!isSlotUsed(i)) return null;
+        byte[] data = new byte[tupleSize];
+        ByteBuffer page = buf.duplicate();
+        page.position(slotOffset(i));
+        page.get(data);
+        return data;
+    }
+
+    /**
+     * Put back the contents of slot i as returned by {@link #getSlotData}:
+     * the bytes of a tuple, or null for an empty slot.
+     */
+    void restoreSlot(int i, byte[] data) {
+        captureBeforeImage();
+        version++;
+        if(tuples[i] != null){
+            tuples[i].detach();
+            tuples[i] = null;
+        }
+        int offset = slotOffset(i);
+        ByteBuffer page = buf;
+        for(int k=0; k<tupleSize; k++)
+            page.put(offset + k, data == null ? 0 : data[k]);
+        markSlotUsed(i, data != null);
+        version++;
+    }
+
+    /**
+     * Make every slot of this page that differs from image look as it does
+     * in image.
+     */
+    void restoreFrom(HeapPage image) {
+        for(int i=0; i<numSlots; i++){
+            byte[] data = image.getSlotData(i);
+            if(!Arrays.equals(data, getSlotData(i)))
+                restoreSlot(i, data);
         }
-        return count;
     }
 
     /**
@@ -321,7 +552,7 @@ public class HeapPage implements Page {
         int headerIndex = i/8;
         int bitIndex = i%8; //大端模式 从右往左写入
 
-        return isOne(header[headerIndex], bitIndex);
+        return isOne(buf.get(headerIndex), bitIndex);
     }
 
     public boolean isOne(byte bite,int bitIndex){
@@ -339,20 +570,24 @@ public class HeapPage implements Page {
     private void markSlotUsed(int tuplenum, boolean value) {
         // some code goes here
         // not necessary for lab1
-        byte head = this.header[tuplenum/8];
+        ByteBuffer page = this.buf;
+        byte head = page.get(tuplenum/8);
         int shift = tuplenum%8;
+        if(isOne(head, shift) != value){
+            numEmpty += value ? -1 : 1;
+        }
 
         if(!value){
             //00010000 ->  11101111 -> & 
             //byte changed =(byte)(head & (~(0b00000001 << shift)));
             byte changed =(byte)(head & (~(1 << shift)));
-            this.header[tuplenum/8] = changed;
+            page.put(tuplenum/8, changed);
         }
         else if(value){
             //00010000 -> |
             //byte changed = (byte)(head | (0b00000001 << shift));
             byte changed = (byte)(head | ((byte)1 << shift));
-            this.header[tuplenum/8] = changed;
+            page.put(tuplenum/8, changed);
         }
 
     }
@@ -372,7 +607,12 @@ public class HeapPage implements Page {
         
         @Override
         public boolean hasNext(){
-            while(pos < HeapPage.this.numSlots && !isSlotUsed(pos)) pos++;
+            int reader = beginRead();
+            try {
+                pos = nextSlot(pos, true);
+            } finally {
+                endRead(reader);
+            }
 
             return pos <HeapPage.this.numSlots; 
         }
@@ -380,7 +620,12 @@ public class HeapPage implements Page {
         @Override
         public Tuple next(){
             if(!hasNext()) throw new NoSuchElementException();
-            return tuples[pos++];
+            int reader = beginRead();
+            try {
+                return readTuple(pos++);
+            } finally {
+                endRead(reader);
+            }
         }
 //        private int index = 0;//tuple数组的下标变化
 //        private int usedTuplesNum = getNumTuples() - getNumEmptySlots();
@@ -0,0 +1,54 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * IndexFile is a DbFile that can find the tuples whose key field satisfies
+ * a predicate without reading all of its pages.  Both kinds of secondary
+ * index, {@link BTreeFile} and {@link HashFile}, are index files, and hold
+ * the entries {@link BTreeFile#indexTupleDesc} describes.
+ *
+ * @see IndexScan
+ * @see IndexJoin
+ */
+public interface IndexFile extends DbFile {
+
+    /** @return the file backing this index on disk */
+    public File getFile();
+
+    /** @return the index of the key field */
+    public int keyField();
+
+    /** @return the size in bytes of the pages of this file */
+    public int getPageSize();
+
+    /** @return the number of pages in this file */
+    public int numPages();
+
+    /**
+     * @return true if {@link #indexIterator} can answer predicates with
+     *   operator op without reading every page
+     */
+    public boolean supports(Predicate.Op op);
+
+    /**
+     * @return an estimate of the number of pages read to find the first
+     *   tuple with a given key, from the size of the file
+     */
+    public int estimateProbePages();
+
+    /**
+     * Returns an iterator over the tuples whose key satisfies ipred; ipred
+     * must use an operator this file supports.
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred);
+
+    /**
+     * Undo a change tid made to this file, as part of rolling tid back:
+     * delete entry if tid inserted it, or insert it again if tid deleted
+     * it.  Called by the BufferPool when tid aborts, and by recovery.
+     */
+    public void undo(TransactionId tid, Tuple entry, boolean inserted)
+        throws DbException, IOException, TransactionAbortedException;
+}
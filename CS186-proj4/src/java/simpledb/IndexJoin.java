@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexJoin is an index nested-loop join: for each tuple of its outer
+ * child, it looks up the matching tuples of the inner table in a secondary
+ * index of the table on the inner join field, instead of scanning the
+ * whole inner relation again.
+ * <p>
+ * Each lookup is an {@link IndexScan}, so it reads only the pages of the
+ * index holding the matching entries and the pages of the table holding
+ * the matching tuples.  The join returns the concatenation of each outer
+ * tuple with each matching inner tuple, like {@link Join}.
+ */
+public class IndexJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final JoinPredicate pred;
+    private DbIterator outer;
+    private final Catalog.Index index;
+    private final String innerAlias;
+    private final Predicate.Op keyOp;
+    private final TupleDesc td;
+    transient private Tuple outerTuple;
+    transient private IndexScan probe;
+
+    /**
+     * Constructor.
+     *
+     * @param tid
+     *            The transaction this join is running as a part of.
+     * @param p
+     *            The predicate to join on; its second field is a field of
+     *            the inner table
+     * @param outer
+     *            Iterator for the left(outer) relation to join
+     * @param index
+     *            An index of the inner table on the second field of p that
+     *            supports the operator of p
+     * @param innerAlias
+     *            the alias of the inner table
+     * @throws IllegalArgumentException if index cannot answer p's lookups
+     */
+    public IndexJoin(TransactionId tid, JoinPredicate p, DbIterator outer,
+            Catalog.Index index, String innerAlias) {
+        this.tid = tid;
+        this.pred = p;
+        this.outer = outer;
+        this.index = index;
+        this.innerAlias = innerAlias;
+        this.keyOp = keyOp(p.getOperator());
+        if (p.getField2() != index.getField() || !index.getFile().supports(keyOp))
+            throw new IllegalArgumentException("the index cannot answer the lookups of " + p.getOperator());
+        this.td = TupleDesc.merge(outer.getTupleDesc(),
+                Database.getCatalog().getTupleDesc(index.getTableId()));
+    }
+
+    /**
+     * @return the operator comparing an inner key to an outer value that
+     *   holds when the outer value compares to the key with op
+     */
+    static Predicate.Op keyOp(Predicate.Op op) {
+        switch (op) {
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public Catalog.Index getIndex() {
+        return index;
+    }
+
+    /** @return the alias of the inner table */
+    public String getInnerAlias() {
+        return innerAlias;
+    }
+
+    /** @return the name of the inner table in the catalog */
+    public String getInnerTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    public String getJoinField1Name() {
+        return outer.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return Database.getCatalog().getTupleDesc(index.getTableId()).getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        outer.open();
+        outerTuple = null;
+        probe = null;
+    }
+
+    public void close() {
+        super.close();
+        if (probe != null)
+            probe.close();
+        probe = null;
+        outerTuple = null;
+        outer.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (probe != null)
+            probe.close();
+        probe = null;
+        outerTuple = null;
+        outer.rewind();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the next match of the current outer tuple, or the first
+     * match of the next outer tuple that has any.
+     *
+     * @see Join#fetchNext
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (probe != null && probe.hasNext())
+                return merge(outerTuple, probe.next());
+            if (probe != null)
+                probe.close();
+            probe = null;
+            if (!outer.hasNext())
+                return null;
+            outerTuple = outer.next();
+            probe = new IndexScan(tid, index, innerAlias,
+                    new IndexPredicate(keyOp, outerTuple.getField(pred.getField1())));
+            probe.open();
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(n1 + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { outer };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.outer = children[0];
+    }
+}
@@ -0,0 +1,44 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * IndexPredicate compares the key field of an index to a constant, e.g. to
+ * scan only the part of a {@link BTreeFile} it selects.
+ */
+public class IndexPredicate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Predicate.Op op;
+    private final Field fieldvalue;
+
+    /**
+     * Constructor.
+     *
+     * @param op The operation to apply (as defined in Predicate.Op); the key
+     *   of a tuple is the left operand
+     * @param fvalue The value that the key of each tuple is compared to
+     */
+    public IndexPredicate(Predicate.Op op, Field fvalue) {
+        this.op = op;
+        this.fieldvalue = fvalue;
+    }
+
+    public Field getField() {
+        return fieldvalue;
+    }
+
+    public Predicate.Op getOp() {
+        return op;
+    }
+
+    /** @return true if key satisfies this predicate */
+    public boolean matches(Field key) {
+        return key.compare(op, fieldvalue);
+    }
+
+    public String toString() {
+        return "key " + op + " " + fieldvalue;
+    }
+}
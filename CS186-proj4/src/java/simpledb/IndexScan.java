@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan is an access method that reads the tuples of a table whose
+ * indexed field satisfies an IndexPredicate through a secondary index of
+ * the table, instead of scanning all of it.
+ * <p>
+ * When it is opened, the scan collects the matching entries of the index,
+ * and then reads the tuples they point to in page order, so that each page
+ * of the table is read at most once.  A covering scan does not read the
+ * table at all: its tuples hold only the indexed field, taken from the
+ * index.
+ *
+ * @see IndexFile#indexIterator
+ */
+public class IndexScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final Catalog.Index index;
+    private final String tableAlias;
+    private final IndexPredicate ipred;
+    private final boolean covering;
+    private final TupleDesc td;
+    private ArrayList<Tuple> entries;
+    private Iterator<Tuple> it;
+
+    /**
+     * Creates a scan of the tuples of index's table that satisfy ipred.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the secondary index to read; its table must be a HeapFile
+     * @param tableAlias
+     *            the alias of the table (needed by the parser)
+     * @param ipred
+     *            the predicate on the indexed field
+     * @param covering
+     *            whether to return only the indexed field, without reading
+     *            the table
+     */
+    public IndexScan(TransactionId tid, Catalog.Index index, String tableAlias,
+            IndexPredicate ipred, boolean covering) {
+        this.tid = tid;
+        this.index = index;
+        this.tableAlias = tableAlias;
+        this.ipred = ipred;
+        this.covering = covering;
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(index.getTableId());
+        if (covering) {
+            this.td = new TupleDesc(new Type[] { tableTd.getFieldType(index.getField()) },
+                    new String[] { tableTd.getFieldName(index.getField()) });
+        } else {
+            this.td = tableTd;
+        }
+    }
+
+    public IndexScan(TransactionId tid, Catalog.Index index, String tableAlias, IndexPredicate ipred) {
+        this(tid, index, tableAlias, ipred, false);
+    }
+
+    /** @return the name of the table in the catalog */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /** @return the transaction this scan is running as a part of */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public Catalog.Index getIndex() {
+        return index;
+    }
+
+    public IndexPredicate getPredicate() {
+        return ipred;
+    }
+
+    public boolean isCovering() {
+        return covering;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        entries = new ArrayList<Tuple>();
+        DbFileIterator matches = index.getFile().indexIterator(tid, ipred);
+        matches.open();
+        while (matches.hasNext())
+            entries.add(matches.next());
+        matches.close();
+        if (!covering) {
+            Collections.sort(entries, new Comparator<Tuple>() {
+                public int compare(Tuple a, Tuple b) {
+                    for (int i = 1; i <= 2; i++) {
+                        int x = ((IntField)a.getField(i)).getValue();
+                        int y = ((IntField)b.getField(i)).getValue();
+                        if (x != y)
+                            return x < y ? -1 : 1;
+                    }
+                    return 0;
+                }
+            });
+        }
+        it = entries.iterator();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (it != null && it.hasNext()) {
+            Tuple e = it.next();
+            if (covering) {
+                Tuple t = new Tuple(td);
+                t.setField(0, e.getField(0));
+                return t;
+            }
+            HeapPageId pid = new HeapPageId(index.getTableId(), ((IntField)e.getField(1)).getValue());
+            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            Tuple t = page.getTuple(((IntField)e.getField(2)).getValue());
+            if (t != null)
+                return t;
+        }
+        return null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = entries.iterator();
+    }
+
+    public void close() {
+        super.close();
+        entries = null;
+        it = null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[0];
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        // an access method has no children
+    }
+}
@@ -138,7 +138,19 @@ public class IntHistogram {
     public double avgSelectivity()
     {
         // some code goes here
-        return 1.0;
+        // a value drawn from the histogram falls in bucket b with chance
+        // h_b/ntups, and then matches about h_b/w_b of the tuples
+        if (ntups == 0)
+            return 0.0;
+        double sum = 0;
+        for (int i = 0; i < buckets; i++) {
+            int left = min + i*width;
+            int right = (left + width - 1) <= max ? left+width-1 : max;
+            if (histogram[i] == 0 || right < left)
+                continue;
+            sum += (double)histogram[i]*histogram[i]/(right-left+1);
+        }
+        return sum/ntups/ntups;
     }
     
     /**
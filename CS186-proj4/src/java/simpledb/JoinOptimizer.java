@@ -13,6 +13,7 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    TransactionId tid;
     
 
     /**
@@ -24,8 +25,22 @@ public class JoinOptimizer {
      *            the list of joins being performed
      */
     public JoinOptimizer(LogicalPlan p, Vector<LogicalJoinNode> joins) {
+        this(p, joins, null);
+    }
+
+    /**
+     * Constructor for the plan of a given transaction.  The joins of a
+     * snapshot transaction, which can only read heap pages, are never
+     * index joins.
+     *
+     * @param tid
+     *            the transaction the plan runs as a part of
+     */
+    public JoinOptimizer(LogicalPlan p, Vector<LogicalJoinNode> joins,
+            TransactionId tid) {
         this.p = p;
         this.joins = joins;
+        this.tid = tid;
     }
 
     /**
@@ -35,6 +50,13 @@ public class JoinOptimizer {
      * inner/outer here -- because DbIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * When the optimizer found probing an index cheaper (see
+     * {@link LogicalJoinNode#indexJoin}), plan2 reads a single table that
+     * has an index on the join field that can answer the join's lookups,
+     * and plan2 does not run as a part of a snapshot transaction, the join
+     * is an {@link IndexJoin} probing the index for each tuple of plan1;
+     * otherwise it is a nested-loop {@link Join}.
      * 
      * @param lj
      *            The join being considered
@@ -69,12 +91,93 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
+        if (lj.indexJoin && !(lj instanceof LogicalSubplanJoinNode)) {
+            j = instantiateIndexJoin(p, plan1, plan2);
+            if (j != null)
+                return j;
+        }
+
         j = new Join(p,plan1,plan2);
 
         return j;
 
     }
 
+    /**
+     * Builds an index nested-loop join of plan1 with the table plan2 reads,
+     * if plan2 is a SeqScan, or an IndexScan that is not covering, under
+     * any number of Filters, and the table has an index that can answer the
+     * lookups of p.  The filters of plan2, and the predicate of its
+     * IndexScan, are applied to the output of the join instead.
+     *
+     * @return the join, or null if plan2 cannot be probed through an index
+     */
+    private static DbIterator instantiateIndexJoin(JoinPredicate p,
+            DbIterator plan1, DbIterator plan2) {
+        ArrayList<Predicate> filters = new ArrayList<Predicate>();
+        DbIterator base = plan2;
+        while (base instanceof Filter) {
+            filters.add(((Filter) base).getPredicate());
+            base = ((Filter) base).getChildren()[0];
+        }
+
+        TransactionId tid;
+        int tableId;
+        String alias;
+        if (base instanceof SeqScan) {
+            SeqScan scan = (SeqScan) base;
+            tid = scan.getTransactionId();
+            tableId = scan.getTableId();
+            alias = scan.getAlias();
+        } else if (base instanceof IndexScan && !((IndexScan) base).isCovering()) {
+            IndexScan scan = (IndexScan) base;
+            tid = scan.getTransactionId();
+            tableId = scan.getIndex().getTableId();
+            alias = scan.getAlias();
+            IndexPredicate ipred = scan.getPredicate();
+            filters.add(new Predicate(scan.getIndex().getField(),
+                    ipred.getOp(), ipred.getField()));
+        } else {
+            return null;
+        }
+        // a snapshot cannot read the pages of an index
+        if (Database.getBufferPool().isSnapshot(tid))
+            return null;
+
+        Catalog.Index index = joinIndex(tableId, p.getField2(), p.getOperator());
+        if (index == null)
+            return null;
+
+        // the fields of the inner table follow those of plan1
+        int offset = plan1.getTupleDesc().numFields();
+        DbIterator j = new IndexJoin(tid, p, plan1, index, alias);
+        for (Predicate f : filters)
+            j = new Filter(new Predicate(offset + f.getField(), f.getOp(),
+                    f.getOperand()), j);
+        return j;
+    }
+
+    /**
+     * @return the index of the given heap file table on field that an
+     *         {@link IndexJoin} with join operator op can probe, the one
+     *         with the cheapest lookups if there are several, or null if
+     *         there is none
+     */
+    static Catalog.Index joinIndex(int tableId, int field, Predicate.Op op) {
+        if (!(Database.getCatalog().getDbFile(tableId) instanceof HeapFile))
+            return null;
+        Predicate.Op keyOp = IndexJoin.keyOp(op);
+        Catalog.Index best = null;
+        for (Catalog.Index index : Database.getCatalog().getIndexes(tableId)) {
+            if (index.getField() != field || !index.getFile().supports(keyOp))
+                continue;
+            if (best == null || index.getFile().estimateProbePages()
+                    < best.getFile().estimateProbePages())
+                best = index;
+        }
+        return best;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -103,6 +206,25 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true,
+                TableStats.getStatsMap());
+    }
+
+    /**
+     * Estimate the cost of a join, as {@link #estimateJoinCost(LogicalJoinNode,
+     * int, int, double, double)} does: the cost of a nested-loop join, which
+     * scans the right-hand side once per left-hand tuple, or that of
+     * {@link #indexJoinCost} if it is lower.
+     *
+     * @param innerIsTable
+     *            whether the right-hand side is a base table rather than
+     *            the result of other joins
+     * @param stats
+     *            the table stats, referenced by table names
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable,
+            Map<String, TableStats> stats) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Project 3.
@@ -113,10 +235,48 @@ public class JoinOptimizer {
             // a join algorithm that's more complicated than a basic nested-loops
             // join.
             //nljoin,没考虑缓存
-            return cost1+card1*cost2+card1*card2;
+            double nestedLoop = cost1+card1*cost2+card1*card2;
+            return Math.min(nestedLoop,
+                    indexJoinCost(j, card1, cost1, innerIsTable, stats));
         }
     }
 
+    /**
+     * Estimate the cost of j as an {@link IndexJoin}: one scan of the
+     * left-hand side and, for each of its tuples, one index lookup of the
+     * matching tuples.
+     *
+     * @return the cost, or infinity if the right-hand side is not a base
+     *         table with an index that an IndexJoin can probe, or the plan
+     *         is for a snapshot transaction
+     */
+    private double indexJoinCost(LogicalJoinNode j, int card1, double cost1,
+            boolean innerIsTable, Map<String, TableStats> stats) {
+        Integer tableId = innerIsTable && !(j instanceof LogicalSubplanJoinNode)
+                && !Database.getBufferPool().isSnapshot(tid)
+                ? p.getTableId(j.t2Alias) : null;
+        if (tableId == null)
+            return Double.POSITIVE_INFINITY;
+        String tableName = Database.getCatalog().getTableName(tableId);
+        int field = Database.getCatalog().getTupleDesc(tableId)
+                .fieldNameToIndex(j.f2PureName);
+        Catalog.Index index = joinIndex(tableId, field, j.p);
+        TableStats s = stats.get(tableName);
+        if (index == null || s == null || s.totalTuples() == 0)
+            return Double.POSITIVE_INFINITY;
+
+        // tuples of the inner table each lookup returns
+        int ntups = s.totalTuples();
+        double matches;
+        if (j.p == Predicate.Op.EQUALS && isPkey(j.t2Alias, j.f2PureName))
+            matches = 1;
+        else
+            matches = s.avgSelectivity(field, IndexJoin.keyOp(j.p)) * ntups;
+        double lookup = s.estimateIndexScanCost(index,
+                Math.min(1.0, matches / ntups), false);
+        return cost1 + card1 * (lookup + matches);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -247,6 +407,9 @@ public class JoinOptimizer {
 
         // some code goes here
         //Replace the following
+            // a query over a single table has nothing to order
+            if (joins.isEmpty())
+                return joins;
             PlanCache pc = new PlanCache();
             int wholesize = joins.size();
             Set<LogicalJoinNode> wholeset = null;
@@ -337,6 +500,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // whether each side is a base table, which an IndexJoin can probe
+        boolean t1IsTable, t2IsTable;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -352,6 +517,8 @@ public class JoinOptimizer {
                             filterSelectivities.get(j.t2Alias));
             rightPkey = table2Alias == null ? false : isPkey(table2Alias,
                     j.f2PureName);
+            t1IsTable = true;
+            t2IsTable = true;
         } else {
             // news is not empty -- figure best way to join j to news
             prevBest = pc.getOrder(news);
@@ -380,6 +547,8 @@ public class JoinOptimizer {
                                 filterSelectivities.get(j.t2Alias));
                 rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
                         j.f2PureName);
+                t1IsTable = false;
+                t2IsTable = true;
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
                                                         // (both
                 // shouldn't be)
@@ -393,6 +562,8 @@ public class JoinOptimizer {
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
+                t1IsTable = true;
+                t2IsTable = false;
 
             } else {
                 // don't consider this plan if one of j.t1 or j.t2
@@ -402,10 +573,13 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                t2IsTable, stats);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                t1IsTable, stats);
+        boolean indexJoin = indexJoinCost(j, t1card, t1cost, t2IsTable, stats) <= cost1;
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -413,9 +587,13 @@ public class JoinOptimizer {
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
+            indexJoin = indexJoinCost(j2, t2card, t2cost, t1IsTable, stats) <= cost2;
         }
         if (cost1 >= bestCostSoFar)
             return null;
+        // instantiateJoin builds an IndexJoin only if probing is cheaper
+        if (indexJoin)
+            j = j.withIndexJoin(true);
 
         CostCard cc = new CostCard();
 
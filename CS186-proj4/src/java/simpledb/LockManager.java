@@ -0,0 +1,304 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LockManager implements strict two-phase locking on behalf of
+ * transactions, at three granularities: tables, pages and records.
+ * <p>
+ * Pages are locked in shared mode to read them and in exclusive mode to
+ * change them as a whole.  A writer that only changes some records of a
+ * page instead locks those records exclusively, and holds intention locks
+ * (IX) on their page and table, so that writers of different records of
+ * the same page do not wait for each other.  Every page or record lock
+ * first takes the matching intention lock on its table.  A transaction
+ * that asks for a lock on something it already holds gets the least mode
+ * that covers both requests, e.g. a shared lock plus IX becomes SIX.
+ * Locks are held until {@link #releaseAll} is called when the transaction
+ * ends.
+ * <p>
+ * A transaction that has to wait for a lock records which transactions it
+ * waits for.  If that closes a cycle in the waits-for graph, the waiting
+ * transaction is chosen as the victim and its request fails with a
+ * {@link TransactionAbortedException}; the caller must then abort it.
+ *
+ * @see BufferPool#getPage
+ */
+public class LockManager {
+
+    /** Lock modes. */
+    public enum Mode {
+        IS, IX, S, SIX, X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //        IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        /** @return true if two transactions may hold this and other at once */
+        public boolean compatible(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the least mode that grants both this and other */
+        public Mode combine(Mode other) {
+            if (this == other || other == null)
+                return this;
+            if (this == X || other == X)
+                return X;
+            if (this == SIX || other == SIX)
+                return SIX;
+            if ((this == S && other == IX) || (this == IX && other == S))
+                return SIX;
+            return ordinal() > other.ordinal() ? this : other; // IS is covered by anything
+        }
+
+        /** @return true if this mode allows changing the locked object */
+        public boolean writes() {
+            return this == IX || this == SIX || this == X;
+        }
+    }
+
+    /** The lock on one table, page or record. */
+    private static class Lock {
+        final HashMap<TransactionId, Mode> holders = new HashMap<TransactionId, Mode>();
+    }
+
+    /** Tables are locked under their id, pages and records under their ids. */
+    private final HashMap<Object, Lock> locks = new HashMap<Object, Lock>();
+    private final HashMap<TransactionId, Set<Object>> held = new HashMap<TransactionId, Set<Object>>();
+    private final HashMap<TransactionId, Set<TransactionId>> waitsFor = new HashMap<TransactionId, Set<TransactionId>>();
+
+    /**
+     * Lock pid on behalf of tid, in shared mode for READ_ONLY and in
+     * exclusive mode for READ_WRITE, waiting until the lock is available.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock, or the
+     *   thread was interrupted while waiting
+     */
+    public synchronized void acquire(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        acquire(tid, pid, perm, true);
+    }
+
+    /**
+     * Like {@link #acquire(TransactionId, PageId, Permissions)}, but if
+     * wait is false, fails instead of waiting for another transaction.
+     *
+     * @return false if wait is false and another transaction holds a lock
+     *   on pid, or on its table, that conflicts with the request
+     */
+    public synchronized boolean acquire(TransactionId tid, PageId pid, Permissions perm, boolean wait)
+        throws TransactionAbortedException {
+        Mode mode = perm == Permissions.READ_WRITE ? Mode.X : Mode.S;
+        return lock(tid, tableKey(pid), mode.writes() ? Mode.IX : Mode.IS, wait)
+            && lock(tid, pid, mode, wait);
+    }
+
+    /**
+     * Lock pid on behalf of tid in the given mode, after taking the matching
+     * intention lock on its table.
+     */
+    public synchronized void acquire(TransactionId tid, PageId pid, Mode mode)
+        throws TransactionAbortedException {
+        lock(tid, tableKey(pid), mode.writes() ? Mode.IX : Mode.IS, true);
+        lock(tid, pid, mode, true);
+    }
+
+    /**
+     * Lock the record rid exclusively on behalf of tid, after taking
+     * intention locks on its page and table.
+     *
+     * @param wait whether to wait for the record lock if another
+     *   transaction holds it
+     * @return false if wait is false and the record is locked by another
+     *   transaction
+     * @throws TransactionAbortedException if waiting would deadlock, or the
+     *   thread was interrupted while waiting
+     */
+    public synchronized boolean acquireRecord(TransactionId tid, RecordId rid, boolean wait)
+        throws TransactionAbortedException {
+        PageId pid = rid.getPageId();
+        lock(tid, tableKey(pid), Mode.IX, true);
+        lock(tid, pid, Mode.IX, true);
+        return lock(tid, rid, Mode.X, wait);
+    }
+
+    /**
+     * Lock the whole table tableId on behalf of tid in the given mode, e.g.
+     * in shared mode to keep every writer out of it.
+     */
+    public synchronized void acquireTable(TransactionId tid, int tableId, Mode mode)
+        throws TransactionAbortedException {
+        lock(tid, Integer.valueOf(tableId), mode, true);
+    }
+
+    private static Integer tableKey(PageId pid) {
+        return Integer.valueOf(pid.getTableId());
+    }
+
+    private boolean lock(TransactionId tid, Object key, Mode mode, boolean wait)
+        throws TransactionAbortedException {
+        while (true) {
+            Lock lock = locks.get(key);
+            if (lock == null) {
+                lock = new Lock();
+                locks.put(key, lock);
+            }
+            Mode wanted = mode.combine(lock.holders.get(tid));
+            if (grantable(lock, tid, wanted)) {
+                waitsFor.remove(tid);
+                lock.holders.put(tid, wanted);
+                Set<Object> mine = held.get(tid);
+                if (mine == null) {
+                    mine = new HashSet<Object>();
+                    held.put(tid, mine);
+                }
+                mine.add(key);
+                return true;
+            }
+            if (!wait) {
+                if (lock.holders.isEmpty())
+                    locks.remove(key);
+                return false;
+            }
+
+            Set<TransactionId> blockers = new HashSet<TransactionId>();
+            for (Map.Entry<TransactionId, Mode> h : lock.holders.entrySet()) {
+                if (!h.getKey().equals(tid) && !wanted.compatible(h.getValue()))
+                    blockers.add(h.getKey());
+            }
+            waitsFor.put(tid, blockers);
+            if (deadlocked(tid)) {
+                waitsFor.remove(tid);
+                throw new TransactionAbortedException();
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                waitsFor.remove(tid);
+                throw new TransactionAbortedException();
+            }
+        }
+    }
+
+    /** @return true if the other holders of lock allow tid to hold it in mode */
+    private static boolean grantable(Lock lock, TransactionId tid, Mode mode) {
+        for (Map.Entry<TransactionId, Mode> h : lock.holders.entrySet()) {
+            if (!h.getKey().equals(tid) && !mode.compatible(h.getValue()))
+                return false;
+        }
+        return true;
+    }
+
+    /** @return true if tid waits, directly or transitively, for itself */
+    private boolean deadlocked(TransactionId tid) {
+        HashSet<TransactionId> seen = new HashSet<TransactionId>();
+        ArrayDeque<TransactionId> todo = new ArrayDeque<TransactionId>(waitsFor.get(tid));
+        while (!todo.isEmpty()) {
+            TransactionId t = todo.poll();
+            if (t.equals(tid))
+                return true;
+            if (!seen.add(t))
+                continue;
+            Set<TransactionId> next = waitsFor.get(t);
+            if (next != null)
+                todo.addAll(next);
+        }
+        return false;
+    }
+
+    /**
+     * Release the lock tid holds on pid, if any.  Releasing a lock before
+     * the transaction ends breaks two-phase locking; callers must know that
+     * this is safe.
+     */
+    public synchronized void release(TransactionId tid, PageId pid) {
+        if (!unlock(tid, pid))
+            return;
+        Set<Object> mine = held.get(tid);
+        if (mine != null)
+            mine.remove(pid);
+        notifyAll();
+    }
+
+    private boolean unlock(TransactionId tid, Object key) {
+        Lock lock = locks.get(key);
+        if (lock == null || lock.holders.remove(tid) == null)
+            return false;
+        if (lock.holders.isEmpty())
+            locks.remove(key);
+        return true;
+    }
+
+    /** Release every lock held by tid. */
+    public synchronized void releaseAll(TransactionId tid) {
+        Set<Object> mine = held.remove(tid);
+        waitsFor.remove(tid);
+        if (mine == null)
+            return;
+        for (Object key : mine)
+            unlock(tid, key);
+        notifyAll();
+    }
+
+    /** @return the mode tid holds key in, or null */
+    private Mode modeOf(TransactionId tid, Object key) {
+        Lock lock = locks.get(key);
+        return lock == null ? null : lock.holders.get(tid);
+    }
+
+    /** @return true if tid holds a lock on pid, in any mode */
+    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
+        return modeOf(tid, pid) != null;
+    }
+
+    /** @return true if tid holds an exclusive lock on pid */
+    public synchronized boolean holdsExclusive(TransactionId tid, PageId pid) {
+        return modeOf(tid, pid) == Mode.X;
+    }
+
+    /** @return true if tid holds an exclusive lock on the record rid */
+    public synchronized boolean holdsRecord(TransactionId tid, RecordId rid) {
+        return modeOf(tid, rid) == Mode.X;
+    }
+
+    /** @return the pages tid holds locks on */
+    public synchronized Set<PageId> lockedPages(TransactionId tid) {
+        return pages(tid, false);
+    }
+
+    /** @return the pages tid holds exclusive locks on */
+    public synchronized Set<PageId> exclusivePages(TransactionId tid) {
+        HashSet<PageId> pages = new HashSet<PageId>();
+        for (PageId pid : pages(tid, true)) {
+            if (modeOf(tid, pid) == Mode.X)
+                pages.add(pid);
+        }
+        return pages;
+    }
+
+    /**
+     * @return the pages tid may have changed: those it holds exclusively,
+     *   and those it holds intention locks on for changing records
+     */
+    public synchronized Set<PageId> writtenPages(TransactionId tid) {
+        return pages(tid, true);
+    }
+
+    private Set<PageId> pages(TransactionId tid, boolean writes) {
+        HashSet<PageId> pages = new HashSet<PageId>();
+        Set<Object> mine = held.get(tid);
+        if (mine != null) {
+            for (Object key : mine) {
+                if (key instanceof PageId && (!writes || modeOf(tid, key).writes()))
+                    pages.add((PageId)key);
+            }
+        }
+        return pages;
+    }
+}
@@ -2,6 +2,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.lang.reflect.*;
 
@@ -18,7 +19,7 @@ Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -39,11 +40,13 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log file itself only holds a long integer, the offset of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files next to it, each of
+which holds a fixed number of bytes of the log; see {@link LogSegments}.
+Offsets are positions in the whole sequence of records, and a record may
+span two segments.  Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
@@ -51,30 +54,69 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, SLOT, INDEX,
+BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
+accessed with the LogFile.readPageData() and LogFile.putPageData()
 methods.  See LogFile.print() for an example.
 
+<li>SLOT records log a change to some slots of a heap page.  They consist
+of the table id and page number of the page, an integer count of the
+changed slots, and for each of them the slot number and the bytes of the
+slot before and after the change, each as an integer length (-1 for an
+empty slot) followed by the bytes.  A change to a heap page is logged as
+an UPDATE record the first time the page is logged after a checkpoint,
+so that recovery can rebuild a page that was torn by the crash, and as a
+SLOT record after that.
+
+<li>INDEX records log one change to an index file, made while the pages it
+touched were write-latched: the table id of the file, whether an entry
+was deleted (0), inserted (1), or a change of an aborting transaction
+undone (2), or a page of a new file was loaded with entries in bulk (3),
+and the entry as an integer length followed by its serialized fields,
+length 0 for a loaded page.  If the change only added or removed the
+entry on one leaf or bucket page that was changed before since it was
+last written, the rest of the record is the page number of that page,
+whether the entry was added to it (1) or removed from it (0), and the
+slot; otherwise it is -1, an integer count of pages and the image of
+each page after the change, as in UPDATE records.  So every change to an
+index page since it was last written follows a record holding its image.
+Recovery redoes the records, and undoes the changes of unfinished
+transactions entry by entry, since other transactions may have changed
+the same pages later.
+
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction, followed by the dirty page table: an
+integer count of pages, and for each a table id, a page number and the
+offset of the oldest logged change to the page that may not be on disk
+yet.  Checkpoints are fuzzy: they do not flush the buffer pool, so
+recovery starts at the oldest of the checkpoint, the first records of
+the transactions running at it and the offsets in its dirty page table.
 
 </ul>
 
+<p> Records are not written to the file one field at a time: they are
+serialized into an in-memory log buffer, which is written out in large
+chunks when it fills up, when the log is forced, and before the log is
+read.  Every byte of the log has a log sequence number (LSN), which is its
+offset; dropping segments from the front of the log does not change the
+offsets of the rest, so LSNs only ever grow.  A page remembers the LSN of the
+last record that logged a change to it, and before the page is written
+the log only has to be forced up to that LSN; see {@link #forceTo}.
+
 */
 
 public class LogFile {
 
     File logFile;
-    RandomAccessFile raf;
+    LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,6 +124,15 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int SLOT_RECORD = 6;
+    static final int INDEX_RECORD = 7;
+
+    /** What the change an INDEX record logs did to its entry. */
+    static final int ENTRY_DELETED = 0;
+    static final int ENTRY_INSERTED = 1;
+    static final int ENTRY_UNDONE = 2;
+    /** An INDEX record of a page loaded by {@link BTreeFile#createIndex}, which logs no entry. */
+    static final int PAGE_LOADED = 3;
     static final long NO_CHECKPOINT_ID = -1;
 
     static int INT_SIZE = 4;
@@ -93,6 +144,25 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /** Size of the in-memory log buffer; larger records get a larger buffer. */
+    static final int LOG_BUFFER_SIZE = 64 * 1024;
+
+    /** Records appended but not yet written to the file. */
+    private ByteBuffer buffer = ByteBuffer.allocate(LOG_BUFFER_SIZE);
+    /** The offset the contents of buffer go to. */
+    private long bufferStart;
+    /** The log is on disk up to this LSN. */
+    private volatile long flushedLsn;
+    /** Pages logged with an UPDATE record since the last checkpoint. */
+    private final HashSet<PageId> imaged = new HashSet<PageId>();
+
+    /** Held while forcing the log, and while the log file is replaced. */
+    private final Object forceLock = new Object();
+    private LogFlusher flusher;
+
+    /** Default size of a log segment file. */
+    static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -102,11 +172,16 @@ public class LogFile {
         do it, while if someone starts adding log file entries, then first
         throw out the initial log file contents.
 
+        <p>
+        The records are kept in segment files of
+        {@link Database#LOG_SEGMENT_SIZE} bytes, {@link #SEGMENT_SIZE} by
+        default.
+
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, Long.getLong(Database.LOG_SEGMENT_SIZE, SEGMENT_SIZE));
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,14 +202,95 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.clear();
+            segments.setCheckpoint(NO_CHECKPOINT_ID);
+            currentOffset = 0;
+            bufferStart = 0;
+            flushedLsn = 0;
+            imaged.clear();
         }
     }
 
+    /** Make room for n more bytes in the log buffer. */
+    private void reserve(int n) throws IOException {
+        if (buffer.remaining() >= n)
+            return;
+        writeBuffer();
+        if (buffer.capacity() < n)
+            buffer = ByteBuffer.allocate(n);
+    }
+
+    private void putInt(int v) throws IOException {
+        reserve(INT_SIZE);
+        buffer.putInt(v);
+    }
+
+    private void putLong(long v) throws IOException {
+        reserve(LONG_SIZE);
+        buffer.putLong(v);
+    }
+
+    /** Like {@link DataOutput#writeUTF}, for the class names of pages, which are ASCII. */
+    private void putUTF(String str) throws IOException {
+        byte[] bytes = str.getBytes("UTF-8");
+        reserve(2 + bytes.length);
+        buffer.putShort((short)bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        reserve(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /** @return the offset the next appended byte goes to */
+    private long end() {
+        return bufferStart + buffer.position();
+    }
+
+    /**
+     * Write the log buffer to the segments, without forcing them.
+     * Anything that reads the log must call this first.
+     */
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        int n = buffer.remaining();
+        segments.write(buffer, bufferStart);
+        bufferStart += n;
+        buffer.clear();
+    }
+
+    /** @return a reader of the log from offset on */
+    private Reader reader(long offset) {
+        return new Reader(offset);
+    }
+
+    /** Reads log records from the segments. */
+    private class Reader extends DataInputStream {
+        Reader(long offset) {
+            super(segments.new Input(offset));
+        }
+
+        /** @return the offset of the next byte read */
+        long position() {
+            return ((LogSegments.Input)in).position();
+        }
+
+        void seek(long offset) {
+            ((LogSegments.Input)in).seek(offset);
+        }
+    }
+
+    /** @return the LSN of the end of the log */
+    synchronized long endLsn() {
+        return end();
+    }
+
+    /** @return the LSN the log is on disk up to */
+    long flushedLsn() {
+        return flushedLsn;
+    }
+
     public int getTotalRecords() {
         return totalRecords;
     }
@@ -144,24 +300,22 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
+        // must do this here, since rollback only works for
+        // live transactions (needs tidToFirstLogRecord); rollback
+        // takes the buffer pool lock itself, once it has undone the
+        // transaction's index changes without it
+        rollback(tid);
 
         synchronized (Database.getBufferPool()) {
-
             synchronized(this) {
                 preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                putInt(ABORT_RECORD);
+                putLong(tid.getId());
+                putLong(currentOffset);
+                currentOffset = end();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -170,55 +324,161 @@ public class LogFile {
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        The force is left to the log's {@link LogFlusher}, so that
+        transactions committing at the same time share a force.  This
+        returns once the commit record is on disk.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        LogFlusher f;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            putInt(COMMIT_RECORD);
+            putLong(tid.getId());
+            putLong(currentOffset);
+            currentOffset = end();
+            tidToFirstLogRecord.remove(tid.getId());
+            lsn = currentOffset;
+            if (flusher == null)
+                flusher = new LogFlusher(this, Long.getLong(Database.LOG_COMMIT_DELAY, 0));
+            f = flusher;
+        }
+        f.waitForced(lsn);
+    }
+
+    /**
+     * Make sure the log is on disk up to lsn, e.g. before writing a page
+     * whose changes were logged up to lsn.  This does nothing if the log
+     * already is, and otherwise forces everything appended so far, without
+     * keeping others from appending while the force runs.
+     *
+     * @return the LSN the log is on disk up to
+     */
+    long forceTo(long lsn) throws IOException {
+        if (lsn <= flushedLsn)
+            return flushedLsn;
+        long upTo;
+        synchronized (this) {
+            if (lsn <= flushedLsn)
+                return flushedLsn;
+            writeBuffer();
+            upTo = bufferStart;
+        }
+        synchronized (forceLock) {
+            segments.force();
+            if (upTo > flushedLsn)
+                flushedLsn = upTo;
+        }
+        return upTo;
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** @return how many forces committing transactions have shared so far */
+    public synchronized long getCommitForces() {
+        return flusher == null ? 0 : flusher.getForces();
+    }
+
+    /** Stop the thread that forces the log for committing transactions. */
+    synchronized void stopFlusher() {
+        if (flusher != null) {
+            flusher.stop();
+            flusher = null;
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  If the page
+        is a heap page that was logged in full since the last checkpoint,
+        only the slots that differ between the images are logged, in a
+        SLOT record.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the end of the record; the log must be forced
+        up to it before the page is written
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
+           before page data (see putPageData)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        if (after instanceof HeapPage && imaged.contains(after.getId())) {
+            putInt(SLOT_RECORD);
+            putLong(tid.getId());
+            put(new Change((HeapPage)before, (HeapPage)after).encode());
+        } else {
+            putInt(UPDATE_RECORD);
+            putLong(tid.getId());
+
+            putPageData(before);
+            putPageData(after);
+            imaged.add(after.getId());
+        }
+        putLong(currentOffset);
+        currentOffset = end();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return currentOffset;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /**
+     * Write an INDEX record: tid changed entry of the index file tableId, as
+     * kind tells, leaving pages as they are now.  The caller holds the
+     * write latches of the pages.
+     *
+     * @param entry the entry, or null for a {@link #PAGE_LOADED} record
+     * @param slot if not negative, pages is the one page entry was added
+     *   to or removed from, as added tells, at slot, and only that is
+     *   logged instead of the image of the page
+     * @return the LSN of the end of the record; the log must be forced up
+     *   to it before any of the pages is written
+     */
+    synchronized long logIndexChange(TransactionId tid, int tableId, int kind, Tuple entry,
+            Collection<? extends Page> pages, int slot, boolean added) throws IOException {
+        preAppend();
+        putInt(INDEX_RECORD);
+        putLong(tid.getId());
+        putInt(tableId);
+        putInt(kind);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; entry != null && i < entry.getTupleDesc().numFields(); i++)
+            entry.getField(i).serialize(out);
+        out.flush();
+        putInt(bytes.size());
+        put(bytes.toByteArray());
+        if (slot >= 0) {
+            putInt(pages.iterator().next().getId().pageNumber());
+            putInt(added ? 1 : 0);
+            putInt(slot);
+        } else {
+            putInt(-1);
+            putInt(pages.size());
+            for (Page p : pages)
+                putPageData(p);
+        }
+        putLong(currentOffset);
+        currentOffset = end();
+        return currentOffset;
+    }
+
+    /** Append a page to the log buffer. */
+    private void putPageData(Page p) throws IOException {
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -230,52 +490,59 @@ public class LogFile {
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
+        putUTF(p.getClass().getName());
+        putUTF(pid.getClass().getName());
+        putInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            putInt(pageInfo[i]);
         }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        putInt(pageData.length);
+        put(pageData);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    /**
+     * Read a page written by putPageData.
+     *
+     * @return the page, or null if its table is no longer in the catalog
+     */
+    Page readPageData(DataInput in) throws IOException {
         PageId pid;
         Page newPage = null;
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        String pageClassName = in.readUTF();
+        String idClassName = in.readUTF();
 
         try {
             Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
+            int numIdArgs = in.readInt();
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+                idArgs[i] = new Integer(in.readInt());
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[1] == byte[].class)
+                    pageConst = c;
+            }
+            int pageSize = in.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            in.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            if (!Database.getCatalog().hasTable(pid.getTableId()))
+                return null;
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -295,6 +562,11 @@ public class LogFile {
 
     }
 
+    /** @return true if tid has a BEGIN record and has not committed or aborted */
+    synchronized boolean isRunning(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -307,168 +579,353 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        putInt(BEGIN_RECORD);
+        putLong(tid.getId());
+        putLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = end();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        The checkpoint is fuzzy: instead of flushing the buffer pool, it
+        records the transactions that are running and the pages whose
+        logged changes may not be on disk yet, so that it stalls neither
+        queries nor writers of pages.  Then the segments of the log that
+        recovery no longer needs are dropped.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            preAppend();
+            long startCpOffset = currentOffset;
+            putInt(CHECKPOINT_RECORD);
+            putLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            putInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                putLong(e.getKey());
+                putLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            Map<PageId, Long> dirty = Database.getBufferPool().dirtyPages();
+            putInt(dirty.size());
+            for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                putInt(e.getKey().getTableId());
+                putInt(e.getKey().pageNumber());
+                putLong(e.getValue());
             }
+
+            putLong(startCpOffset);
+            currentOffset = end();
+            force();
+
+            //once the CP is on disk, make sure the CP location in the
+            // log file is updated
+            segments.setCheckpoint(startCpOffset);
+            imaged.clear();
         }
 
         logTruncate();
     }
 
+    /**
+     * Read the checkpoint record at cp.
+     *
+     * @param running if not null, gets the transactions running at the
+     *   checkpoint, with their first record
+     * @param dirty if not null, gets the dirty page table, keyed by heap
+     *   page ids, which are equal to any id of the same page
+     * @return the offset recovery from this checkpoint starts at
+     */
+    private long readCheckpoint(long cp, Map<Long, Long> running, Map<PageId, Long> dirty)
+            throws IOException {
+        Reader in = reader(cp);
+        if (in.readInt() != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        in.readLong();
+        long start = cp;
+        int numXactions = in.readInt();
+        while (numXactions-- > 0) {
+            long tid = in.readLong();
+            long first = in.readLong();
+            if (running != null)
+                running.put(tid, first);
+            start = Math.min(start, first);
+        }
+        int numPages = in.readInt();
+        while (numPages-- > 0) {
+            PageId pid = new HeapPageId(in.readInt(), in.readInt());
+            long recLsn = in.readLong();
+            if (dirty != null)
+                dirty.put(pid, recLsn);
+            start = Math.min(start, recLsn);
+        }
+        return start;
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption: the segments holding only records before the point
+        recovery from the last checkpoint starts at are deleted. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        writeBuffer();
+        long cpLoc = segments.checkpoint();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
+
+        // we can truncate everything before minLogRecord
+        long minLogRecord = readCheckpoint(cpLoc, null, null);
 
-        long minLogRecord = cpLoc;
+        synchronized (forceLock) {
+            int dropped = segments.dropBefore(minLogRecord);
+            Debug.log("TRUNCATING LOG; DROPPED " + dropped + " SEGMENTS BEFORE " + minLogRecord);
+        }
+    }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    /** @return the number of segment files the log is stored in */
+    int segmentCount() {
+        return segments.segmentCount();
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+    /** Rollback the specified transaction, setting the state of any
+        of pages it updated to their pre-updated state.  To preserve
+        transaction semantics, this should not be called on
+        transactions that have already committed (though this may not
+        be enforced by this method.)
 
-            int numOutstanding = raf.readInt();
+        @param tid The transaction to rollback
+    */
+    public void rollback(TransactionId tid)
+        throws NoSuchElementException, IOException {
+        // index pages are shared with other writers, who may have changed
+        // them since: the entries are undone through the pool, and its
+        // monitor must not be held meanwhile
+        Database.getBufferPool().undoEntries(tid);
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+        synchronized (Database.getBufferPool()) {
+            ArrayList<Change> changes = new ArrayList<Change>();
+            synchronized(this) {
+                preAppend();
+                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not running");
+                writeBuffer();
+                Reader in = reader(first);
+                while (in.position() < currentOffset) {
+                    int type = in.readInt();
+                    long recordTid = in.readLong();
+                    if (type == UPDATE_RECORD || type == SLOT_RECORD) {
+                        Change change = readChange(in, type);
+                        if (recordTid == tid.getId() && change != null)
+                            changes.add(change);
+                    } else if (type == INDEX_RECORD) {
+                        readIndexChange(in);
+                    } else if (type == CHECKPOINT_RECORD) {
+                        skipCheckpoint(in);
+                    }
+                    in.readLong();
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
 
-                Debug.log("NEW START = " + newStart);
+            // the page writer logs while it holds page latches, so the
+            // pages are undone without holding the log's monitor
+            for (int i = changes.size() - 1; i >= 0; i--)
+                undoInPool(tid, changes.get(i));
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+            // the restored pages are only dirty in the pool, and the dirty
+            // page table leaves heap pages out: once the ABORT record is
+            // logged, a checkpoint can move recovery past tid's updates, so
+            // every change of tid's must be off the disk before that
+            Database.getBufferPool().undoBeforeAbort(tid);
+        }
+    }
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+    /** Undo change on its page in the buffer pool. */
+    private void undoInPool(TransactionId tid, Change change) throws IOException {
+        DbFile file = Database.getCatalog().getDbFile(change.pid.getTableId());
+        if (change.slots != null) {
+            ((HeapFile)file).restoreSlots(tid, change.pid, change.slots, change.beforeSlots);
+        } else {
+            Database.getBufferPool().discardPage(change.pid);
+            file.writePage(change.before);
+        }
+    }
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+    /**
+     * What an UPDATE or SLOT record changed on a page.  The slots are set
+     * for heap pages, the full images only for UPDATE records.
+     */
+    private static class Change {
+        PageId pid;
+        Page before, after;
+        int[] slots;
+        byte[][] beforeSlots, afterSlots;
+
+        /** The change of an UPDATE record. */
+        Change(Page before, Page after) {
+            this.pid = after.getId();
+            this.before = before;
+            this.after = after;
+            if (after instanceof HeapPage) {
+                HeapPage b = (HeapPage)before, a = (HeapPage)after;
+                ArrayList<Integer> changed = new ArrayList<Integer>();
+                ArrayList<byte[]> was = new ArrayList<byte[]>(), is = new ArrayList<byte[]>();
+                for (int i = 0; i < a.numSlots; i++) {
+                    byte[] from = b.getSlotData(i), to = a.getSlotData(i);
+                    if (!Arrays.equals(from, to)) {
+                        changed.add(i);
+                        was.add(from);
+                        is.add(to);
                     }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
                 }
+                slots = new int[changed.size()];
+                for (int i = 0; i < slots.length; i++)
+                    slots[i] = changed.get(i);
+                beforeSlots = was.toArray(new byte[slots.length][]);
+                afterSlots = is.toArray(new byte[slots.length][]);
+            }
+        }
+
+        /** Read the change of a SLOT record. */
+        Change(DataInput in) throws IOException {
+            pid = new HeapPageId(in.readInt(), in.readInt());
+            slots = new int[in.readInt()];
+            beforeSlots = new byte[slots.length][];
+            afterSlots = new byte[slots.length][];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = in.readInt();
+                beforeSlots[i] = readSlot(in);
+                afterSlots[i] = readSlot(in);
+            }
+        }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        private static byte[] readSlot(DataInput in) throws IOException {
+            int len = in.readInt();
+            if (len < 0)
+                return null;
+            byte[] data = new byte[len];
+            in.readFully(data);
+            return data;
+        }
 
-            } catch (EOFException e) {
-                break;
+        /** @return the body of a SLOT record for this change */
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(pid.getTableId());
+            out.writeInt(pid.pageNumber());
+            out.writeInt(slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                out.writeInt(slots[i]);
+                writeSlot(out, beforeSlots[i]);
+                writeSlot(out, afterSlots[i]);
             }
+            out.flush();
+            return bytes.toByteArray();
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        private static void writeSlot(DataOutput out, byte[] data) throws IOException {
+            out.writeInt(data == null ? -1 : data.length);
+            if (data != null)
+                out.write(data);
+        }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        /** Set the changed slots of page to their contents in data. */
+        void apply(HeapPage page, byte[][] data) {
+            for (int i = 0; i < slots.length; i++)
+                page.restoreSlot(slots[i], data[i]);
+        }
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /**
+     * Read the rest of an UPDATE or SLOT record, up to its start offset.
+     *
+     * @return the change, or null if it is to a table no longer in the catalog
+     */
+    private Change readChange(DataInput in, int type) throws IOException {
+        if (type == SLOT_RECORD)
+            return new Change(in);
+        Page before = readPageData(in);
+        Page after = readPageData(in);
+        // a page of a file dropped since, like an index whose build aborted
+        if (before == null || after == null)
+            return null;
+        return new Change(before, after);
     }
 
-    /** Rollback the specified transaction, setting the state of any
-        of pages it updated to their pre-updated state.  To preserve
-        transaction semantics, this should not be called on
-        transactions that have already committed (though this may not
-        be enforced by this method.)
+    /** What an INDEX record logged. */
+    private static class IndexChange {
+        int tableId;
+        int kind;
+        /** The entry, or null if the record logs none or its file is no longer in the catalog. */
+        Tuple entry;
+        /** The pages after the change, but those of dropped files. */
+        final ArrayList<Page> pages = new ArrayList<Page>();
+        /** The page number of the page the entry was added to or removed from, or -1 if pages are logged. */
+        int pageNo;
+        /** That page, or null if the file is no longer in the catalog. */
+        PageId pid;
+        /** Whether the entry was added to the page. */
+        boolean added;
+        /** The slot of the entry on the page. */
+        int slot;
+    }
 
-        @param tid The transaction to rollback
-    */
-    public void rollback(TransactionId tid)
-        throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+    /** Read the rest of an INDEX record, up to its start offset. */
+    private IndexChange readIndexChange(DataInput in) throws IOException {
+        IndexChange change = new IndexChange();
+        change.tableId = in.readInt();
+        change.kind = in.readInt();
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        if (bytes.length > 0 && Database.getCatalog().hasTable(change.tableId)) {
+            TupleDesc td = Database.getCatalog().getTupleDesc(change.tableId);
+            DataInputStream fields = new DataInputStream(new ByteArrayInputStream(bytes));
+            change.entry = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    change.entry.setField(i, td.getFieldType(i).parse(fields));
+            } catch (java.text.ParseException e) {
+                throw new IOException("could not parse a logged index entry");
             }
         }
+        change.pageNo = in.readInt();
+        if (change.pageNo >= 0) {
+            change.added = in.readInt() == 1;
+            change.slot = in.readInt();
+            if (Database.getCatalog().hasTable(change.tableId))
+                change.pid = entryPageId(change.tableId, change.pageNo);
+            return change;
+        }
+        int numPages = in.readInt();
+        while (numPages-- > 0) {
+            Page page = readPageData(in);
+            if (page != null)
+                change.pages.add(page);
+        }
+        return change;
+    }
+
+    /** @return the id of the leaf or bucket page pageNo of the index file tableId */
+    private static PageId entryPageId(int tableId, int pageNo) {
+        if (Database.getCatalog().getDbFile(tableId) instanceof BTreeFile)
+            return new BTreePageId(tableId, pageNo, BTreePageId.LEAF);
+        return new HashPageId(tableId, pageNo);
+    }
+
+    /** Read the rest of a CHECKPOINT record, up to its start offset. */
+    private static void skipCheckpoint(Reader in) throws IOException {
+        int numXactions = in.readInt();
+        in.seek(in.position() + numXactions * 2 * LONG_SIZE);
+        int numPages = in.readInt();
+        in.seek(in.position() + numPages * (2 * INT_SIZE + LONG_SIZE));
     }
 
     /** Shutdown the logging system, writing out whatever state
@@ -478,7 +935,8 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            stopFlusher();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +946,346 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery repeats history from the last checkpoint, or from the
+        first record of a transaction that was running at it: it redoes
+        every UPDATE in log order, undoes the updates of a transaction
+        where its ABORT record is, and finally undoes the updates of the
+        transactions that never finished, newest first, and logs their
+        ABORT.  Updates are applied slot by slot, to the slots that differ
+        between the before and after image, so that the changes of
+        transactions that wrote different records of the same page are
+        kept apart.  INDEX records are redone from their page images, and
+        by adding or removing their entries at their slots; before the
+        checkpoint, only the changes to the pages in its dirty page table
+        from their recLsn on are redone, since the others are on disk
+        already and an entry must not be added twice.  The index changes
+        of the unfinished transactions are undone once the other pages are
+        on disk, through the buffer pool, like an abort undoes them.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
+            HashMap<Long, ArrayList<Long>> running = new HashMap<Long, ArrayList<Long>>();
+            HashMap<Long, ArrayList<Long>> entries = new HashMap<Long, ArrayList<Long>>();
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                long start = segments.start();
+                long cp = segments.checkpoint();
+                HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+                if (cp != NO_CHECKPOINT_ID) {
+                    HashMap<Long, Long> active = new HashMap<Long, Long>();
+                    start = readCheckpoint(cp, active, dirty);
+                    for (Long tid : active.keySet())
+                        running.put(tid, new ArrayList<Long>());
+                }
+
+                // redo, undoing aborted transactions on the way
+                HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+                long end = start;
+                Reader in = reader(start);
+                while (true) {
+                    try {
+                        long offset = in.position();
+                        int type = in.readInt();
+                        long tid = in.readLong();
+                        switch (type) {
+                        case UPDATE_RECORD:
+                        case SLOT_RECORD:
+                            redo(pages, readChange(in, type));
+                            ArrayList<Long> updates = running.get(tid);
+                            if (updates == null) {
+                                updates = new ArrayList<Long>();
+                                running.put(tid, updates);
+                            }
+                            updates.add(offset);
+                            break;
+                        case INDEX_RECORD:
+                            IndexChange change = readIndexChange(in);
+                            redo(pages, change, offset < cp ? dirty : null, offset);
+                            if (!running.containsKey(tid))
+                                running.put(tid, new ArrayList<Long>());
+                            ArrayList<Long> changed = entries.get(tid);
+                            if (changed == null) {
+                                changed = new ArrayList<Long>();
+                                entries.put(tid, changed);
+                            }
+                            // undos go newest first, so this one undid the
+                            // newest change not undone yet
+                            if (change.kind == ENTRY_UNDONE) {
+                                if (!changed.isEmpty())
+                                    changed.remove(changed.size() - 1);
+                            } else if (change.kind != PAGE_LOADED) {
+                                changed.add(offset);
+                            }
+                            break;
+                        case BEGIN_RECORD:
+                            running.put(tid, new ArrayList<Long>());
+                            break;
+                        case COMMIT_RECORD:
+                            running.remove(tid);
+                            entries.remove(tid);
+                            break;
+                        case ABORT_RECORD:
+                            // an abort undoes its index changes before it logs this
+                            entries.remove(tid);
+                            ArrayList<Long> aborted = running.remove(tid);
+                            if (aborted != null)
+                                undo(pages, aborted);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            skipCheckpoint(in);
+                            break;
+                        default:
+                            throw new IOException("unknown log record type " + type + " at offset " + offset);
+                        }
+                        in.readLong();
+                        end = in.position();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                }
+                // drop a record that was cut short by the crash
+                segments.truncate(end);
+
+                // undo the transactions that never finished
+                ArrayList<Long> losers = new ArrayList<Long>();
+                for (ArrayList<Long> updates : running.values())
+                    losers.addAll(updates);
+                Collections.sort(losers);
+                undo(pages, losers);
+
+                BufferPool bp = Database.getBufferPool();
+                for (Page page : pages.values()) {
+                    DbFile file = Database.getCatalog().getDbFile(page.getId().getTableId());
+                    if (file instanceof HeapFile)
+                        ((HeapFile)file).writeRecovered((HeapPage)page);
+                    else
+                        file.writePage(page);
+                    bp.discardPage(page.getId());
+                }
+
+                currentOffset = end;
+                bufferStart = end;
+                // they count as running until their ABORT records
+                for (Long tid : running.keySet())
+                    tidToFirstLogRecord.put(tid, currentOffset);
+            }
+
+            // the page writer takes this monitor while it holds page
+            // latches, so index pages are not latched under it
+            undoEntries(running.keySet(), entries);
+
+            synchronized (this) {
+                for (Long tid : running.keySet()) {
+                    putInt(ABORT_RECORD);
+                    putLong(tid);
+                    putLong(currentOffset);
+                    currentOffset = end();
+                }
+                force();
+                tidToFirstLogRecord.clear();
+                imaged.clear();
             }
          }
     }
 
+    /**
+     * Undo the index changes of the unfinished transactions losers, which
+     * the INDEX records at the offsets in entries logged, newest first.
+     * The undone changes are logged, and the pages they change written.
+     */
+    private void undoEntries(Set<Long> losers, Map<Long, ArrayList<Long>> entries) throws IOException {
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        for (Long tid : losers) {
+            if (entries.containsKey(tid))
+                offsets.addAll(entries.get(tid));
+        }
+        Collections.sort(offsets);
+        for (int i = offsets.size() - 1; i >= 0; i--) {
+            Reader in = reader(offsets.get(i));
+            in.readInt();
+            TransactionId tid = new TransactionId(in.readLong());
+            IndexChange change = readIndexChange(in);
+            if (change.entry == null)
+                continue;
+            try {
+                ((IndexFile)Database.getCatalog().getDbFile(change.tableId))
+                    .undo(tid, change.entry, change.kind == ENTRY_INSERTED);
+            } catch (DbException e) {
+                throw new IOException("could not undo a change to an index: " + e.getMessage());
+            } catch (TransactionAbortedException e) {
+                throw new IOException("could not undo a change to an index");
+            }
+        }
+        for (Long tid : losers)
+            Database.getBufferPool().flushIndexPages(new TransactionId(tid));
+    }
+
+    /** Undo the UPDATE and SLOT records at offsets, the latest first. */
+    private void undo(Map<PageId, Page> pages, List<Long> offsets) throws IOException {
+        for (int i = offsets.size() - 1; i >= 0; i--) {
+            Reader in = reader(offsets.get(i));
+            int type = in.readInt();
+            in.readLong();
+            Change change = readChange(in, type);
+            if (change == null)
+                continue;
+            if (change.slots != null)
+                change.apply((HeapPage)page(pages, change.pid), change.beforeSlots);
+            else
+                pages.put(change.pid, change.before);
+        }
+    }
+
+    /**
+     * Redo change.  The full after image of an UPDATE record replaces the
+     * page, which also repairs a page torn by the crash; a SLOT record
+     * only sets its slots.
+     */
+    private static void redo(Map<PageId, Page> pages, Change change) {
+        if (change == null)
+            return;
+        if (change.after != null)
+            pages.put(change.pid, change.after);
+        else
+            change.apply((HeapPage)page(pages, change.pid), change.afterSlots);
+    }
+
+    /**
+     * Redo the INDEX record at offset.  If dirty is not null, it is the
+     * dirty page table of a checkpoint after the record, and only the
+     * changes to the pages in it, from their recLsn on, are redone.
+     */
+    private static void redo(Map<PageId, Page> pages, IndexChange change, Map<PageId, Long> dirty,
+            long offset) {
+        for (Page page : change.pages) {
+            if (lost(page.getId(), offset, dirty))
+                pages.put(page.getId(), page);
+        }
+        if (change.pid == null || change.entry == null || !lost(change.pid, offset, dirty))
+            return;
+        Page page = page(pages, change.pid);
+        List<Tuple> entries = page instanceof BTreeLeafPage
+            ? ((BTreeLeafPage)page).tuples : ((HashBucketPage)page).tuples;
+        if (change.added)
+            entries.add(change.slot, change.entry);
+        else
+            entries.remove(change.slot);
+    }
+
+    /**
+     * @return true if the change logged at offset to pid may be missing
+     *   from the disk, as the dirty page table dirty tells, or if dirty is null
+     */
+    private static boolean lost(PageId pid, long offset, Map<PageId, Long> dirty) {
+        if (dirty == null)
+            return true;
+        Long recLsn = dirty.get(pid);
+        return recLsn != null && offset >= recLsn;
+    }
+
+    /** @return the page pid in pages, read from disk the first time */
+    private static Page page(Map<PageId, Page> pages, PageId pid) {
+        Page page = pages.get(pid);
+        if (page == null) {
+            page = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+            pages.put(pid, page);
+        }
+        return page;
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
+        synchronized (this) {
+            writeBuffer();
+            System.out.println("checkpoint at " + segments.checkpoint());
+            Reader in = reader(segments.start());
+            while (true) {
+                long offset = in.position();
+                int type;
+                try {
+                    type = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                long tid = in.readLong();
+                StringBuilder line = new StringBuilder(offset + ": ");
+                switch (type) {
+                case ABORT_RECORD:
+                    line.append("ABORT ").append(tid);
+                    break;
+                case COMMIT_RECORD:
+                    line.append("COMMIT ").append(tid);
+                    break;
+                case BEGIN_RECORD:
+                    line.append("BEGIN ").append(tid);
+                    break;
+                case UPDATE_RECORD:
+                    Page before = readPageData(in);
+                    readPageData(in);
+                    if (before == null) {
+                        line.append("UPDATE ").append(tid).append(" of a dropped table");
+                        break;
+                    }
+                    PageId pid = before.getId();
+                    line.append("UPDATE ").append(tid).append(" table ").append(pid.getTableId())
+                        .append(" page ").append(pid.pageNumber());
+                    break;
+                case INDEX_RECORD:
+                    IndexChange entry = readIndexChange(in);
+                    String[] kinds = { "deleted", "inserted", "undone", "loaded" };
+                    line.append("INDEX ").append(tid).append(" table ").append(entry.tableId)
+                        .append(" ").append(kinds[entry.kind]);
+                    if (entry.entry != null)
+                        line.append(" ").append(entry.entry);
+                    if (entry.pageNo >= 0) {
+                        line.append(entry.added ? ", added to page " : ", removed from page ")
+                            .append(entry.pageNo).append(" slot ").append(entry.slot);
+                        break;
+                    }
+                    line.append(", pages:");
+                    for (Page page : entry.pages)
+                        line.append(" ").append(page.getId().pageNumber());
+                    break;
+                case SLOT_RECORD:
+                    Change change = new Change(in);
+                    line.append("SLOT ").append(tid).append(" table ").append(change.pid.getTableId())
+                        .append(" page ").append(change.pid.pageNumber())
+                        .append(" slots ").append(Arrays.toString(change.slots));
+                    break;
+                case CHECKPOINT_RECORD:
+                    line.append("CHECKPOINT, running:");
+                    int numXactions = in.readInt();
+                    while (numXactions-- > 0) {
+                        long xid = in.readLong();
+                        line.append(" ").append(xid).append("@").append(in.readLong());
+                    }
+                    line.append(", dirty:");
+                    int numPages = in.readInt();
+                    while (numPages-- > 0) {
+                        line.append(" ").append(in.readInt()).append(":").append(in.readInt())
+                            .append("@").append(in.readLong());
+                    }
+                    break;
+                default:
+                    line.append("unknown record type ").append(type);
+                    System.out.println(line);
+                    return;
+                }
+                line.append(" (start ").append(in.readLong()).append(")");
+                System.out.println(line);
+            }
+        }
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        writeBuffer();
+        synchronized (forceLock) {
+            segments.force();
+            flushedLsn = Math.max(flushedLsn, bufferStart);
+        }
     }
 
 }
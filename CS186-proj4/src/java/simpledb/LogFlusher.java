@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * LogFlusher forces the log on behalf of committing transactions, so that
+ * commits share forces instead of paying for one each.
+ * <p>
+ * A committing transaction appends its COMMIT record and then waits until
+ * the flusher has forced the log past it.  The flusher forces everything
+ * appended so far, so all the commits that arrived while the previous force
+ * was running are made durable by the next single force.  With a maximum
+ * delay, the flusher also waits that long after the first commit of a group
+ * before forcing, to let more commits join it.
+ * <p>
+ * Once a force fails, the log cannot be trusted to hold what was appended
+ * before it, so every later commit fails too.
+ *
+ * @see LogFile#logCommit
+ */
+class LogFlusher implements Runnable {
+
+    private final LogFile log;
+    private final long maxDelayMicros;
+    private final Thread thread;
+
+    /** The LSN committers are waiting for, and the LSN the log is forced to. */
+    private long requested, forced;
+    private long forces;
+    private IOException failure;
+    private boolean stopped;
+
+    /**
+     * Start a flusher for log.
+     *
+     * @param maxDelayMicros how long to wait for more commits before
+     *   forcing, or 0 to force right away
+     */
+    LogFlusher(LogFile log, long maxDelayMicros) {
+        this.log = log;
+        this.maxDelayMicros = maxDelayMicros;
+        thread = new Thread(this, "simpledb-log-flusher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait until the log is forced up to lsn.
+     *
+     * @throws IOException if forcing the log failed
+     */
+    void waitForced(long lsn) throws IOException {
+        synchronized (this) {
+            if (!stopped) {
+                if (lsn > requested) {
+                    requested = lsn;
+                    notifyAll();
+                }
+                boolean interrupted = false;
+                while (forced < lsn && failure == null && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true; // the commit is in the log, it must become durable
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+                if (failure != null)
+                    throw new IOException("could not force the log: " + failure.getMessage());
+                if (forced >= lsn)
+                    return;
+            }
+        }
+        // stopped meanwhile
+        log.forceTo(lsn);
+    }
+
+    /** @return how many forces the flusher did */
+    synchronized long getForces() {
+        return forces;
+    }
+
+    /** Stop the flusher once it has forced what is already waiting. */
+    synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    public void run() {
+        while (true) {
+            long lsn;
+            synchronized (this) {
+                while (requested <= forced && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (requested <= forced || failure != null)
+                    return;
+                lsn = requested;
+            }
+            if (maxDelayMicros > 0) {
+                try {
+                    Thread.sleep(maxDelayMicros / 1000, (int)(maxDelayMicros % 1000) * 1000);
+                } catch (InterruptedException e) {
+                    // force right away
+                }
+            }
+            try {
+                long upTo = log.forceTo(lsn);
+                synchronized (this) {
+                    forced = Math.max(forced, upTo);
+                    forces++;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+}
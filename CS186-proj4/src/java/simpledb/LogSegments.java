@@ -0,0 +1,260 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the bytes of the log in a sequence of segment files
+ * of a fixed size, so that the front of the log can be dropped by deleting
+ * whole files instead of rewriting what is left.
+ * <p>
+ * Bytes are addressed by their offset in the log, which never changes:
+ * segment n of the log file "log" is the file "log.n" and holds the bytes
+ * from n * segmentSize on.  The log file itself only holds the offset of
+ * the last checkpoint record.
+ * <p>
+ * Writes, reads and dropping segments are serialized by the caller;
+ * {@link #force} may run at the same time as writes.
+ *
+ * @see LogFile
+ */
+class LogSegments {
+
+    private final File control;
+    private final long segmentSize;
+    private final RandomAccessFile controlFile;
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+    /** Segments written to since they were last forced. */
+    private final HashSet<Long> unforced = new HashSet<Long>();
+    private long length;
+
+    /**
+     * Open the log stored under control, with the segments that already
+     * exist next to it.
+     */
+    LogSegments(File control, long segmentSize) throws IOException {
+        this.control = control;
+        this.segmentSize = segmentSize;
+        controlFile = new RandomAccessFile(control, "rw");
+        File dir = control.getAbsoluteFile().getParentFile();
+        String prefix = control.getName() + ".";
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(prefix))
+                    continue;
+                try {
+                    long n = Long.parseLong(name.substring(prefix.length()));
+                    segments.put(n, new RandomAccessFile(new File(dir, name), "rw"));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        if (!segments.isEmpty())
+            length = segments.lastKey() * segmentSize + segments.lastEntry().getValue().length();
+    }
+
+    private File segmentFile(long n) {
+        return new File(control.getAbsoluteFile().getParentFile(), control.getName() + "." + n);
+    }
+
+    private synchronized RandomAccessFile segment(long n, boolean create) throws IOException {
+        RandomAccessFile f = segments.get(n);
+        if (f == null && create) {
+            f = new RandomAccessFile(segmentFile(n), "rw");
+            segments.put(n, f);
+        }
+        return f;
+    }
+
+    /** @return the offset just past the last byte of the log */
+    long length() {
+        return length;
+    }
+
+    /** @return the offset of the first byte still kept */
+    synchronized long start() {
+        return segments.isEmpty() ? length : segments.firstKey() * segmentSize;
+    }
+
+    /** Write the remaining bytes of buf at offset, which must be at most {@link #length}. */
+    void write(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            long n = offset / segmentSize;
+            int within = (int)(offset % segmentSize);
+            int count = (int)Math.min(buf.remaining(), segmentSize - within);
+            ByteBuffer part = buf.duplicate();
+            part.limit(part.position() + count);
+            FileChannel ch = segment(n, true).getChannel();
+            while (part.hasRemaining())
+                within += ch.write(part, within);
+            synchronized (this) {
+                unforced.add(n);
+            }
+            buf.position(buf.position() + count);
+            offset += count;
+            length = Math.max(length, offset);
+        }
+    }
+
+    /**
+     * Read into buf from offset on, stopping at the end of the log.
+     *
+     * @return the number of bytes read, -1 at the end of the log
+     */
+    int read(ByteBuffer buf, long offset) throws IOException {
+        if (offset >= length)
+            return -1;
+        long n = offset / segmentSize;
+        RandomAccessFile f = segment(n, false);
+        if (f == null)
+            throw new IOException("log offset " + offset + " was dropped");
+        int within = (int)(offset % segmentSize);
+        int count = (int)Math.min(buf.remaining(), Math.min(segmentSize - within, length - offset));
+        ByteBuffer part = buf.duplicate();
+        part.limit(part.position() + count);
+        int read = 0;
+        while (part.hasRemaining()) {
+            int r = f.getChannel().read(part, within + read);
+            if (r < 0)
+                throw new EOFException("log segment " + n + " is short");
+            read += r;
+        }
+        buf.position(buf.position() + read);
+        return read;
+    }
+
+    /** Force the segments written to since the last force. */
+    void force() throws IOException {
+        ArrayList<RandomAccessFile> toForce = new ArrayList<RandomAccessFile>();
+        synchronized (this) {
+            for (Long n : unforced)
+                toForce.add(segments.get(n));
+            unforced.clear();
+        }
+        for (RandomAccessFile f : toForce)
+            f.getChannel().force(true);
+    }
+
+    /** Cut the log off at offset. */
+    synchronized void truncate(long offset) throws IOException {
+        for (Iterator<Map.Entry<Long, RandomAccessFile>> it = segments.tailMap(offset / segmentSize).entrySet().iterator();
+             it.hasNext(); ) {
+            Map.Entry<Long, RandomAccessFile> e = it.next();
+            long from = e.getKey() * segmentSize;
+            if (from >= offset && from > 0) {
+                e.getValue().close();
+                segmentFile(e.getKey()).delete();
+                unforced.remove(e.getKey());
+                it.remove();
+            } else {
+                e.getValue().setLength(offset - from);
+            }
+        }
+        length = offset;
+    }
+
+    /**
+     * Drop the segments that only hold bytes before offset.  The caller
+     * must keep forces from running meanwhile.
+     *
+     * @return the number of segments dropped
+     */
+    synchronized int dropBefore(long offset) throws IOException {
+        int dropped = 0;
+        // always keep the segment the log ends in
+        while (segments.size() > 1 && (segments.firstKey() + 1) * segmentSize <= offset) {
+            long n = segments.firstKey();
+            segments.remove(n).close();
+            unforced.remove(n);
+            segmentFile(n).delete();
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /** Drop the whole log. */
+    synchronized void clear() throws IOException {
+        for (Map.Entry<Long, RandomAccessFile> e : segments.entrySet()) {
+            e.getValue().close();
+            segmentFile(e.getKey()).delete();
+        }
+        segments.clear();
+        unforced.clear();
+        length = 0;
+    }
+
+    /** @return the number of segment files */
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /** @return the offset of the last checkpoint record, or -1 if there is none */
+    long checkpoint() throws IOException {
+        if (controlFile.length() < LogFile.LONG_SIZE)
+            return LogFile.NO_CHECKPOINT_ID;
+        controlFile.seek(0);
+        return controlFile.readLong();
+    }
+
+    /** Durably note that the last checkpoint record is at offset. */
+    void setCheckpoint(long offset) throws IOException {
+        controlFile.seek(0);
+        controlFile.writeLong(offset);
+        controlFile.getChannel().force(true);
+    }
+
+    synchronized void close() throws IOException {
+        for (RandomAccessFile f : segments.values())
+            f.close();
+        controlFile.close();
+    }
+
+    /** A stream of the bytes of the log from a given offset on. */
+    class Input extends InputStream {
+        private final ByteBuffer buf = ByteBuffer.allocate(LogFile.LOG_BUFFER_SIZE);
+        private long bufStart;
+
+        Input(long offset) {
+            seek(offset);
+        }
+
+        /** @return the offset of the next byte read */
+        long position() {
+            return bufStart + buf.position();
+        }
+
+        void seek(long offset) {
+            bufStart = offset;
+            buf.clear();
+            buf.limit(0);
+        }
+
+        private boolean fill() throws IOException {
+            if (buf.hasRemaining())
+                return true;
+            bufStart += buf.position();
+            buf.clear();
+            int r = LogSegments.this.read(buf, bufStart);
+            buf.flip();
+            return r > 0;
+        }
+
+        public int read() throws IOException {
+            return fill() ? buf.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int count = Math.min(len, buf.remaining());
+            buf.get(b, off, count);
+            return count;
+        }
+    }
+}
@@ -23,6 +23,12 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /**
+     * Whether probing an index of t2 for each tuple of t1 is cheaper than
+     * a nested-loop join; set by the {@link JoinOptimizer}.
+     */
+    public boolean indexJoin;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +69,13 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** @return a copy of this join that is an index join if indexJoin is true */
+    public LogicalJoinNode withIndexJoin(boolean indexJoin) {
+        LogicalJoinNode j = new LogicalJoinNode(t1Alias, t2Alias, f1PureName, f2PureName, p);
+        j.indexJoin = indexJoin;
+        return j;
+    }
+
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
@@ -2,7 +2,9 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
@@ -19,7 +21,8 @@ import java.util.NoSuchElementException;
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
  * {@link JoinOptimizer} to order joins optimally and to select the
- * best implementations for joins.
+ * best implementations for joins, and {@link TableStats} to choose between
+ * scanning each table and reading it through one of its indexes.
  */
 public class LogicalPlan {
     private Vector<LogicalJoinNode> joins;
@@ -290,17 +293,20 @@ public class LogicalPlan {
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
 
+        Set<LogicalFilterNode> indexed = new HashSet<LogicalFilterNode>();
+
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbIterator ss = null;
+            String baseTableName;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDbFile(table.t).getId(), table.alias);
+                 baseTableName = Database.getCatalog().getTableName(table.t);
+                 ss = accessPath(t, table, baseTableStats.get(baseTableName), indexed);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
             subplanMap.put(table.alias,ss);
-            String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
 
@@ -324,10 +330,7 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldPureName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = constant(ftyp, lf.c);
 
             Predicate p = null;
             try {
@@ -335,17 +338,20 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldPureName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // the index scan already applies its filter
+            if (!indexed.contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldPureName), lf.p, f);
+            double sel= s.estimateSelectivity(Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias))
+                    .fieldNameToIndex(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
-        JoinOptimizer jo = new JoinOptimizer(this,joins);
+        JoinOptimizer jo = new JoinOptimizer(this,joins,t);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
@@ -485,6 +491,93 @@ public class LogicalPlan {
         return new Project(outFields, outTypes, node);
     }
 
+    /** @return the constant c of a filter on a field of type ftyp */
+    private static Field constant(Type ftyp, String c) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(c).intValue());
+        else
+            return new StringField(c, Type.STRING_LEN);
+    }
+
+    /**
+     * Choose how to read a table: with an {@link IndexScan} that applies
+     * one of the filters on it, if the table has an index on the filtered
+     * field that supports the filter's operator and stats estimate that
+     * cheaper than a sequential scan, and
+     * with a {@link SeqScan} otherwise.  A snapshot transaction always
+     * scans, since it can only read heap pages.
+     *
+     * @param stats the statistics of the table, or null if there are none
+     * @param indexed gets the filter the chosen index scan applies, if any
+     * @throws NoSuchElementException if the table does not exist
+     */
+    private DbIterator accessPath(TransactionId t, LogicalScanNode table, TableStats stats,
+            Set<LogicalFilterNode> indexed) {
+        DbFile file = Database.getCatalog().getDbFile(table.t);
+        DbIterator best = new SeqScan(t, file.getId(), table.alias);
+        if (stats == null || !(file instanceof HeapFile)
+                || Database.getBufferPool().isSnapshot(t))
+            return best;
+        TupleDesc td = file.getTupleDesc();
+        double bestCost = stats.estimateScanCost();
+        LogicalFilterNode bestFilter = null;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias))
+                continue;
+            int field;
+            try {
+                field = td.fieldNameToIndex(lf.fieldPureName);
+            } catch (NoSuchElementException e) {
+                continue; // reported when the filters are added
+            }
+            for (Catalog.Index index : Database.getCatalog().getIndexes(table.t)) {
+                if (index.getField() != field || !index.getFile().supports(lf.p))
+                    continue;
+                Field c = constant(td.getFieldType(field), lf.c);
+                boolean covering = onlyUses(table.alias, lf.fieldPureName);
+                double cost = stats.estimateIndexScanCost(index,
+                        stats.estimateSelectivity(field, lf.p, c), covering);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestFilter = lf;
+                    best = new IndexScan(t, index, table.alias, new IndexPredicate(lf.p, c), covering);
+                }
+            }
+        }
+        if (bestFilter != null)
+            indexed.add(bestFilter);
+        return best;
+    }
+
+    /** @return true if the query uses no field of table alias other than field */
+    private boolean onlyUses(String alias, String field) {
+        String name = alias + "." + field;
+        for (LogicalSelectListNode si : selectList) {
+            if (usesOther(si.fname, alias, name))
+                return false;
+        }
+        if ((aggField != null && usesOther(aggField, alias, name))
+                || (groupByField != null && usesOther(groupByField, alias, name))
+                || (hasOrderBy && usesOther(oByField, alias, name)))
+            return false;
+        for (LogicalFilterNode lf : filters) {
+            if (usesOther(lf.fieldQuantifiedName, alias, name))
+                return false;
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (usesOther(lj.t1Alias + "." + lj.f1PureName, alias, name)
+                    || (!(lj instanceof LogicalSubplanJoinNode)
+                        && usesOther(lj.t2Alias + "." + lj.f2PureName, alias, name)))
+                return false;
+        }
+        return true;
+    }
+
+    /** @return true if the qualified field name ref is *, or a field of alias other than name */
+    private static boolean usesOther(String ref, String alias, String name) {
+        return ref.equals("null.*") || (ref.startsWith(alias + ".") && !ref.equals(name));
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
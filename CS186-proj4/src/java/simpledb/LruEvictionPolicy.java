@@ -0,0 +1,49 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Least recently used eviction.  Every hit stamps the frame with the
+ * current time and eviction scans for the oldest unpinned frame.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private final ArrayList<BufferPool.Frame> frames;
+
+    /**
+     * @param numPages the capacity of the buffer pool this policy serves
+     */
+    public LruEvictionPolicy(int numPages) {
+        frames = new ArrayList<BufferPool.Frame>(numPages);
+    }
+
+    public void frameAdded(BufferPool.Frame f) {
+        f.lastAccess = System.nanoTime();
+        f.slot = frames.size();
+        frames.add(f);
+    }
+
+    public void frameAccessed(BufferPool.Frame f) {
+        f.lastAccess = System.nanoTime();
+    }
+
+    public BufferPool.Frame chooseVictim() {
+        BufferPool.Frame victim = null;
+        for (BufferPool.Frame f : frames) {
+            if (f.isPinned()) continue;
+            if (victim == null || f.lastAccess < victim.lastAccess)
+                victim = f;
+        }
+        return victim;
+    }
+
+    public void frameRemoved(BufferPool.Frame f) {
+        // move the last frame into the hole so removal stays O(1)
+        BufferPool.Frame last = frames.remove(frames.size() - 1);
+        if (last != f) {
+            frames.set(f.slot, last);
+            last.slot = f.slot;
+        }
+        f.slot = -1;
+    }
+}
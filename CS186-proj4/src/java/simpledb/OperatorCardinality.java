@@ -29,9 +29,14 @@ public class OperatorCardinality {
         } else if (o instanceof HashEquiJoin) {
             return updateHashEquiJoinCardinality((HashEquiJoin) o,
                     tableAliasToId, tableStats);
+        } else if (o instanceof IndexJoin) {
+            return updateIndexJoinCardinality((IndexJoin) o, tableAliasToId,
+                    tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
+        } else if (o instanceof IndexScan) {
+            return updateIndexScanCardinality((IndexScan) o, tableStats);
         } else {
             DbIterator[] children = o.getChildren();
             int childC = 1;
@@ -52,6 +57,16 @@ public class OperatorCardinality {
         }
     }
 
+    private static boolean updateIndexScanCardinality(IndexScan s,
+            Map<String, TableStats> tableStats) {
+        TableStats stats = tableStats.get(s.getTableName());
+        IndexPredicate ipred = s.getPredicate();
+        double selectivity = stats.estimateSelectivity(s.getIndex().getField(),
+                ipred.getOp(), ipred.getField());
+        s.setEstimatedCardinality(stats.estimateTableCardinality(selectivity) + 1);
+        return false;
+    }
+
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -91,85 +106,62 @@ public class OperatorCardinality {
     private static boolean updateJoinCardinality(Join j,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
-
         DbIterator[] children = j.getChildren();
-        DbIterator child1 = children[0];
-        DbIterator child2 = children[1];
-        int child1Card = 1;
-        int child2Card = 1;
-
         System.out.println("JoinFieldName: "+j.getJoinField1Name());
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
-        String tableAlias1 = tmp1[0];
-        String pureFieldName1 = tmp1[1];
-
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
-        String tableAlias2 = tmp2[0];
-        String pureFieldName2 = tmp2[1];
-
-        boolean child1HasJoinPK = Database.getCatalog()
-                .getPrimaryKey(tableAliasToId.get(tableAlias1))
-                .equals(pureFieldName1);
-        boolean child2HasJoinPK = Database.getCatalog()
-                .getPrimaryKey(tableAliasToId.get(tableAlias2))
-                .equals(pureFieldName2);
-
-        if (child1 instanceof Operator) {
-            Operator child1O = (Operator) child1;
-            boolean pk = updateOperatorCardinality(child1O, tableAliasToId,
-                    tableStats);
-            child1HasJoinPK = pk || child1HasJoinPK;
-            child1Card = child1O.getEstimatedCardinality();
-            child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
-        }
-
-        if (child2 instanceof Operator) {
-            Operator child2O = (Operator) child2;
-            boolean pk = updateOperatorCardinality(child2O, tableAliasToId,
-                    tableStats);
-            child2HasJoinPK = pk || child2HasJoinPK;
-            child2Card = child2O.getEstimatedCardinality();
-            child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
-        }
-
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
-                pureFieldName1, pureFieldName2, child1Card, child2Card,
-                child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
-        return child1HasJoinPK || child2HasJoinPK;
+        return updateJoinCardinality(j, j.getJoinPredicate().getOperator(),
+                j.getJoinField1Name(), j.getJoinField2Name(), children[0],
+                children[1], tableAliasToId, tableStats);
     }
 
     private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
-
         DbIterator[] children = j.getChildren();
-        DbIterator child1 = children[0];
-        DbIterator child2 = children[1];
+        return updateJoinCardinality(j, j.getJoinPredicate().getOperator(),
+                j.getJoinField1Name(), j.getJoinField2Name(), children[0],
+                children[1], tableAliasToId, tableStats);
+    }
+
+    private static boolean updateIndexJoinCardinality(IndexJoin j,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        // the inner table is read through the index, not a child
+        return updateJoinCardinality(j, j.getJoinPredicate().getOperator(),
+                j.getJoinField1Name(),
+                j.getInnerAlias() + "." + j.getJoinField2Name(),
+                j.getChildren()[0], null, tableAliasToId, tableStats);
+    }
+
+    /**
+     * Estimate the cardinality of join j of child1 and child2 on
+     * field1Name op field2Name, each the name of a field qualified by its
+     * table alias.
+     *
+     * @param child2
+     *            the right child, or null if the join reads the whole table
+     *            of field2Name itself
+     */
+    private static boolean updateJoinCardinality(Operator j, Predicate.Op op,
+            String field1Name, String field2Name, DbIterator child1,
+            DbIterator child2, Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = field1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = field2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
         boolean child1HasJoinPK = Database.getCatalog()
                 .getPrimaryKey(tableAliasToId.get(tableAlias1))
                 .equals(pureFieldName1);
-        ;
         boolean child2HasJoinPK = Database.getCatalog()
                 .getPrimaryKey(tableAliasToId.get(tableAlias2))
                 .equals(pureFieldName2);
-        ;
 
         if (child1 instanceof Operator) {
             Operator child1O = (Operator) child1;
@@ -179,11 +171,14 @@ public class OperatorCardinality {
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+            child1Card = tableStats.get(((SeqScan) child1)
+                    .getTableName()).estimateTableCardinality(1.0);
         }
 
-        if (child2 instanceof Operator) {
+        if (child2 == null) {
+            child2Card = tableStats.get(Database.getCatalog().getTableName(
+                    tableAliasToId.get(tableAlias2))).estimateTableCardinality(1.0);
+        } else if (child2 instanceof Operator) {
             Operator child2O = (Operator) child2;
             boolean pk = updateOperatorCardinality(child2O, tableAliasToId,
                     tableStats);
@@ -191,14 +186,14 @@ public class OperatorCardinality {
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+            child2Card = tableStats.get(((SeqScan) child2)
+                    .getTableName()).estimateTableCardinality(1.0);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
-                pureFieldName1, pureFieldName2, child1Card, child2Card,
-                child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                op, tableAlias1, tableAlias2, pureFieldName1, pureFieldName2,
+                child1Card, child2Card, child1HasJoinPK, child2HasJoinPK,
+                tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
     }
 
@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * PageWriter is the background writer of a BufferPool.  Every round it
+ * writes out a batch of dirty, unpinned pages, sorted by page number and
+ * with adjacent pages coalesced into single writes, so that the pool keeps
+ * a supply of clean frames and a miss rarely has to wait for an eviction
+ * write.
+ * <p>
+ * The writer only holds a weak reference to its pool and stops by itself
+ * once the pool is gone.
+ *
+ * @see BufferPool#writeDirtyPages
+ */
+class PageWriter implements Runnable {
+
+    /** Threads shared by the writers of every pool. */
+    private static final ScheduledExecutorService EXECUTOR =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private final WeakReference<BufferPool> pool;
+    private final int batchPages;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile ScheduledFuture<?> schedule;
+
+    /**
+     * Start writing dirty pages of pool every intervalMillis milliseconds.
+     *
+     * @param batchPages the most pages written per round
+     */
+    PageWriter(BufferPool pool, long intervalMillis, int batchPages) {
+        this.pool = new WeakReference<BufferPool>(pool);
+        this.batchPages = batchPages;
+        this.schedule = EXECUTOR.scheduleWithFixedDelay(this, intervalMillis,
+                intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Run an extra round as soon as possible, e.g. when a miss found no clean frame. */
+    void wakeUp() {
+        if (!running.get())
+            EXECUTOR.execute(this);
+    }
+
+    void stop() {
+        schedule.cancel(false);
+    }
+
+    public void run() {
+        BufferPool bp = pool.get();
+        if (bp == null) {
+            stop();
+            return;
+        }
+        if (!running.compareAndSet(false, true))
+            return;
+        try {
+            bp.writeDirtyPages(batchPages, false);
+        } catch (Exception e) {
+            // pages that could not be written stay dirty and are retried
+            e.printStackTrace();
+        } finally {
+            running.set(false);
+        }
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -428,6 +430,54 @@ public class Parser {
 
     }
 
+    /**
+     * CREATE INDEX name ON table [USING BTREE | HASH] (field), which ZQL
+     * does not parse: builds an index of the field in the file name.idx
+     * next to the table's file, a B+ tree unless USING HASH is given, and
+     * adds it to the catalog, and to the catalog file once the transaction
+     * commits.
+     */
+    static final Pattern CREATE_INDEX = Pattern.compile(
+            "\\s*create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)(?:\\s+using\\s+(\\w+))?"
+            + "\\s*\\(\\s*(\\w+)\\s*\\)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    public void handleCreateIndexStatement(String name, String table, String method, String field,
+            TransactionId tid) throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException {
+        boolean hash = method != null && method.equalsIgnoreCase("hash");
+        if (method != null && !hash && !method.equalsIgnoreCase("btree"))
+            throw new simpledb.ParsingException("Unknown index method " + method);
+        Catalog catalog = Database.getCatalog();
+        int tableId;
+        try {
+            tableId = catalog.getTableId(table);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + table);
+        }
+        DbFile file = catalog.getDbFile(tableId);
+        if (!(file instanceof HeapFile))
+            throw new simpledb.ParsingException("Only heap tables can be indexed");
+        int fieldIndex;
+        try {
+            fieldIndex = file.getTupleDesc().fieldNameToIndex(field);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown field " + field + " in table " + table);
+        }
+        try {
+            catalog.getTableId(name);
+            throw new simpledb.ParsingException("Table " + name + " already exists");
+        } catch (NoSuchElementException e) {
+            // the name is free
+        }
+        File f = new File(((HeapFile) file).getFile().getAbsoluteFile().getParentFile(), name + ".idx");
+        if (hash)
+            HashFile.createIndex(tid, name, tableId, fieldIndex, f);
+        else
+            BTreeFile.createIndex(tid, name, tableId, fieldIndex, f);
+        System.out.println("Created index " + name + " on " + table + "(" + field + ")");
+    }
+
     public void handleTransactStatement(ZTransactStmt s)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -455,10 +505,14 @@ public class Parser {
                 throw new simpledb.ParsingException(
                         "Can't start new transactions until current transaction has been committed or rolledback.");
             curtrans = new Transaction();
-            curtrans.start();
+            if (s.isReadOnly())
+                curtrans.startSnapshot(); // reads a snapshot, takes no locks
+            else
+                curtrans.start();
             inUserTrans = true;
-            System.out.println("Started a new transaction tid = "
-                    + curtrans.getId().getId());
+            System.out.println("Started a new "
+                    + (s.isReadOnly() ? "read-only " : "")
+                    + "transaction tid = " + curtrans.getId().getId());
         } else {
             throw new simpledb.ParsingException("Unsupported operation");
         }
@@ -504,8 +558,16 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ByteArrayOutputStream statement = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = is.read(buf)) > 0; )
+                statement.write(buf, 0, n);
+            Matcher createIndex = CREATE_INDEX.matcher(statement.toString("UTF-8"));
+            ZStatement s = null;
+            if (!createIndex.matches()) {
+                ZqlParser p = new ZqlParser(new ByteArrayInputStream(statement.toByteArray()));
+                s = p.readStatement();
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -518,7 +580,11 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (s == null)
+                        handleCreateIndexStatement(createIndex.group(1),
+                                createIndex.group(2), createIndex.group(3),
+                                createIndex.group(4), curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -582,7 +648,8 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "create index", "on", "using",
+            "btree", "hash" };
 
     public static void main(String argv[]) throws IOException {
 
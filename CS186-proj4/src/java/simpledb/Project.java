@@ -71,7 +71,9 @@ public class Project extends Operator {
         while (child.hasNext()) {
             Tuple t = child.next();
             Tuple newTuple = new Tuple(td);
-            newTuple.setRecordId(t.getRecordId());
+            // tuples a join builds are not stored anywhere
+            if (t.getRecordId() != null)
+                newTuple.setRecordId(t.getRecordId());
             for (int i = 0; i < td.numFields(); i++) {
                 newTuple.setField(i, t.getField(outFieldIds.get(i)));
             }
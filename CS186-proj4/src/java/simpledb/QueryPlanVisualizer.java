@@ -9,10 +9,12 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -21,7 +23,7 @@ public class QueryPlanVisualizer {
         if (root == null)
             return 0;
 
-        if (!(root instanceof Operator))
+        if (!(root instanceof Operator) || root instanceof IndexScan)
             return 2;
         Operator o = (Operator) root;
         DbIterator[] children = o.getChildren();
@@ -39,6 +41,11 @@ public class QueryPlanVisualizer {
         return 2;
     }
 
+    /** @return the table name of a scan, followed by its alias if that differs */
+    private static String scanName(String tableName, String alias) {
+        return tableName.equals(alias) ? tableName : tableName + " " + alias;
+    }
+
     private static class SubTreeDescriptor {
         int width;
         int upBarPosition;
@@ -65,24 +72,31 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
-//            TupleDesc td = s.getTupleDesc();
-            if (!tableName.equals(alias))
-                alias = " " + alias;
-            else
-                alias = "";
-            thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+        if (queryPlan instanceof SeqScan || queryPlan instanceof IndexScan) {
+            String scan;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                scan = SCAN;
+                thisNode.text = String
+                        .format("%1$s(%2$s)", scan, scanName(s.getTableName(), s.getAlias()));
+            } else {
+                IndexScan s = (IndexScan) queryPlan;
+                Catalog.Index index = s.getIndex();
+                scan = INDEX_SCAN;
+                thisNode.text = String.format("%1$s(%2$s,%3$s%4$s%5$s),card:%6$d",
+                        scan, scanName(s.getTableName(), s.getAlias()),
+                        Database.getCatalog().getTupleDesc(index.getTableId())
+                                .getFieldName(index.getField()),
+                        s.getPredicate().getOp(), s.getPredicate().getField(),
+                        s.getEstimatedCardinality());
+            }
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -164,6 +178,33 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof IndexJoin) {
+                // the inner table is read through the index, so the join
+                // only has the outer plan as its child
+                IndexJoin j = (IndexJoin) plan;
+                JoinPredicate jp = j.getJoinPredicate();
+                TupleDesc td = j.getTupleDesc();
+                String field1 = td.getFieldName(jp.getField1());
+                String field2 = td.getFieldName(jp.getField2()
+                        + children[0].getTupleDesc().numFields());
+                thisNode.text = String.format("%1$s(%2$s,%3$s(%4$s)),card:%5$d",
+                        INDEX_JOIN, field1 + jp.getOperator() + field2, INDEX_SCAN,
+                        scanName(j.getInnerTableName(), j.getInnerAlias()),
+                        j.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (INDEX_JOIN.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = INDEX_JOIN.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - INDEX_JOIN.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             }
             else if (plan instanceof Aggregate) {
                 Aggregate a = (Aggregate) plan;
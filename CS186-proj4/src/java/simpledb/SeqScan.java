@@ -60,6 +60,16 @@ public class SeqScan implements DbIterator {
         return this.tableAlias;
     }
 
+    /** @return the id of the table this operator scans */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return the transaction this scan is running as a part of */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -86,7 +96,14 @@ public class SeqScan implements DbIterator {
         // some code goes here
 //        this.df = Database.getCatalog().getDbFile(this.tableid);
 //        if(df == null) throw new DbException("this tableid is null");
-        this.iterator = this.df.iterator(tid);
+        if (this.df instanceof HeapFile) {
+            // large tables are read through a private ring of frames
+            HeapFile hf = (HeapFile) this.df;
+            BufferRing ring = Database.getBufferPool().scanRing(hf.numPages(), hf.getPageSize());
+            this.iterator = hf.iterator(tid, ring);
+        } else {
+            this.iterator = this.df.iterator(tid);
+        }
         this.iterator.open();
     }
 
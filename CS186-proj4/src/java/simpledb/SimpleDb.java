@@ -8,7 +8,7 @@ public class SimpleDb {
         // convert a file
         if(args[0].equals("convert")) {
         try {
-            if (args.length<3 || args.length>5){
+            if (args.length<3 || args.length>6){
                 System.err.println("Unexpected number of arguments to convert ");
                 return;
             }
@@ -40,12 +40,23 @@ public class SimpleDb {
                                 return;
                             }
                 }
-                if (args.length==5)
+                if (args.length>=5)
                     fieldSeparator=args[4].charAt(0);
             }
 
+            // the page size of a table declared with pagesize n
+            int pageSize=BufferPool.PAGE_SIZE;
+            if (args.length==6) {
+                try {
+                    pageSize=BufferPool.checkPageSize(Integer.parseInt(args[5]));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Invalid page size " + args[5]);
+                    return;
+                }
+            }
+
             HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.PAGE_SIZE,numOfAttributes,ts,fieldSeparator);
+                        pageSize,numOfAttributes,ts,fieldSeparator);
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -67,7 +68,7 @@ public class TableStats {
     static final int NUM_HIST_BINS = 100;
     private int ioCostPerPage;
     private int tableid;
-    private HeapFile dbfile;
+    private DbFile dbfile;
     private HashMap<Integer, Integer[]> statmap;//value0:min value1:max
     private HashMap<Integer, Object> histmap;
     private TupleDesc td;
@@ -98,7 +99,7 @@ public class TableStats {
         // some code goes here
         this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
-        this.dbfile = (HeapFile)Database.getCatalog().getDbFile(tableid);
+        this.dbfile = Database.getCatalog().getDbFile(tableid);
         this.td = dbfile.getTupleDesc();
         this.ntups = 0;
         
@@ -108,6 +109,11 @@ public class TableStats {
 
         DbFileIterator iterator = dbfile.iterator(tid);
         process(iterator);
+        try {
+            Database.getBufferPool().transactionComplete(tid); // release the scan's locks
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     private void process(DbFileIterator iterator){
@@ -187,7 +193,34 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return dbfile.numPages()*ioCostPerPage;
+        return numPages()*ioCostPerPage;
+    }
+
+    private int numPages() {
+        if (dbfile instanceof IndexFile)
+            return ((IndexFile)dbfile).numPages();
+        return ((HeapFile)dbfile).numPages();
+    }
+
+    /**
+     * Estimates the cost of reading the tuples that satisfy a predicate of
+     * the given selectivity through a secondary index of the table with an
+     * {@link IndexScan}: the pages of the index read to find the
+     * first match and those holding the matching entries, and unless the
+     * scan is covering, the pages of the table holding the matching
+     * tuples.  The scan reads those in page order, so each at most once.
+     *
+     * @param index an index of this table that supports the predicate
+     * @param selectivityFactor the selectivity of the predicate
+     * @param covering whether the scan only returns the indexed field
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(Catalog.Index index, double selectivityFactor, boolean covering) {
+        IndexFile file = index.getFile();
+        double pages = file.estimateProbePages() + selectivityFactor * file.numPages();
+        if (!covering)
+            pages += Math.min(selectivityFactor * ntups, numPages());
+        return pages * ioCostPerPage;
     }
 
     /**
@@ -216,7 +249,21 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        Object hist = histmap.get(field);
+        double equals = hist instanceof IntHistogram
+                ? ((IntHistogram)hist).avgSelectivity()
+                : ((StringHistogram)hist).avgSelectivity();
+        switch (op) {
+        case EQUALS:
+            return equals;
+        case NOT_EQUALS:
+            return 1.0 - equals;
+        case LIKE:
+            return 1.0;
+        default:
+            // the same guess as JoinOptimizer.estimateTableJoinCardinality
+            return 0.3;
+        }
     }
 
     /**
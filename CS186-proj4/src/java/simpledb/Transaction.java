@@ -25,6 +25,15 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only snapshot: it sees the database
+     * as of now, and neither takes nor waits for locks.
+     */
+    public void startSnapshot() {
+        start();
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -53,15 +62,11 @@ public class Transaction {
             }
 
             try {
-
                 Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-
-            } catch (IOException e) {
-                e.printStackTrace();
+            } finally {
+                //setting this here means we could possibly write multiple abort records -- OK?
+                started = false;
             }
-
-            //setting this here means we could possibly write multiple abort records -- OK?
-            started = false;
         }
 
     }
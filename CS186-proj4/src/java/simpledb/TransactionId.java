@@ -17,6 +17,14 @@ public class TransactionId implements Serializable {
         myid = counter.getAndIncrement();
     }
 
+    /**
+     * The id of a transaction of an earlier run, which recovery finds in
+     * the log.
+     */
+    TransactionId(long id) {
+        myid = id;
+    }
+
     public long getId() {
         return myid;
     }
@@ -1,6 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.*;
@@ -17,7 +20,12 @@ public class Tuple implements Serializable {
     private TupleDesc td;
     private RecordId rid;
 
+    /** The page this tuple is read from, or null once detached. */
+    private transient HeapPage page;
+    private transient int offset;
+
     public Field[] getFields(){
+        detach();
         return this.fields == null ? null : this.fields;
     }
 
@@ -36,6 +44,45 @@ public class Tuple implements Serializable {
         this.fields = new Field[this.td.getFieldnums()];
     }
 
+    /**
+     * Create a tuple whose fields are stored on page, starting at offset.
+     * Fields are only parsed when they are first asked for, so a reader
+     * that looks at one column does not pay for the others.
+     *
+     * @see #detach
+     */
+    Tuple(TupleDesc td, HeapPage page, int offset) {
+        this(td);
+        this.page = page;
+        this.offset = offset;
+    }
+
+    /**
+     * Parse every field that has not been parsed yet and stop reading from
+     * the backing bytes, e.g. because they are about to be overwritten.
+     */
+    void detach() {
+        HeapPage p = this.page;
+        if(p == null) return;
+        int reader = p.beginRead();
+        try {
+            ByteBuffer buf = p.buffer();
+            for(int i = 0; i<this.fields.length; i++){
+                if(this.fields[i] == null){
+                    this.fields[i] = this.td.getFieldType(i).parse(buf, offset + this.td.getOffset(i));
+                }
+            }
+        } finally {
+            HeapPage.endRead(reader);
+        }
+        this.page = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        detach();
+        out.defaultWriteObject();
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -88,7 +135,19 @@ public class Tuple implements Serializable {
     public Field getField(int i) {
         // some code goes here
         if( i<0 || i>= this.td.getFieldnums()) throw new IllegalArgumentException("invalid Index i");
-        return this.fields[i];
+        Field f = this.fields[i];
+        HeapPage p = this.page;
+        if(f == null && p != null){
+            // the page may be evicted meanwhile, see FrameArena
+            int reader = p.beginRead();
+            try {
+                f = this.td.getFieldType(i).parse(p.buffer(), offset + this.td.getOffset(i));
+            } finally {
+                HeapPage.endRead(reader);
+            }
+            this.fields[i] = f;
+        }
+        return f;
     }
 
     /**
@@ -102,6 +161,7 @@ public class Tuple implements Serializable {
     public String toString() {
         // some code goes here
         // throw new UnsupportedOperationException("Implement this");
+        detach();
         StringBuffer stringbuffer = new StringBuffer();
         for(int i = 0; i<this.fields.length; i++){
             if(i == this.fields.length - 1){
@@ -137,7 +197,7 @@ public class Tuple implements Serializable {
             if(!hasNext()){
                 throw new NoSuchElementException();
             }
-            return fields[pos++];
+            return getField(pos++);
         }
     }
 
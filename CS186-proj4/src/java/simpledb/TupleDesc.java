@@ -196,6 +196,24 @@ public class TupleDesc implements Serializable {
         throw new NoSuchElementException("cannot find"+name);
     }
 
+    private transient int[] offsets;
+
+    /**
+     * @return The offset (in bytes) of the ith field within a serialized
+     *         tuple of this TupleDesc.
+     */
+    public int getOffset(int i) {
+        int[] off = offsets;
+        if(off == null){
+            off = new int[TDItemAr.length];
+            for(int j=1; j<off.length; j++){
+                off[j] = off[j-1] + TDItemAr[j-1].fieldType.getLen();
+            }
+            offsets = off;
+        }
+        return off[i];
+    }
+
     /**
      * @return The size (in bytes) of tuples corresponding to this TupleDesc.
      *         Note that tuples from a given TupleDesc are of a fixed size.
@@ -0,0 +1,78 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * 2Q eviction (Johnson and Shasha).  Newly read pages enter a FIFO queue,
+ * A1in, and are evicted from it first, so a single large scan only cycles
+ * through A1in.  The ids of pages evicted from A1in are remembered in a
+ * ghost queue, A1out; a page that is read again while its id is still
+ * there has proven to be hot and is admitted to the main queue, Am, which
+ * is managed with CLOCK.  Hits on either queue are write-free apart from
+ * setting a reference bit.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    private final ArrayDeque<BufferPool.Frame> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final ClockEvictionPolicy am;
+
+    /**
+     * @param numPages the capacity of the buffer pool this policy serves
+     */
+    public TwoQueueEvictionPolicy(int numPages) {
+        kin = Math.max(1, numPages / 4);
+        kout = Math.max(1, numPages / 2);
+        a1in = new ArrayDeque<BufferPool.Frame>();
+        a1out = new LinkedHashSet<PageId>();
+        am = new ClockEvictionPolicy(numPages);
+    }
+
+    public void frameAdded(BufferPool.Frame f) {
+        if (a1out.remove(f.getPage().getId()))
+            am.frameAdded(f);
+        else
+            a1in.addLast(f);
+    }
+
+    public void frameAccessed(BufferPool.Frame f) {
+        am.frameAccessed(f);
+    }
+
+    public BufferPool.Frame chooseVictim() {
+        BufferPool.Frame victim = null;
+        if (a1in.size() > kin || am.size() == 0)
+            victim = firstUnpinned();
+        if (victim == null)
+            victim = am.chooseVictim();
+        if (victim == null)
+            victim = firstUnpinned();
+        return victim;
+    }
+
+    private BufferPool.Frame firstUnpinned() {
+        for (BufferPool.Frame f : a1in) {
+            if (!f.isPinned())
+                return f;
+        }
+        return null;
+    }
+
+    public void frameRemoved(BufferPool.Frame f) {
+        if (f.slot >= 0) {
+            am.frameRemoved(f);
+            return;
+        }
+        // almost always the head of the queue
+        a1in.remove(f);
+        a1out.add(f.getPage().getId());
+        if (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * VersionStore keeps the older versions of pages that snapshot
+ * transactions may still need, so that they can read a consistent state of
+ * the database without taking any locks.
+ * <p>
+ * Whenever a writer first changes a record, or first locks a page
+ * exclusively, the previous contents of the record or page are added to
+ * the page's chain of versions.  A committing writer is given the next
+ * commit timestamp.  A snapshot remembers the last commit timestamp when it
+ * begins, and reads a page by taking its current contents and undoing,
+ * newest first, every change made by a writer that had not committed by
+ * then.
+ * <p>
+ * The versions of a writer are dropped when it aborts or once every
+ * running snapshot began after it committed.  Until then they also serve
+ * to undo the writer's changes if it aborts, and to tell the log what a
+ * page looked like before a running writer changed it.
+ *
+ * @see BufferPool#beginSnapshot
+ */
+class VersionStore {
+
+    /** The contents of a slot, or of the whole page, before writer changed it. */
+    static class Version {
+        final TransactionId writer;
+        final PageId pid;
+        final int slot;
+        final byte[] before;
+
+        Version(TransactionId writer, PageId pid, int slot, byte[] before) {
+            this.writer = writer;
+            this.pid = pid;
+            this.slot = slot;
+            this.before = before;
+        }
+
+        /** Undo the change this version records on page. */
+        void undo(HeapPage page) throws IOException {
+            if (slot == PAGE)
+                page.restoreFrom(new HeapPage(page.getId(), before));
+            else
+                page.restoreSlot(slot, before);
+        }
+    }
+
+    /** Slot of a version that holds the whole page. */
+    static final int PAGE = -1;
+
+    private long clock;
+    private final HashMap<TransactionId, Long> snapshots = new HashMap<TransactionId, Long>();
+    private final HashMap<TransactionId, Long> committed = new HashMap<TransactionId, Long>();
+    private final ArrayDeque<TransactionId> commitOrder = new ArrayDeque<TransactionId>();
+    private final HashMap<PageId, ArrayList<Version>> chains = new HashMap<PageId, ArrayList<Version>>();
+    private final HashMap<TransactionId, Set<PageId>> written = new HashMap<TransactionId, Set<PageId>>();
+
+    /** Start a snapshot for tid that sees every writer committed so far. */
+    synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, clock);
+    }
+
+    /** @return the timestamp of tid's snapshot, or null if tid is not a snapshot */
+    synchronized Long snapshotOf(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /**
+     * Remember the contents of slot of page pid before tid changes it.  The
+     * caller must hold the page's write latch.
+     *
+     * @param data the bytes of the record, or null if the slot is empty
+     */
+    synchronized void rememberRecord(TransactionId tid, PageId pid, int slot, byte[] data) {
+        if (!remembers(tid, pid, slot))
+            add(tid, pid, new Version(tid, pid, slot, data));
+    }
+
+    /**
+     * Remember the contents of page before tid changes it, unless tid has
+     * locked it exclusively before.
+     */
+    synchronized void rememberPage(TransactionId tid, Page page) {
+        if (!remembers(tid, page.getId(), PAGE))
+            add(tid, page.getId(), new Version(tid, page.getId(), PAGE, page.getPageData()));
+    }
+
+    /** @return true if tid already has a version of slot of pid */
+    private boolean remembers(TransactionId tid, PageId pid, int slot) {
+        ArrayList<Version> chain = chains.get(pid);
+        if (chain != null) {
+            for (Version v : chain) {
+                if (v.slot == slot && v.writer.equals(tid))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private void add(TransactionId tid, PageId pid, Version v) {
+        ArrayList<Version> chain = chains.get(pid);
+        if (chain == null) {
+            chain = new ArrayList<Version>();
+            chains.put(pid, chain);
+        }
+        chain.add(v);
+        Set<PageId> pages = written.get(tid);
+        if (pages == null) {
+            pages = new HashSet<PageId>();
+            written.put(tid, pages);
+        }
+        pages.add(pid);
+    }
+
+    /**
+     * Turn page, a private copy of the current contents of its page, into
+     * what a snapshot taken at ts sees.  The caller must hold the page's
+     * read latch while copying it and calling this.
+     *
+     * @return the page as of ts
+     */
+    synchronized HeapPage rollBack(HeapPage page, long ts) throws IOException {
+        ArrayList<Version> chain = chains.get(page.getId());
+        if (chain == null)
+            return page;
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            Version v = chain.get(i);
+            Long commit = committed.get(v.writer);
+            if (commit != null && commit <= ts)
+                continue;
+            if (v.slot == PAGE)
+                page = new HeapPage(page.getId(), v.before);
+            else
+                page.restoreSlot(v.slot, v.before);
+        }
+        return page;
+    }
+
+    /**
+     * For each writer that changed page and has not committed, what the
+     * page would look like without that writer's changes.  The caller must
+     * hold the page's latch.
+     */
+    synchronized Map<TransactionId, HeapPage> beforeImages(HeapPage page) throws IOException {
+        HashMap<TransactionId, HeapPage> images = new HashMap<TransactionId, HeapPage>();
+        ArrayList<Version> chain = chains.get(page.getId());
+        if (chain == null)
+            return images;
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            Version v = chain.get(i);
+            if (committed.containsKey(v.writer))
+                continue;
+            HeapPage image = images.get(v.writer);
+            if (image == null) {
+                image = new HeapPage(page.getId(), page.getPageData(), false);
+                images.put(v.writer, image);
+            }
+            v.undo(image);
+        }
+        return images;
+    }
+
+    /** @return the versions of tid, each page's newest first */
+    synchronized List<Version> versionsOf(TransactionId tid) {
+        ArrayList<Version> mine = new ArrayList<Version>();
+        Set<PageId> pages = written.get(tid);
+        if (pages == null)
+            return mine;
+        for (PageId pid : pages) {
+            ArrayList<Version> chain = chains.get(pid);
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                if (chain.get(i).writer.equals(tid))
+                    mine.add(chain.get(i));
+            }
+        }
+        return mine;
+    }
+
+    /** Record that tid committed; its changes become visible to new snapshots. */
+    synchronized void commit(TransactionId tid) {
+        snapshots.remove(tid);
+        if (!written.containsKey(tid)) {
+            purge();
+            return;
+        }
+        committed.put(tid, ++clock);
+        commitOrder.add(tid);
+        purge();
+    }
+
+    /** Record that tid aborted after its changes were undone. */
+    synchronized void abort(TransactionId tid) {
+        snapshots.remove(tid);
+        drop(tid);
+        purge();
+    }
+
+    /** Drop the versions no running snapshot can need any more. */
+    private void purge() {
+        long oldest = Long.MAX_VALUE;
+        for (long ts : snapshots.values())
+            oldest = Math.min(oldest, ts);
+        while (!commitOrder.isEmpty() && committed.get(commitOrder.peek()) <= oldest) {
+            TransactionId tid = commitOrder.poll();
+            drop(tid);
+            committed.remove(tid);
+        }
+    }
+
+    private void drop(TransactionId tid) {
+        Set<PageId> pages = written.remove(tid);
+        if (pages == null)
+            return;
+        for (PageId pid : pages) {
+            ArrayList<Version> chain = chains.get(pid);
+            for (Iterator<Version> it = chain.iterator(); it.hasNext(); ) {
+                if (it.next().writer.equals(tid))
+                    it.remove();
+            }
+            if (chain.isEmpty())
+                chains.remove(pid);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Tests BTreeFile with small pages, so that a few thousand tuples give a
+ * tree of three levels.
+ */
+public class BTreeFileTest {
+    private static final int PAGE_SIZE = BufferPool.MIN_PAGE_SIZE;
+
+    private File file;
+    private BTreeFile tree;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("btree", ".dat");
+        file.deleteOnExit();
+        open();
+    }
+
+    @After public void tearDown() {
+        file.delete();
+    }
+
+    private void open() {
+        tree = new BTreeFile(file, 0, Utility.getTupleDesc(2), PAGE_SIZE);
+        Database.getCatalog().addTable(tree, "btree");
+    }
+
+    private Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    /** Insert count tuples with keys from 0 to count / 4, and return them. */
+    private ArrayList<Tuple> insert(Transaction t, int count, long seed) throws Exception {
+        Random rand = new Random(seed);
+        ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+        for (int i = 0; i < count; i++) {
+            Tuple tup = Utility.getHeapTuple(new int[] { rand.nextInt(count / 4), i });
+            tree.insertTuple(t.getId(), tup);
+            inserted.add(tup);
+        }
+        return inserted;
+    }
+
+    private ArrayList<Tuple> scan(DbFileIterator it) throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            tuples.add(it.next());
+        it.close();
+        return tuples;
+    }
+
+    private static int key(Tuple t) {
+        return ((IntField)t.getField(0)).getValue();
+    }
+
+    /** @return the values of the second field of tuples, sorted */
+    private static ArrayList<Integer> values(Collection<Tuple> tuples) {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (Tuple t : tuples)
+            values.add(((IntField)t.getField(1)).getValue());
+        Collections.sort(values);
+        return values;
+    }
+
+    /** Inserts split leaves and internal pages; a scan returns the tuples in key order. */
+    @Test public void insertSplitsPages() throws Exception {
+        Transaction t = begin();
+        ArrayList<Tuple> inserted = insert(t, 30000, 1);
+
+        ArrayList<Tuple> scanned = scan(tree.iterator(t.getId()));
+        assertEquals(inserted.size(), scanned.size());
+        for (int i = 1; i < scanned.size(); i++)
+            assertTrue(key(scanned.get(i - 1)) <= key(scanned.get(i)));
+        assertEquals(values(inserted), values(scanned));
+
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage)Database.getBufferPool().getPage(
+                t.getId(), new BTreePageId(tree.getId(), 0, BTreePageId.ROOT_PTR), Permissions.READ_ONLY);
+        BTreeInternalPage root = (BTreeInternalPage)Database.getBufferPool().getPage(
+                t.getId(), rootPtr.getRootId(), Permissions.READ_ONLY);
+        assertEquals(BTreePageId.INTERNAL, root.childCategory);
+        t.commit();
+    }
+
+    /** Index iterators return exactly the tuples whose key matches. */
+    @Test public void indexIterator() throws Exception {
+        Transaction t = begin();
+        ArrayList<Tuple> inserted = insert(t, 4000, 2);
+        for (Predicate.Op op : Predicate.Op.values()) {
+            if (op == Predicate.Op.LIKE || op == Predicate.Op.NOT_EQUALS)
+                continue;
+            IndexPredicate ipred = new IndexPredicate(op, new IntField(500));
+            ArrayList<Tuple> expected = new ArrayList<Tuple>();
+            for (Tuple tup : inserted) {
+                if (ipred.matches(tup.getField(0)))
+                    expected.add(tup);
+            }
+            assertEquals(op.toString(), values(expected), values(scan(tree.indexIterator(t.getId(), ipred))));
+        }
+        t.commit();
+    }
+
+    /** Deleting every tuple merges the tree away, and the freed pages are used again. */
+    @Test public void deleteMergesAndReusesPages() throws Exception {
+        Transaction t = begin();
+        insert(t, 6000, 3);
+        int pages = tree.numPages();
+
+        ArrayList<Tuple> scanned = scan(tree.iterator(t.getId()));
+        Collections.shuffle(scanned, new Random(3));
+        for (int i = 0; i < scanned.size(); i++) {
+            tree.deleteTuple(t.getId(), scanned.get(i));
+            if (i % 1000 == 0)
+                assertEquals(scanned.size() - i - 1, scan(tree.iterator(t.getId())).size());
+        }
+        assertTrue(scan(tree.iterator(t.getId())).isEmpty());
+
+        insert(t, 6000, 4);
+        assertEquals(6000, scan(tree.iterator(t.getId())).size());
+        // a header page, and internal pages: the freed pages still in the
+        // pool are leaves, and only used again as leaves
+        assertTrue(tree.numPages() < pages + pages / 10);
+        t.commit();
+    }
+
+    @Test(expected = DbException.class)
+    public void deleteMissingTuple() throws Exception {
+        Transaction t = begin();
+        insert(t, 100, 5);
+        tree.deleteTuple(t.getId(), Utility.getHeapTuple(new int[] { 100, 100 }));
+    }
+
+    /** An abort puts back the tree the last commit left, splits and merges included. */
+    @Test public void abortRestoresTree() throws Exception {
+        Transaction t = begin();
+        ArrayList<Tuple> committed = insert(t, 2000, 6);
+        t.commit();
+
+        t = begin();
+        insert(t, 4000, 7);
+        for (Tuple tup : scan(tree.indexIterator(t.getId(),
+                new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(300)))))
+            tree.deleteTuple(t.getId(), tup);
+        t.abort();
+
+        t = begin();
+        assertEquals(values(committed), values(scan(tree.iterator(t.getId()))));
+        t.commit();
+    }
+
+    /** Pages a loser wrote before a crash are undone from the log. */
+    @Test public void recoveryUndoesStolenPages() throws Exception {
+        Transaction t = begin();
+        ArrayList<Tuple> committed = insert(t, 2000, 8);
+        t.commit();
+
+        t = begin();
+        insert(t, 4000, 9);
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        open();
+        Database.getLogFile().recover();
+
+        t = begin();
+        assertEquals(values(committed), values(scan(tree.iterator(t.getId()))));
+        t.commit();
+    }
+
+    /**
+     * An entry added to or removed from a leaf that was logged since it was
+     * last written is logged by its slot; the first change after the leaf
+     * is written logs its image again.
+     */
+    @Test public void entryChangesAreLoggedBySlot() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction t = begin();
+        Tuple first = Utility.getHeapTuple(new int[] { 1, 1 });
+        long before = log.endLsn();
+        tree.insertTuple(t.getId(), first);
+        assertTrue(log.endLsn() - before > PAGE_SIZE);
+
+        before = log.endLsn();
+        tree.insertTuple(t.getId(), Utility.getHeapTuple(new int[] { 2, 2 }));
+        assertTrue(log.endLsn() - before < 100);
+        before = log.endLsn();
+        tree.deleteTuple(t.getId(), first);
+        assertTrue(log.endLsn() - before < 100);
+
+        Database.getBufferPool().flushAllPages();
+        before = log.endLsn();
+        tree.insertTuple(t.getId(), first);
+        assertTrue(log.endLsn() - before > PAGE_SIZE);
+        t.commit();
+    }
+
+    /**
+     * Slot records older than the checkpoint recovery starts from are only
+     * redone on the leaves in its dirty page table: a leaf written since
+     * holds their entries already, and must not get them twice.
+     */
+    @Test public void recoveryRedoesSlotRecordsOnce() throws Exception {
+        Transaction t = begin();
+        ArrayList<Tuple> committed = insert(t, 1000, 10);
+        // running at the checkpoint, so that recovery starts before the
+        // slot records of the next inserts, but after the leaves' images
+        begin();
+        committed.addAll(insert(t, 1000, 11));
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+
+        t = begin();
+        committed.addAll(insert(t, 1000, 12));
+        t.commit();
+
+        Database.reset();
+        open();
+        Database.getLogFile().recover();
+
+        t = begin();
+        assertEquals(values(committed), values(scan(tree.iterator(t.getId()))));
+        t.commit();
+    }
+
+    /**
+     * Two writers inserting into far apart parts of the tree, splits
+     * included, do not wait for each other: each gets all its tuples in
+     * while the other is still running.
+     */
+    @Test public void twoWritersDoNotBlock() throws Exception {
+        final int count = 2000;
+        Transaction t = begin();
+        ArrayList<Tuple> committed = new ArrayList<Tuple>();
+        for (int i = 0; i < 2 * count; i++) {
+            Tuple tup = Utility.getHeapTuple(new int[] { 10 * i, i });
+            tree.insertTuple(t.getId(), tup);
+            committed.add(tup);
+        }
+        t.commit();
+
+        final CyclicBarrier inserted = new CyclicBarrier(2);
+        final Exception[] errors = new Exception[2];
+        final ArrayList<ArrayList<Tuple>> tuples = new ArrayList<ArrayList<Tuple>>();
+        Thread[] writers = new Thread[2];
+        for (int n = 0; n < 2; n++) {
+            final int me = n;
+            tuples.add(new ArrayList<Tuple>());
+            writers[n] = new Thread() {
+                public void run() {
+                    try {
+                        Transaction w = begin();
+                        // the first writer fills the gaps of the low keys,
+                        // the second those of the high keys
+                        int base = me * 15 * count;
+                        for (int i = 0; i < count; i++) {
+                            Tuple tup = Utility.getHeapTuple(
+                                    new int[] { base + 5 * i + 1 + i % 4, 2 * count + me * count + i });
+                            tree.insertTuple(w.getId(), tup);
+                            tuples.get(me).add(tup);
+                        }
+                        inserted.await(60, TimeUnit.SECONDS);
+                        w.commit();
+                    } catch (Exception e) {
+                        errors[me] = e;
+                    }
+                }
+            };
+            writers[n].start();
+        }
+        for (Thread w : writers)
+            w.join();
+        for (Exception e : errors)
+            assertNull(e);
+
+        committed.addAll(tuples.get(0));
+        committed.addAll(tuples.get(1));
+        t = begin();
+        assertEquals(values(committed), values(scan(tree.iterator(t.getId()))));
+        t.commit();
+    }
+
+    /** JUnit suite target */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeFileTest.class);
+    }
+}
@@ -0,0 +1,397 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+    private static final int ROWS = 504 * 4;
+    private static final int THREADS = 8;
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        tid = new TransactionId();
+    }
+
+    /**
+     * A pinned page must stay resident even when the pool is full.
+     */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(1);
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+
+        Page pinned = bp.pinPage(tid, p0, Permissions.READ_WRITE);
+        try {
+            bp.getPage(tid, p1, Permissions.READ_ONLY);
+            fail("expected DbException when every page is pinned");
+        } catch (DbException e) {
+            // explicitly ignored
+        }
+        assertSame(pinned, bp.getPage(tid, p0, Permissions.READ_ONLY));
+
+        bp.unpinPage(p0);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        assertNotSame(pinned, bp.getPage(tid, p0, Permissions.READ_ONLY));
+    }
+
+    /**
+     * Discarding a pinned page waits for the unpin without keeping the rest
+     * of the pool waiting.
+     */
+    @Test public void discardWaitsForPin() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        final HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        Page pinned = bp.pinPage(tid, p0, Permissions.READ_WRITE);
+
+        Thread discard = new Thread() {
+            public void run() {
+                bp.discardPage(p0);
+            }
+        };
+        discard.start();
+        for (int i = 0; i < 1000 && discard.getState() != Thread.State.WAITING; i++)
+            Thread.sleep(10);
+        assertEquals(Thread.State.WAITING, discard.getState());
+
+        bp.flushAllPages();
+        bp.unpinPage(p0);
+        discard.join(10 * 1000);
+        assertFalse(discard.isAlive());
+        assertNotSame(pinned, bp.getPage(tid, p0, Permissions.READ_ONLY));
+    }
+
+    /**
+     * With the default 2Q policy a scan larger than the pool must not push
+     * out pages that have proven to be hot.
+     */
+    @Test public void scanDoesNotFlushHotPages() throws Exception {
+        HeapFile filler = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, null);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        BufferPool bp = Database.resetBufferPool(8);
+        HeapPageId h0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId h1 = new HeapPageId(hf.getId(), 1);
+
+        // reference the hot pages, let them age out once, then reference
+        // them again so that they are promoted
+        bp.getPage(tid, h0, Permissions.READ_ONLY);
+        bp.getPage(tid, h1, Permissions.READ_ONLY);
+        for (int i = 0; i < 8; i++)
+            bp.getPage(tid, new HeapPageId(filler.getId(), i), Permissions.READ_ONLY);
+        Page hot0 = bp.getPage(tid, h0, Permissions.READ_ONLY);
+        Page hot1 = bp.getPage(tid, h1, Permissions.READ_ONLY);
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            scan.next();
+        scan.close();
+
+        assertSame(hot0, bp.getPage(tid, h0, Permissions.READ_ONLY));
+        assertSame(hot1, bp.getPage(tid, h1, Permissions.READ_ONLY));
+    }
+
+    /**
+     * A scan that reads through a ring recycles its own frames and leaves
+     * pages that were only read once in the shared pool alone.
+     */
+    @Test public void ringScanKeepsPoolWarm() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        BufferPool bp = Database.resetBufferPool(8);
+        assertNull(bp.scanRing(2));
+        assertNotNull(bp.scanRing(big.numPages()));
+
+        ArrayList<Page> warm = new ArrayList<Page>();
+        for (int i = 0; i < 4; i++)
+            warm.add(bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY));
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(504 * 40, count);
+
+        for (int i = 0; i < 4; i++)
+            assertSame(warm.get(i), bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY));
+    }
+
+    /**
+     * Pages read ahead in the background are served from the pool and
+     * counted as prefetch hits.
+     */
+    @Test public void prefetchPage() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        for (int i = 0; i < 4; i++)
+            bp.prefetchPage(new HeapPageId(hf.getId(), i), null);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bp.getPagesPrefetched() < 4 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(4, bp.getPagesPrefetched());
+
+        for (int i = 0; i < 4; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(4, bp.getPrefetchHits());
+    }
+
+    /**
+     * A scan with read-ahead enabled still sees every tuple exactly once.
+     */
+    @Test public void scanWithReadAhead() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 30, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setPrefetchWindow(4);
+        for (int n = 0; n < 2; n++) {
+            SeqScan scan = new SeqScan(tid, big.getId(), "");
+            scan.open();
+            int count = 0;
+            while (scan.hasNext()) {
+                scan.next();
+                count++;
+            }
+            scan.close();
+            assertEquals(504 * 30, count);
+        }
+    }
+
+    /**
+     * CLOCK gives a page that was hit since the last sweep a second chance.
+     */
+    @Test public void clockSecondChance() throws Exception {
+        BufferPool bp = new BufferPool(3, new ClockEvictionPolicy(3));
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        HeapPageId p2 = new HeapPageId(hf.getId(), 2);
+        HeapPageId p3 = new HeapPageId(hf.getId(), 3);
+
+        Page first = bp.getPage(tid, p0, Permissions.READ_ONLY);
+        Page second = bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+
+        // the first miss clears every reference bit and evicts page 0
+        bp.getPage(tid, p3, Permissions.READ_ONLY);
+        assertNotSame(first, bp.getPage(tid, p0, Permissions.READ_ONLY));
+
+        // page 1 was not hit since the sweep, so it goes next
+        assertNotSame(second, bp.getPage(tid, p1, Permissions.READ_ONLY));
+    }
+
+    /**
+     * Concurrent hits on cached pages must all see the same resident frame.
+     */
+    @Test public void concurrentHits() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        final int pages = hf.numPages();
+        final ArrayList<Page> resident = new ArrayList<Page>();
+        for (int i = 0; i < pages; i++)
+            resident.add(bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY));
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; n < 10000; n++) {
+                            int i = n % pages;
+                            Page p = bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+                            if (p != resident.get(i))
+                                throw new AssertionError("page " + i + " was reloaded");
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+    }
+
+    /**
+     * Concurrent scans through a pool smaller than the table must each see
+     * every tuple, even though they keep evicting each other's pages.
+     */
+    @Test public void concurrentScansWithEviction() throws Exception {
+        Database.resetBufferPool(2);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; n < 5; n++) {
+                            SeqScan scan = new SeqScan(tid, hf.getId(), "");
+                            scan.open();
+                            int count = 0;
+                            while (scan.hasNext()) {
+                                scan.next();
+                                count++;
+                            }
+                            scan.close();
+                            if (count != ROWS)
+                                throw new AssertionError("scan saw " + count + " tuples");
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+    }
+
+    /**
+     * The background writer cleans dirty pages without evicting them, and
+     * what it writes is what a fresh pool reads back.
+     */
+    @Test public void backgroundWriterCleansDirtyPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        ArrayList<Page> dirty = new ArrayList<Page>();
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage page = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            Tuple t = page.iterator().next();
+            page.deleteTuple(t);
+            page.markDirty(true, tid);
+            dirty.add(page);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Page page : dirty) {
+            while (page.isDirty() != null && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertNull(page.isDirty());
+            assertSame(page, bp.getPage(tid, page.getId(), Permissions.READ_ONLY));
+        }
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(ROWS - hf.numPages(), count);
+    }
+
+    /**
+     * An off-heap pool keeps resident pages in its arena, and pages that are
+     * still referenced after eviction keep their contents.
+     */
+    @Test public void offHeapFrames() throws Exception {
+        BufferPool bp = BufferPool.withCapacity(4 * BufferPool.PAGE_SIZE, true);
+        assertTrue(bp.isOffHeap());
+        HeapPage first = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        assertTrue(first.buffer().isDirect());
+        Iterator<Tuple> it = first.iterator();
+        Tuple t = it.next();
+        byte[] before = first.getPageData();
+
+        // cycle other pages through the pool until page 0 is evicted
+        HeapFile filler = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, null);
+        for (int n = 0; n < 2; n++)
+            for (int i = 0; i < filler.numPages(); i++)
+                bp.getPage(tid, new HeapPageId(filler.getId(), i), Permissions.READ_ONLY);
+        assertFalse(first.buffer().isDirect());
+        assertTrue(Arrays.equals(before, first.getPageData()));
+        assertTrue(TestUtil.compareTuples(t, first.iterator().next()));
+
+        int count = 1;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(first.getNumEmptySlots(), 504 - count);
+        bp.stopPageWriter();
+    }
+
+    /**
+     * A freed arena frame is not handed out again while a reader that
+     * entered before it was freed may still be reading it.
+     */
+    @Test public void arenaWaitsForReaders() {
+        FrameArena arena = new FrameArena(2 * BufferPool.PAGE_SIZE);
+        ByteBuffer first = arena.allocate(BufferPool.PAGE_SIZE);
+        assertNotNull(arena.allocate(BufferPool.PAGE_SIZE));
+        assertNull(arena.allocate(BufferPool.PAGE_SIZE));
+
+        int early = FrameArena.enter();
+        arena.free(first);
+        int late = FrameArena.enter();
+        assertNull(arena.allocate(BufferPool.PAGE_SIZE));
+        FrameArena.exit(early);
+        // the late reader cannot have seen the page that was in the frame
+        assertSame(first, arena.allocate(BufferPool.PAGE_SIZE));
+        FrameArena.exit(late);
+    }
+
+    /**
+     * Aborting a transaction undoes its changes, both to pages still in the
+     * pool and to pages written to disk while it was running.
+     */
+    @Test public void abortRestoresPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        byte[] before0 = bp.getPage(tid, p0, Permissions.READ_ONLY).getPageData();
+        byte[] before1 = bp.getPage(tid, p1, Permissions.READ_ONLY).getPageData();
+
+        HeapPage page0 = (HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE);
+        page0.deleteTuple(page0.iterator().next());
+        page0.markDirty(true, tid);
+        HeapPage page1 = (HeapPage) bp.getPage(tid, p1, Permissions.READ_WRITE);
+        page1.deleteTuple(page1.iterator().next());
+        page1.markDirty(true, tid);
+        bp.flushAllPages();  // both pages reach the disk before the abort
+
+        bp.transactionComplete(tid, false);
+        assertFalse(bp.holdsLock(tid, p0));
+        TransactionId t2 = new TransactionId();
+        assertTrue(Arrays.equals(before0, bp.getPage(t2, p0, Permissions.READ_ONLY).getPageData()));
+        assertTrue(Arrays.equals(before1, bp.getPage(t2, p1, Permissions.READ_ONLY).getPageData()));
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertTrue(Arrays.equals(before0, hf.readPage(p0).getPageData()));
+        assertTrue(Arrays.equals(before1, hf.readPage(p1).getPageData()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
@@ -1,7 +1,11 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import junit.framework.Assert;
@@ -68,6 +72,68 @@ public class CatalogTest extends SimpleDbTestBase {
         assertEquals(-1, f.getId());
     }
 
+    /** @return the number of tuples ipred finds through index */
+    private static int lookup(Catalog.Index index, IndexPredicate ipred) throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexScan scan = new IndexScan(tid, index, "t", ipred);
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    /**
+     * Indexes built after loadSchema are added to the catalog file, and
+     * loaded and maintained again after a restart.
+     */
+    @Test public void indexesAreSaved() throws Exception {
+        File dir = File.createTempFile("catalog", "");
+        dir.delete();
+        dir.mkdir();
+        File schema = new File(dir, "catalog.txt");
+        File[] files = { schema, new File(dir, "t.dat"), new File(dir, "t_f0.idx"), new File(dir, "t_f1.idx") };
+        for (File f : files)
+            f.deleteOnExit();
+        dir.deleteOnExit();
+
+        FileWriter out = new FileWriter(schema);
+        out.write("t (f0 int, f1 int)");
+        out.close();
+        files[1].createNewFile();
+        Database.getCatalog().loadSchema(schema.getPath());
+        int tableId = Database.getCatalog().getTableId("t");
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 100; i++)
+            Database.getBufferPool().insertTuple(t.getId(), tableId, Utility.getHeapTuple(new int[] { i, i % 10 }));
+        BTreeFile.createIndex(t.getId(), "t_f0", tableId, 0, files[2]);
+        HashFile.createIndex(t.getId(), "t_f1", tableId, 1, files[3]);
+        t.commit();
+
+        Database.reset();
+        Database.getCatalog().loadSchema(schema.getPath());
+        tableId = Database.getCatalog().getTableId("t");
+        List<Catalog.Index> indexes = Database.getCatalog().getIndexes(tableId);
+        assertEquals(2, indexes.size());
+        assertTrue(indexes.get(0).getFile() instanceof BTreeFile);
+        assertEquals(0, indexes.get(0).getField());
+        assertTrue(indexes.get(1).getFile() instanceof HashFile);
+        assertEquals(1, indexes.get(1).getField());
+
+        t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), tableId, Utility.getHeapTuple(new int[] { 100, 3 }));
+        t.commit();
+        assertEquals(2, lookup(indexes.get(0), new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(99))));
+        assertEquals(11, lookup(indexes.get(1), new IndexPredicate(Predicate.Op.EQUALS, new IntField(3))));
+    }
+
     /**
      * JUnit suite target
      */
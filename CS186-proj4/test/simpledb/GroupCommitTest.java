@@ -0,0 +1,72 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int CLIENTS = 8;
+    private static final int COMMITS = 25;
+
+    @After public void tearDown() {
+        System.clearProperty(Database.LOG_COMMIT_DELAY);
+    }
+
+    /** Commit COMMITS transactions from each of clients threads at once. */
+    private void commitConcurrently(int clients) throws Exception {
+        Thread[] threads = new Thread[clients];
+        final Exception[] errors = new Exception[clients];
+        for (int n = 0; n < clients; n++) {
+            final int me = n;
+            threads[n] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < COMMITS; i++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            t.commit();
+                        }
+                    } catch (Exception e) {
+                        errors[me] = e;
+                    }
+                }
+            };
+            threads[n].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        for (Exception e : errors)
+            assertNull(e);
+    }
+
+    @Test public void singleCommitIsForced() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+        assertEquals(1, Database.getLogFile().getCommitForces());
+    }
+
+    /**
+     * Commits that arrive while the log is being forced, or within the
+     * commit delay, share the next force.
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        System.setProperty(Database.LOG_COMMIT_DELAY, "2000");
+        commitConcurrently(CLIENTS);
+        long forces = Database.getLogFile().getCommitForces();
+        assertTrue(forces > 0);
+        assertTrue("" + forces + " forces", forces < CLIENTS * COMMITS / 2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Tests HashFile with small pages, so that a few thousand tuples split
+ * the file into many buckets.
+ */
+public class HashFileTest {
+    private static final int PAGE_SIZE = BufferPool.MIN_PAGE_SIZE;
+
+    private File file;
+    private HashFile hash;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("hash", ".dat");
+        file.deleteOnExit();
+        open();
+    }
+
+    @After public void tearDown() {
+        file.delete();
+    }
+
+    private void open() {
+        hash = new HashFile(file, 0, Utility.getTupleDesc(2), PAGE_SIZE);
+        Database.getCatalog().addTable(hash, "hash");
+    }
+
+    private Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    /** Insert count tuples with keys from 0 to count / 4, and return them. */
+    private ArrayList<Tuple> insert(Transaction t, int count, long seed) throws Exception {
+        Random rand = new Random(seed);
+        ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+        for (int i = 0; i < count; i++) {
+            Tuple tup = Utility.getHeapTuple(new int[] { rand.nextInt(count / 4), i });
+            hash.insertTuple(t.getId(), tup);
+            inserted.add(tup);
+        }
+        return inserted;
+    }
+
+    private ArrayList<Tuple> scan(DbFileIterator it) throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            tuples.add(it.next());
+        it.close();
+        return tuples;
+    }
+
+    /** @return the values of the second field of tuples, sorted */
+    private static ArrayList<Integer> values(Collection<Tuple> tuples) {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (Tuple t : tuples)
+            values.add(((IntField)t.getField(1)).getValue());
+        Collections.sort(values);
+        return values;
+    }
+
+    private HashMetaPage meta(Transaction t) throws Exception {
+        return (HashMetaPage)Database.getBufferPool().getPage(
+                t.getId(), new HashPageId(hash.getId(), HashPageId.META), Permissions.READ_ONLY);
+    }
+
+    /** @return the number of overflow pages ever added to the end of the file */
+    private static int appended(HashMetaPage meta) {
+        return meta.spares[HashMetaPage.group(meta.maxBucket)];
+    }
+
+    /** Inserts split buckets; every tuple is found by a lookup of its key. */
+    @Test public void insertSplitsBuckets() throws Exception {
+        Transaction t = begin();
+        ArrayList<Tuple> inserted = insert(t, 20000, 1);
+        assertEquals(values(inserted), values(scan(hash.iterator(t.getId()))));
+
+        // 20000 tuples of 8 bytes on 1 KB pages fill at least 157 pages
+        int buckets = meta(t).maxBucket + 1;
+        assertTrue(buckets > 100);
+        assertTrue(hash.numPages() < 2 * buckets);
+
+        HashMap<Integer, ArrayList<Tuple>> byKey = new HashMap<Integer, ArrayList<Tuple>>();
+        for (Tuple tup : inserted) {
+            int key = ((IntField)tup.getField(0)).getValue();
+            if (!byKey.containsKey(key))
+                byKey.put(key, new ArrayList<Tuple>());
+            byKey.get(key).add(tup);
+        }
+        for (int key = 0; key < 5000; key += 7) {
+            ArrayList<Tuple> expected = byKey.containsKey(key) ? byKey.get(key) : new ArrayList<Tuple>();
+            IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(key));
+            assertEquals(values(expected), values(scan(hash.indexIterator(t.getId(), ipred))));
+        }
+        t.commit();
+    }
+
+    /** Predicates other than equality read every bucket, but still find the matches. */
+    @Test public void rangeReadsEverything() throws Exception {
+        Transaction t = begin();
+        ArrayList<Tuple> inserted = insert(t, 2000, 2);
+        IndexPredicate ipred = new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(100));
+        ArrayList<Tuple> expected = new ArrayList<Tuple>();
+        for (Tuple tup : inserted) {
+            if (ipred.matches(tup.getField(0)))
+                expected.add(tup);
+        }
+        assertFalse(hash.supports(Predicate.Op.LESS_THAN));
+        assertEquals(values(expected), values(scan(hash.indexIterator(t.getId(), ipred))));
+        t.commit();
+    }
+
+    /** A key shared by many tuples grows a chain of overflow pages, which deletes free again. */
+    @Test public void overflowPagesAreFreedAndReused() throws Exception {
+        Transaction t = begin();
+        ArrayList<Tuple> same = new ArrayList<Tuple>();
+        for (int i = 0; i < 1000; i++) {
+            Tuple tup = Utility.getHeapTuple(new int[] { 42, i });
+            hash.insertTuple(t.getId(), tup);
+            same.add(tup);
+        }
+        int appended = appended(meta(t));
+        IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(42));
+        for (Tuple tup : scan(hash.indexIterator(t.getId(), ipred)))
+            hash.deleteTuple(t.getId(), tup);
+        assertTrue(scan(hash.iterator(t.getId())).isEmpty());
+        assertTrue(meta(t).free != 0);
+
+        for (Tuple tup : same)
+            hash.insertTuple(t.getId(), tup);
+        assertEquals(values(same), values(scan(hash.indexIterator(t.getId(), ipred))));
+        assertEquals(appended, appended(meta(t)));
+        t.commit();
+    }
+
+    @Test(expected = DbException.class)
+    public void deleteMissingTuple() throws Exception {
+        Transaction t = begin();
+        insert(t, 100, 3);
+        hash.deleteTuple(t.getId(), Utility.getHeapTuple(new int[] { 100, 100 }));
+    }
+
+    /** An abort puts back the file the last commit left, splits included. */
+    @Test public void abortRestoresFile() throws Exception {
+        Transaction t = begin();
+        ArrayList<Tuple> committed = insert(t, 2000, 4);
+        t.commit();
+
+        t = begin();
+        insert(t, 4000, 5);
+        for (Tuple tup : scan(hash.indexIterator(t.getId(),
+                new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(300)))))
+            hash.deleteTuple(t.getId(), tup);
+        t.abort();
+
+        t = begin();
+        assertEquals(values(committed), values(scan(hash.iterator(t.getId()))));
+        t.commit();
+    }
+
+    /** Pages a loser wrote before a crash are undone from the log. */
+    @Test public void recoveryUndoesStolenPages() throws Exception {
+        Transaction t = begin();
+        ArrayList<Tuple> committed = insert(t, 2000, 6);
+        t.commit();
+
+        t = begin();
+        insert(t, 4000, 7);
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        open();
+        Database.getLogFile().recover();
+
+        t = begin();
+        assertEquals(values(committed), values(scan(hash.iterator(t.getId()))));
+        t.commit();
+    }
+
+    /**
+     * Two writers adding to different buckets, splits and overflow pages
+     * included, do not wait for each other: each gets all its tuples in
+     * while the other is still running.
+     */
+    @Test public void twoWritersDoNotBlock() throws Exception {
+        Transaction t = begin();
+        ArrayList<Tuple> committed = insert(t, 2000, 8);
+        t.commit();
+
+        // keys whose hashes differ in the lowest bit, so that they stay in
+        // different buckets however the file grows
+        final int[] keys = { 0, 1 };
+        while (((HashFile.hash(new IntField(keys[0])) ^ HashFile.hash(new IntField(keys[1]))) & 1) == 0)
+            keys[1]++;
+
+        final int count = 1000;
+        final CyclicBarrier inserted = new CyclicBarrier(2);
+        final Exception[] errors = new Exception[2];
+        final ArrayList<ArrayList<Tuple>> tuples = new ArrayList<ArrayList<Tuple>>();
+        Thread[] writers = new Thread[2];
+        for (int n = 0; n < 2; n++) {
+            final int me = n;
+            tuples.add(new ArrayList<Tuple>());
+            writers[n] = new Thread() {
+                public void run() {
+                    try {
+                        Transaction w = begin();
+                        for (int i = 0; i < count; i++) {
+                            Tuple tup = Utility.getHeapTuple(new int[] { keys[me], 2000 + me * count + i });
+                            hash.insertTuple(w.getId(), tup);
+                            tuples.get(me).add(tup);
+                        }
+                        inserted.await(60, TimeUnit.SECONDS);
+                        w.commit();
+                    } catch (Exception e) {
+                        errors[me] = e;
+                    }
+                }
+            };
+            writers[n].start();
+        }
+        for (Thread w : writers) {
+            w.join(120 * 1000);
+            assertFalse(w.isAlive());
+        }
+        for (Exception e : errors)
+            assertNull(e);
+
+        committed.addAll(tuples.get(0));
+        committed.addAll(tuples.get(1));
+        t = begin();
+        assertEquals(values(committed), values(scan(hash.iterator(t.getId()))));
+        t.commit();
+    }
+
+    /** JUnit suite target */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashFileTest.class);
+    }
+}
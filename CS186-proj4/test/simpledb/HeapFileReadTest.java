@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -77,6 +78,113 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() on pages past the first one and
+     * past the end of the file
+     */
+    @Test
+    public void readPageRandomAccess() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 5, null, tuples);
+
+        // the first tuple on page 3 is tuple 3 * 504 of the input
+        HeapPage page = (HeapPage) big.readPage(new HeapPageId(big.getId(), 3));
+        Tuple first = page.iterator().next();
+        assertEquals(new IntField(tuples.get(3 * 504).get(0)), first.getField(0));
+        assertEquals(new IntField(tuples.get(3 * 504).get(1)), first.getField(1));
+
+        try {
+            big.readPage(new HeapPageId(big.getId(), 5));
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * Unit test for reading a HeapFile through a memory mapping, including
+     * pages appended after the file was first mapped
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        HeapFile mapped = new HeapFile(big.getFile(), td, true);
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        assertTrue(mapped.isMemoryMapped());
+
+        for (int i = 0; i < 3; i++) {
+            Iterator<Tuple> expected = ((HeapPage) big.readPage(new HeapPageId(big.getId(), i))).iterator();
+            Iterator<Tuple> actual = ((HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), i))).iterator();
+            while (expected.hasNext())
+                assertTrue(TestUtil.compareTuples(expected.next(), actual.next()));
+            assertFalse(actual.hasNext());
+        }
+
+        // the file is full, so this insert appends a fourth page
+        mapped.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        Database.getBufferPool().flushAllPages();
+        assertEquals(4, mapped.numPages());
+        HeapPage last = (HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), 3));
+        assertEquals(503, last.getNumEmptySlots());
+        assertEquals(new IntField(7), last.iterator().next().getField(0));
+    }
+
+    /**
+     * Unit test for a HeapFile with pages larger than the default
+     */
+    @Test
+    public void largePages() throws Exception {
+        int pageSize = 4 * BufferPool.PAGE_SIZE;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File temp = SystemTestUtil.createRandomHeapFileUnopened(2, 2500, 1000, null, tuples);
+        HeapFileEncoder.convert(tuples, temp, pageSize, 2);
+        HeapFile large = new HeapFile(temp, td, pageSize, false);
+        Database.getCatalog().addTable(large, SystemTestUtil.getUUID());
+
+        // 2016 tuples fit on a 16KB page
+        assertEquals(pageSize, large.getPageSize());
+        assertEquals(2, large.numPages());
+        assertEquals(0, ((HeapPage) large.readPage(new HeapPageId(large.getId(), 0))).getNumEmptySlots());
+
+        // a pool of four default pages holds just one of these pages
+        Database.resetBufferPoolBytes(4 * BufferPool.PAGE_SIZE);
+        SystemTestUtil.matchTuples(large, tuples);
+
+        large.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        Database.getBufferPool().flushAllPages();
+        assertEquals(2, large.numPages());
+        assertEquals(2016 - 2500 % 2016 - 1,
+                ((HeapPage) large.readPage(new HeapPageId(large.getId(), 1))).getNumEmptySlots());
+
+        try {
+            new HeapFile(temp, td, 5000, false);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * The indexes of a table with large pages have pages of the same size.
+     */
+    @Test
+    public void indexesOfLargePages() throws Exception {
+        int pageSize = 4 * BufferPool.PAGE_SIZE;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File temp = SystemTestUtil.createRandomHeapFileUnopened(2, 2500, 1000, null, tuples);
+        HeapFileEncoder.convert(tuples, temp, pageSize, 2);
+        HeapFile large = new HeapFile(temp, td, pageSize, false);
+        Database.getCatalog().addTable(large, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        File treeFile = File.createTempFile("tree", ".idx");
+        treeFile.deleteOnExit();
+        File hashFile = File.createTempFile("hash", ".idx");
+        hashFile.deleteOnExit();
+        Catalog.Index tree = BTreeFile.createIndex(tid, SystemTestUtil.getUUID(), large.getId(), 0, treeFile);
+        Catalog.Index hash = HashFile.createIndex(tid, SystemTestUtil.getUUID(), large.getId(), 0, hashFile);
+        assertEquals(pageSize, tree.getFile().getPageSize());
+        assertEquals(pageSize, hash.getFile().getPageSize());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -1,5 +1,8 @@
 package simpledb;
 
+import java.io.File;
+import java.util.ArrayList;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +46,84 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts go to the page the free space map points at, also after the
+     * map has been reloaded from disk.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        ArrayList<Tuple> first = new ArrayList<Tuple>();
+        for (int i = 0; i < 504 * 3; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (t.getRecordId().getPageId().pageNumber() == 1)
+                first.add(t);
+        }
+        assertEquals(3, empty.numPages());
+        assertTrue(new File(empty.getFile().getPath() + ".fsm").exists());
+
+        // make room on page 1 only
+        empty.deleteTuple(tid, first.get(7));
+        Database.getBufferPool().flushAllPages();
+
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        reopened.insertTuple(tid, t);
+        assertEquals(1, t.getRecordId().getPageId().pageNumber());
+
+        t = Utility.getHeapTuple(-2, 2);
+        reopened.insertTuple(tid, t);
+        assertEquals(3, t.getRecordId().getPageId().pageNumber());
+    }
+
+    /**
+     * A closed heap file, and its free space map, open again when the file
+     * is used.
+     */
+    @Test public void closedFileReopens() throws Exception {
+        for (int i = 0; i < 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().flushAllPages();
+        empty.close();
+        empty.close();
+
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(1, t.getRecordId().getPageId().pageNumber());
+        assertEquals(2, new File(empty.getFile().getPath() + ".fsm").length());
+    }
+
+    /**
+     * Unit test for HeapFile.writePages()
+     */
+    @Test public void writePages() throws Exception {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (int i = 0; i < 3; ++i) {
+            HeapPage page = new HeapPage(new HeapPageId(empty.getId(), i),
+                    HeapPage.createEmptyPageData());
+            page.insertTuple(Utility.getHeapTuple(i, 2));
+            pages.add(page);
+        }
+        empty.writePages(pages);
+        assertEquals(3, empty.numPages());
+
+        for (int i = 0; i < 3; ++i) {
+            HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), i));
+            assertEquals(503, page.getNumEmptySlots());
+            assertEquals(Utility.getHeapTuple(i, 2).getField(0),
+                    page.iterator().next().getField(0));
+        }
+
+        // a gap in the page numbers is rejected
+        pages.remove(1);
+        try {
+            empty.writePages(pages);
+            fail("expected IllegalArgumentException for non-consecutive pages");
+        } catch (IllegalArgumentException e) {
+            // explicitly ignored
+        }
+    }
+
     /**
      * JUnit suite target
      */
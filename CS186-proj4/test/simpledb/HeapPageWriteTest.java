@@ -126,6 +126,64 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Free-slot counting and slot lookup stay consistent across the whole
+     * header, including the partial last header word.
+     */
+    @Test public void sparsePage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        int slots = page.getNumEmptySlots();
+        for (int i = 0; i < slots; ++i)
+            page.insertTuple(Utility.getHeapTuple(i, 2));
+        assertEquals(0, page.getNumEmptySlots());
+
+        // keep every 63rd tuple, so used slots straddle header words
+        Iterator<Tuple> it = page.iterator();
+        LinkedList<Tuple> kept = new LinkedList<Tuple>();
+        LinkedList<Tuple> dropped = new LinkedList<Tuple>();
+        for (int i = 0; it.hasNext(); ++i)
+            (i % 63 == 62 ? kept : dropped).add(it.next());
+        for (Tuple t : dropped)
+            page.deleteTuple(t);
+        assertEquals(slots - kept.size(), page.getNumEmptySlots());
+        assertEquals(page.getNumEmptySlots(),
+                new HeapPage(pid, page.getPageData()).getNumEmptySlots());
+
+        it = page.iterator();
+        for (Tuple t : kept)
+            assertTrue(TestUtil.compareTuples(t, it.next()));
+        assertTrue(!it.hasNext());
+
+        // inserts fill the lowest free slot first
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        page.insertTuple(t);
+        assertEquals(0, t.getRecordId().tupleno());
+    }
+
+    /**
+     * A tuple read from a page keeps its values after its slot is deleted
+     * and reused, and the page bytes round-trip through the constructor.
+     */
+    @Test public void deletedTupleKeepsValues() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        Tuple copy = Utility.getHeapTuple(new int[] {
+                ((IntField) first.getField(0)).getValue(),
+                ((IntField) first.getField(1)).getValue() });
+
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(-1, 2));
+        assertTrue(TestUtil.compareTuples(copy, first));
+
+        HeapPage reread = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), reread.getNumEmptySlots());
+        Iterator<Tuple> expected = page.iterator();
+        Iterator<Tuple> actual = reread.iterator();
+        while (expected.hasNext())
+            assertTrue(TestUtil.compareTuples(expected.next(), actual.next()));
+        assertTrue(!actual.hasNext());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,276 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Tests that IndexJoin, probing a B+ tree or a hash index of the inner
+ * table, returns the same tuples as a nested-loop Join, and that the
+ * optimizer plans and costs index joins.
+ */
+public class IndexJoinTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> outerTuples;
+    private ArrayList<ArrayList<Integer>> innerTuples;
+    private HeapFile outer;
+    private HeapFile inner;
+    private Catalog.Index tree;
+    private Catalog.Index hash;
+    private File treeFile;
+    private File hashFile;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        outerTuples = new ArrayList<ArrayList<Integer>>();
+        innerTuples = new ArrayList<ArrayList<Integer>>();
+        outer = SystemTestUtil.createRandomHeapFile(2, 100, 200, null, outerTuples, "f");
+        inner = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, innerTuples, "g");
+        Database.getCatalog().addTable(outer, "o");
+        Database.getCatalog().addTable(inner, "i");
+        treeFile = File.createTempFile("tree", ".idx");
+        treeFile.deleteOnExit();
+        hashFile = File.createTempFile("hash", ".idx");
+        hashFile.deleteOnExit();
+
+        Transaction t = new Transaction();
+        t.start();
+        tree = BTreeFile.createIndex(t.getId(), "inner_tree", inner.getId(), 0, treeFile);
+        hash = HashFile.createIndex(t.getId(), "inner_hash", inner.getId(), 0, hashFile);
+        t.commit();
+    }
+
+    @After public void tearDown() {
+        treeFile.delete();
+        hashFile.delete();
+    }
+
+    /** @return the rest of the tuples join returns */
+    private ArrayList<ArrayList<Integer>> drain(DbIterator join) throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        while (join.hasNext())
+            tuples.add(SystemTestUtil.tupleToList(join.next()));
+        return tuples;
+    }
+
+    /** @return the tuples join returns */
+    private ArrayList<ArrayList<Integer>> run(DbIterator join) throws Exception {
+        join.open();
+        ArrayList<ArrayList<Integer>> tuples = drain(join);
+        join.close();
+        return tuples;
+    }
+
+    private static ArrayList<ArrayList<Integer>> sorted(ArrayList<ArrayList<Integer>> tuples) {
+        Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                for (int i = 0; i < a.size(); i++) {
+                    int c = a.get(i).compareTo(b.get(i));
+                    if (c != 0)
+                        return c;
+                }
+                return 0;
+            }
+        });
+        return tuples;
+    }
+
+    private void check(Catalog.Index index, Predicate.Op op) throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(1, op, 0);
+        ArrayList<ArrayList<Integer>> expected = run(new Join(p,
+                new SeqScan(tid, outer.getId(), "o"), new SeqScan(tid, inner.getId(), "i")));
+        IndexJoin join = new IndexJoin(tid, p, new SeqScan(tid, outer.getId(), "o"), index, "i");
+        assertEquals(4, join.getTupleDesc().numFields());
+        assertEquals(sorted(expected), sorted(run(join)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void equalityThroughTree() throws Exception {
+        check(tree, Predicate.Op.EQUALS);
+    }
+
+    @Test public void equalityThroughHash() throws Exception {
+        check(hash, Predicate.Op.EQUALS);
+    }
+
+    @Test public void rangeThroughTree() throws Exception {
+        check(tree, Predicate.Op.GREATER_THAN);
+        check(tree, Predicate.Op.GREATER_THAN_OR_EQ);
+    }
+
+    /** A hash index cannot answer range lookups. */
+    @Test(expected = IllegalArgumentException.class)
+    public void rangeThroughHash() throws Exception {
+        TransactionId tid = new TransactionId();
+        new IndexJoin(tid, new JoinPredicate(1, Predicate.Op.LESS_THAN, 0),
+                new SeqScan(tid, outer.getId(), "o"), hash, "i");
+    }
+
+    /** Rewinding starts the join over. */
+    @Test public void rewind() throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexJoin join = new IndexJoin(tid, new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, outer.getId(), "o"), hash, "i");
+        join.open();
+        ArrayList<ArrayList<Integer>> first = drain(join);
+        assertFalse(first.isEmpty());
+        join.rewind();
+        ArrayList<ArrayList<Integer>> second = drain(join);
+        join.close();
+        assertEquals(first, second);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** @return a plan of o join i on o.f1 = i.innerField, with a filter i.g1 < 500 */
+    private DbIterator plan(TransactionId tid, String innerField) throws Exception {
+        return plan(tid, innerField, Predicate.Op.EQUALS);
+    }
+
+    /** @return a plan of o join i on o.f1 op i.innerField, with a filter i.g1 < 500 */
+    private DbIterator plan(TransactionId tid, String innerField, Predicate.Op op) throws Exception {
+        HashMap<String,TableStats> stats = new HashMap<String,TableStats>();
+        stats.put("o", new TableStats(outer.getId(), TableStats.IOCOSTPERPAGE));
+        stats.put("i", new TableStats(inner.getId(), TableStats.IOCOSTPERPAGE));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(outer.getId(), "o");
+        lp.addScan(inner.getId(), "i");
+        lp.addJoin("o.f1", "i." + innerField, op);
+        lp.addFilter("i.g1", Predicate.Op.LESS_THAN, "500");
+        lp.addProjectField("o.f0", null);
+        lp.addProjectField("i.g1", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    /** @return the first IndexJoin in the plan, or null if it has none */
+    private static IndexJoin findIndexJoin(DbIterator plan) {
+        if (plan instanceof IndexJoin)
+            return (IndexJoin) plan;
+        if (!(plan instanceof Operator))
+            return null;
+        for (DbIterator child : ((Operator) plan).getChildren()) {
+            IndexJoin j = findIndexJoin(child);
+            if (j != null)
+                return j;
+        }
+        return null;
+    }
+
+    /**
+     * The optimizer probes the small outer table's matches in the index of
+     * the large inner one, and still applies the filter of the inner table.
+     */
+    @Test public void planUsesIndexJoin() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, "g0");
+        IndexJoin join = findIndexJoin(plan);
+        assertNotNull(join);
+        assertEquals("i", join.getInnerAlias());
+        assertEquals(0, join.getIndex().getField());
+        assertTrue(new QueryPlanVisualizer().getQueryPlanTree(plan)
+                .contains(QueryPlanVisualizer.INDEX_JOIN));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> o : outerTuples) {
+            for (ArrayList<Integer> i : innerTuples) {
+                if (o.get(1).equals(i.get(0)) && i.get(1) < 500)
+                    expected.add(new ArrayList<Integer>(Arrays.asList(o.get(0), i.get(1))));
+            }
+        }
+        assertFalse(expected.isEmpty());
+        assertEquals(sorted(expected), sorted(run(plan)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A snapshot cannot read index pages, so its joins are nested-loop joins. */
+    @Test public void snapshotUsesJoin() throws Exception {
+        Transaction t = new Transaction();
+        t.startSnapshot();
+        DbIterator plan = plan(t.getId(), "g0");
+        assertNull(findIndexJoin(plan));
+        assertFalse(run(plan).isEmpty());
+        t.commit();
+    }
+
+    /** A join on a field without an index is a nested-loop join. */
+    @Test public void planWithoutIndexUsesJoin() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertNull(findIndexJoin(plan(tid, "g1")));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A range join matches so much of the inner table that rescanning it is
+     * cheaper than probing its index, so the plan keeps the nested-loop join.
+     */
+    @Test public void rangePlanUsesJoin() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, "g0", Predicate.Op.GREATER_THAN);
+        assertNull(findIndexJoin(plan));
+
+        int expected = 0;
+        for (ArrayList<Integer> o : outerTuples) {
+            for (ArrayList<Integer> i : innerTuples) {
+                if (o.get(1) > i.get(0) && i.get(1) < 500)
+                    expected++;
+            }
+        }
+        assertEquals(expected, run(plan).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Probing the index of the inner table costs less than rescanning it. */
+    @Test public void indexJoinCost() throws Exception {
+        Map<String,TableStats> stats = TableStats.getStatsMap();
+        TableStats o = new TableStats(outer.getId(), TableStats.IOCOSTPERPAGE);
+        TableStats i = new TableStats(inner.getId(), TableStats.IOCOSTPERPAGE);
+        stats.put("o", o);
+        stats.put("i", i);
+        try {
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(outer.getId(), "o");
+            lp.addScan(inner.getId(), "i");
+            JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+            LogicalJoinNode j = new LogicalJoinNode("o", "i", "f1", "g0", Predicate.Op.EQUALS);
+
+            int card1 = o.estimateTableCardinality(1.0);
+            int card2 = i.estimateTableCardinality(1.0);
+            double cost1 = o.estimateScanCost();
+            double cost2 = i.estimateScanCost();
+            double nestedLoop = cost1 + card1 * cost2 + card1 * card2;
+            assertTrue(jo.estimateJoinCost(j, card1, card2, cost1, cost2) < nestedLoop / 2);
+
+            // a snapshot joins with nested loops
+            Transaction t = new Transaction();
+            t.startSnapshot();
+            JoinOptimizer snapshot = new JoinOptimizer(lp, new Vector<LogicalJoinNode>(), t.getId());
+            assertEquals(nestedLoop, snapshot.estimateJoinCost(j, card1, card2, cost1, cost2), 0.001);
+            t.commit();
+
+            // a range join returns too many tuples per probe to use the index
+            LogicalJoinNode range = new LogicalJoinNode("o", "i", "f1", "g0", Predicate.Op.GREATER_THAN);
+            assertEquals(nestedLoop, jo.estimateJoinCost(range, card1, card2, cost1, cost2), 0.001);
+
+            // the outer table has no index, so the swapped join is a nested-loop join
+            assertEquals(cost2 + card2 * cost1 + card2 * card1,
+                    jo.estimateJoinCost(j.swapInnerOuter(), card2, card1, cost2, cost1), 0.001);
+        } finally {
+            stats.remove("o");
+            stats.remove("i");
+        }
+    }
+
+    /** JUnit suite target */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexJoinTest.class);
+    }
+}
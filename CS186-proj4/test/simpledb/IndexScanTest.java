@@ -0,0 +1,274 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Tests IndexScan over a B+ tree index of a heap table, index maintenance
+ * by the BufferPool, CREATE INDEX, and the choice of access path.
+ */
+public class IndexScanTest extends SimpleDbTestBase {
+    private static final int ROWS = 20000;
+    private static final int MAX_VALUE = 5000;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile table;
+    private File indexFile;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "f");
+        Database.getCatalog().addTable(table, "t");
+        indexFile = File.createTempFile("index", ".idx");
+        indexFile.deleteOnExit();
+    }
+
+    @After public void tearDown() {
+        indexFile.delete();
+    }
+
+    private Catalog.Index createIndex() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Catalog.Index index = BTreeFile.createIndex(t.getId(), "t_f0", table.getId(), 0, indexFile);
+        t.commit();
+        return index;
+    }
+
+    /** @return the tuples of the table whose first field satisfies ipred */
+    private ArrayList<ArrayList<Integer>> matching(IndexPredicate ipred) {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tup : tuples) {
+            if (ipred.matches(new IntField(tup.get(0))))
+                expected.add(tup);
+        }
+        return expected;
+    }
+
+    /** An index scan returns the same tuples as filtering the table. */
+    @Test public void scanMatchesFilter() throws Exception {
+        Catalog.Index index = createIndex();
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : Predicate.Op.values()) {
+            if (op == Predicate.Op.LIKE || op == Predicate.Op.NOT_EQUALS)
+                continue;
+            IndexPredicate ipred = new IndexPredicate(op, new IntField(MAX_VALUE / 2));
+            SystemTestUtil.matchTuples(new IndexScan(tid, index, "t", ipred), matching(ipred));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A covering scan returns only the indexed field. */
+    @Test public void coveringScan() throws Exception {
+        Catalog.Index index = createIndex();
+        TransactionId tid = new TransactionId();
+        IndexPredicate ipred = new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 4));
+        IndexScan scan = new IndexScan(tid, index, "t", ipred, true);
+        assertEquals(1, scan.getTupleDesc().numFields());
+        assertEquals("f0", scan.getTupleDesc().getFieldName(0));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tup : matching(ipred))
+            expected.add(new ArrayList<Integer>(tup.subList(0, 1)));
+        SystemTestUtil.matchTuples(scan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Tuples inserted and deleted through the BufferPool are added to and removed from the index. */
+    @Test public void indexFollowsInsertsAndDeletes() throws Exception {
+        Catalog.Index index = createIndex();
+        IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(MAX_VALUE));
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            Database.getBufferPool().insertTuple(tid, table.getId(),
+                    Utility.getHeapTuple(new int[] { MAX_VALUE, i }));
+            expected.add(new ArrayList<Integer>(Arrays.asList(MAX_VALUE, i)));
+        }
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, "t", ipred), expected);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        IndexScan scan = new IndexScan(tid, index, "t", ipred);
+        scan.open();
+        Tuple victim = scan.next();
+        scan.close();
+        expected.remove(SystemTestUtil.tupleToList(victim));
+        Database.getBufferPool().deleteTuple(tid, victim);
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, "t", ipred), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * CREATE INDEX loads the tree a page at a time, and logs each page
+     * once instead of a page image for each entry.
+     */
+    @Test public void createIndexLoadsPages() throws Exception {
+        long before = Database.getLogFile().endLsn();
+        Catalog.Index index = createIndex();
+        int pages = ((BTreeFile)index.getFile()).numPages();
+        // full leaves, an internal page and the root pointer
+        int leaves = ROWS / BTreeLeafPage.maxTuples(BufferPool.PAGE_SIZE, index.getFile().getTupleDesc()) + 1;
+        assertTrue(pages <= leaves + 2);
+        assertTrue(Database.getLogFile().endLsn() - before < pages * (BufferPool.PAGE_SIZE + 256));
+
+        TransactionId tid = new TransactionId();
+        IndexPredicate ipred = new IndexPredicate(Predicate.Op.GREATER_THAN, new IntField(MAX_VALUE / 2));
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, "t", ipred), matching(ipred));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** An index is only published when its build commits; an aborted build leaves nothing behind. */
+    @Test public void abortedCreateIndex() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Catalog.Index index = BTreeFile.createIndex(t.getId(), "t_f0", table.getId(), 0, indexFile);
+        assertTrue(Database.getCatalog().getIndexes(table.getId()).isEmpty());
+        assertEquals(1, Database.getCatalog().getIndexes(table.getId(), t.getId()).size());
+        t.abort();
+
+        assertTrue(Database.getCatalog().getIndexes(table.getId()).isEmpty());
+        assertFalse(Database.getCatalog().hasTable(index.getFile().getId()));
+        assertFalse(indexFile.exists());
+        DbIterator child = plan(Predicate.Op.EQUALS, "7", "f1").getChildren()[0];
+        assertTrue(child instanceof Filter);
+
+        // the name can be used again
+        createIndex();
+        assertEquals(1, Database.getCatalog().getIndexes(table.getId()).size());
+        child = plan(Predicate.Op.EQUALS, "7", "f1").getChildren()[0];
+        assertTrue(child instanceof IndexScan);
+    }
+
+    /** An aborted hash index build is dropped like a B+ tree's. */
+    @Test public void abortedCreateHashIndex() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        HashFile.createIndex(t.getId(), "t_f0", table.getId(), 0, indexFile);
+        t.abort();
+        assertTrue(Database.getCatalog().getIndexes(table.getId()).isEmpty());
+        assertFalse(indexFile.exists());
+        assertTrue(plan(Predicate.Op.EQUALS, "7", "f1").getChildren()[0] instanceof Filter);
+    }
+
+    /** CREATE INDEX builds an index of the table and registers it in the catalog. */
+    @Test public void createIndexStatement() throws Exception {
+        File f = new File(table.getFile().getAbsoluteFile().getParentFile(), "t_f1.idx");
+        f.deleteOnExit();
+        try {
+            new Parser().processNextStatement("create index t_f1 on t (f1);");
+            List<Catalog.Index> indexes = Database.getCatalog().getIndexes(table.getId());
+            assertEquals(1, indexes.size());
+            assertEquals(1, indexes.get(0).getField());
+            assertTrue(f.exists());
+
+            TransactionId tid = new TransactionId();
+            IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(tuples.get(0).get(1)));
+            ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+            for (ArrayList<Integer> tup : tuples) {
+                if (ipred.matches(new IntField(tup.get(1))))
+                    expected.add(tup);
+            }
+            SystemTestUtil.matchTuples(new IndexScan(tid, indexes.get(0), "t", ipred), expected);
+            Database.getBufferPool().transactionComplete(tid);
+        } finally {
+            f.delete();
+        }
+    }
+
+    /** CREATE INDEX ... USING HASH builds a hash index, which only answers equality. */
+    @Test public void createHashIndexStatement() throws Exception {
+        File f = new File(table.getFile().getAbsoluteFile().getParentFile(), "t_f0.idx");
+        f.deleteOnExit();
+        try {
+            new Parser().processNextStatement("create index t_f0 on t using hash (f0);");
+            List<Catalog.Index> indexes = Database.getCatalog().getIndexes(table.getId());
+            assertEquals(1, indexes.size());
+            assertTrue(indexes.get(0).getFile() instanceof HashFile);
+
+            DbIterator child = plan(Predicate.Op.EQUALS, "7", "f1").getChildren()[0];
+            assertTrue(child instanceof IndexScan);
+            child = plan(Predicate.Op.LESS_THAN, "7", "f1").getChildren()[0];
+            assertTrue(child instanceof Filter);
+
+            TransactionId tid = new TransactionId();
+            IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(7));
+            SystemTestUtil.matchTuples(new IndexScan(tid, indexes.get(0), "t", ipred), matching(ipred));
+            Database.getBufferPool().transactionComplete(tid);
+        } finally {
+            f.delete();
+        }
+    }
+
+    private Operator plan(Predicate.Op op, String constant, String field) throws Exception {
+        return plan(new TransactionId(), op, constant, field);
+    }
+
+    private Operator plan(TransactionId tid, Predicate.Op op, String constant, String field)
+            throws Exception {
+        HashMap<String,TableStats> stats = new HashMap<String,TableStats>();
+        stats.put("t", new TableStats(table.getId(), TableStats.IOCOSTPERPAGE));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.f0", op, constant);
+        lp.addProjectField("t." + field, null);
+        return (Operator)lp.physicalPlan(tid, stats, false);
+    }
+
+    /** The optimizer reads a selective filter through the index, and an unselective one with a SeqScan. */
+    @Test public void planChoosesAccessPath() throws Exception {
+        createIndex();
+
+        DbIterator child = plan(Predicate.Op.EQUALS, "7", "f1").getChildren()[0];
+        assertTrue(child instanceof IndexScan);
+        assertFalse(((IndexScan)child).isCovering());
+
+        child = plan(Predicate.Op.EQUALS, "7", "f0").getChildren()[0];
+        assertTrue(child instanceof IndexScan);
+        assertTrue(((IndexScan)child).isCovering());
+
+        child = plan(Predicate.Op.GREATER_THAN, "0", "f1").getChildren()[0];
+        assertTrue(child instanceof Filter);
+        assertTrue(((Operator)child).getChildren()[0] instanceof SeqScan);
+
+        DbIterator p = plan(Predicate.Op.EQUALS, "7", "f1");
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tup : matching(new IndexPredicate(Predicate.Op.EQUALS, new IntField(7))))
+            expected.add(new ArrayList<Integer>(tup.subList(1, 2)));
+        SystemTestUtil.matchTuples(p, expected);
+    }
+
+    /** A snapshot can only read heap pages, so its selective filters still scan the table. */
+    @Test public void snapshotScansTable() throws Exception {
+        createIndex();
+        Transaction t = new Transaction();
+        t.startSnapshot();
+        Operator p = plan(t.getId(), Predicate.Op.EQUALS, "7", "f1");
+        DbIterator child = p.getChildren()[0];
+        assertTrue(child instanceof Filter);
+        assertTrue(((Operator)child).getChildren()[0] instanceof SeqScan);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tup : matching(new IndexPredicate(Predicate.Op.EQUALS, new IntField(7))))
+            expected.add(new ArrayList<Integer>(tup.subList(1, 2)));
+        SystemTestUtil.matchTuples(p, expected);
+        t.commit();
+    }
+
+    /** JUnit suite target */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexScanTest.class);
+    }
+}
@@ -0,0 +1,283 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LockingTest extends SimpleDbTestBase {
+    private static final int TIMEOUT = 100;
+    private static final int DEADLOCK_TIMEOUT = 5000;
+
+    private PageId p0, p1;
+    private TransactionId tid1, tid2;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        p0 = new HeapPageId(hf.getId(), 0);
+        p1 = new HeapPageId(hf.getId(), 1);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Start a thread that asks for a lock, and check after a while whether
+     * it got it.
+     */
+    private TestUtil.LockGrabber grabLock(TransactionId tid, PageId pid, Permissions perm,
+                                          boolean expected) throws Exception {
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+        t.start();
+        Thread.sleep(TIMEOUT);
+        assertEquals(expected, t.acquired());
+        assertNull(t.getError());
+        return t;
+    }
+
+    @Test public void acquireReadLocksOnSamePage() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        grabLock(tid2, p0, Permissions.READ_ONLY, true);
+        assertTrue(bp.holdsLock(tid1, p0));
+        assertTrue(bp.holdsLock(tid2, p0));
+    }
+
+    @Test public void acquireReadWriteLocksOnSamePage() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t = grabLock(tid2, p0, Permissions.READ_ONLY, false);
+
+        bp.transactionComplete(tid1);
+        t.join(TIMEOUT);
+        assertTrue(t.acquired());
+        assertFalse(bp.holdsLock(tid1, p0));
+    }
+
+    @Test public void acquireWriteReadLocksOnSamePage() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        grabLock(tid2, p0, Permissions.READ_WRITE, false);
+    }
+
+    @Test public void acquireLocksOnDifferentPages() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        grabLock(tid2, p1, Permissions.READ_WRITE, true);
+    }
+
+    @Test public void lockUpgrade() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        grabLock(tid2, p0, Permissions.READ_ONLY, false);
+    }
+
+    @Test public void releasePage() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.releasePage(tid1, p0);
+        assertFalse(bp.holdsLock(tid1, p0));
+        grabLock(tid2, p0, Permissions.READ_WRITE, true);
+    }
+
+    /**
+     * Two transactions that each wait for a lock the other one holds must
+     * not both wait forever: one of them is aborted, and the other one then
+     * gets its lock.
+     */
+    @Test public void deadlockIsBroken() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t1 = new TestUtil.LockGrabber(tid2, p1, Permissions.READ_WRITE);
+        t1.start();
+        t1.join(DEADLOCK_TIMEOUT);
+        assertTrue(t1.acquired());
+
+        TestUtil.LockGrabber t2 = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+        t2.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(t2.acquired());
+
+        try {
+            bp.getPage(tid1, p1, Permissions.READ_WRITE);
+            fail("expected the transaction closing the cycle to abort");
+        } catch (TransactionAbortedException e) {
+            // explicitly ignored
+        }
+        bp.transactionComplete(tid1, false);
+        t2.join(DEADLOCK_TIMEOUT);
+        assertTrue(t2.acquired());
+    }
+
+    /**
+     * Upgrading a shared lock that another transaction also wants to upgrade
+     * is a deadlock too.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid2, p0, Permissions.READ_ONLY);
+
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+        t.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(t.acquired());
+
+        try {
+            bp.getPage(tid1, p0, Permissions.READ_WRITE);
+            fail("expected the second upgrade to abort");
+        } catch (TransactionAbortedException e) {
+            // explicitly ignored
+        }
+        bp.transactionComplete(tid1, false);
+        t.join(DEADLOCK_TIMEOUT);
+        assertTrue(t.acquired());
+    }
+
+    /** Inserts a tuple into a table on behalf of a transaction. */
+    private static class Inserter extends Thread {
+        final TransactionId tid;
+        final int tableId;
+        final Tuple tuple;
+        volatile boolean done;
+        volatile Exception error;
+
+        Inserter(TransactionId tid, int tableId, Tuple tuple) {
+            this.tid = tid;
+            this.tableId = tableId;
+            this.tuple = tuple;
+        }
+
+        public void run() {
+            try {
+                Database.getBufferPool().insertTuple(tid, tableId, tuple);
+                done = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    private Tuple insert(TransactionId tid, HeapFile hf, int value) throws Exception {
+        Inserter t = new Inserter(tid, hf.getId(), Utility.getHeapTuple(new int[] { value, value }));
+        t.start();
+        t.join(DEADLOCK_TIMEOUT);
+        assertNull(t.error);
+        assertTrue(t.done);
+        return t.tuple;
+    }
+
+    /**
+     * Writers of different records of the same page do not wait for each
+     * other, but a reader of the page waits for both.
+     */
+    @Test public void recordLocksOnSamePage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Tuple t1 = insert(tid1, hf, 1);
+        Tuple t2 = insert(tid2, hf, 2);
+        assertEquals(t1.getRecordId().getPageId(), t2.getRecordId().getPageId());
+        assertTrue(bp.holdsLock(tid1, t1.getRecordId().getPageId()));
+        assertTrue(bp.holdsLock(tid2, t2.getRecordId().getPageId()));
+
+        TransactionId reader = new TransactionId();
+        TestUtil.LockGrabber t = grabLock(reader, t1.getRecordId().getPageId(), Permissions.READ_ONLY, false);
+        bp.transactionComplete(tid1);
+        Thread.sleep(TIMEOUT);
+        assertFalse(t.acquired());
+        bp.transactionComplete(tid2);
+        t.join(TIMEOUT);
+        assertTrue(t.acquired());
+    }
+
+    /**
+     * An abort undoes the record changes of its transaction and leaves those
+     * of other transactions on the same page alone; a slot emptied by a
+     * running transaction is not reused.
+     */
+    @Test public void abortUndoesOnlyOwnRecords() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        TransactionId setup = new TransactionId();
+        Tuple victim = ((HeapPage) bp.getPage(setup, pid, Permissions.READ_ONLY)).iterator().next();
+        int victimSlot = victim.getRecordId().tupleno();
+        bp.transactionComplete(setup);
+
+        bp.deleteTuple(tid1, victim);
+        insert(tid1, hf, 1);
+        Tuple t2 = insert(tid2, hf, 2);
+        assertTrue(t2.getRecordId().tupleno() != victimSlot);
+
+        bp.transactionComplete(tid1, false);
+        bp.transactionComplete(tid2, true);
+
+        ArrayList<Integer> firsts = new ArrayList<Integer>();
+        TransactionId check = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(check, pid, Permissions.READ_ONLY);
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            firsts.add(((IntField) it.next().getField(0)).getValue());
+        assertEquals(11, firsts.size());
+        assertTrue(firsts.contains(2));
+        assertTrue(page.isSlotUsed(victimSlot));
+        assertTrue(TestUtil.compareTuples(victim, page.iterator().next()));
+        bp.transactionComplete(check);
+    }
+
+    /**
+     * Many transactions appending to the same table at once all get their
+     * tuples in, and each holds only its own records.
+     */
+    @Test public void concurrentAppends() throws Exception {
+        final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        final int threads = 8, rows = 200;
+        Thread[] writers = new Thread[threads];
+        final Exception[] errors = new Exception[threads];
+        for (int n = 0; n < threads; n++) {
+            final int me = n;
+            writers[n] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < rows; i++) {
+                            TransactionId tid = new TransactionId();
+                            Database.getBufferPool().insertTuple(tid, hf.getId(),
+                                Utility.getHeapTuple(new int[] { me, i }));
+                            Database.getBufferPool().transactionComplete(tid);
+                        }
+                    } catch (Exception e) {
+                        errors[me] = e;
+                    }
+                }
+            };
+            writers[n].start();
+        }
+        for (Thread t : writers)
+            t.join();
+        for (Exception e : errors)
+            assertNull(e);
+
+        TransactionId check = new TransactionId();
+        SeqScan scan = new SeqScan(check, hf.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        bp.transactionComplete(check);
+        assertEquals(threads * rows, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockingTest.class);
+    }
+}
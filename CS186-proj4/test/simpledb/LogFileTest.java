@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private LogFile log;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        log = Database.getLogFile();
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(Database.LOG_SEGMENT_SIZE);
+    }
+
+    /**
+     * Records stay in the log buffer until something needs them on disk; a
+     * page is only written once the log is on disk up to the page's LSN.
+     */
+    @Test public void pageIsWrittenAfterItsLogRecords() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        assertTrue(log.endLsn() > log.flushedLsn());
+
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 1, 1 }));
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(0, page.getLsn());
+        Database.getBufferPool().flushAllPages();
+        assertTrue(page.getLsn() > 0);
+        assertTrue(log.flushedLsn() >= page.getLsn());
+        t.commit();
+        assertEquals(log.endLsn(), log.flushedLsn());
+    }
+
+    private long logInsert(Transaction t, int value) throws Exception {
+        long before = log.endLsn();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { value, value }));
+        Database.getBufferPool().flushAllPages();
+        return log.endLsn() - before;
+    }
+
+    /**
+     * A page is logged in full the first time after a checkpoint, and by
+     * the slots that changed after that.
+     */
+    @Test public void slotRecordsAfterFirstImage() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        assertTrue(logInsert(t, 1) > 2 * BufferPool.PAGE_SIZE);
+        long slotRecord = logInsert(t, 2);
+        assertTrue(slotRecord > 0);
+        assertTrue(slotRecord < 100);
+        log.logCheckpoint();
+        assertTrue(logInsert(t, 3) > 2 * BufferPool.PAGE_SIZE);
+        t.commit();
+    }
+
+    /** Truncating the log at a checkpoint does not make LSNs go back. */
+    @Test public void lsnsGrowAcrossTruncation() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+        long before = log.endLsn();
+        log.logCheckpoint();
+        assertTrue(log.endLsn() >= before);
+        t = new Transaction();
+        t.start();
+        t.commit();
+        assertTrue(log.flushedLsn() > before);
+    }
+
+    /**
+     * A checkpoint drops the segments before it once no running
+     * transaction needs them, without writing the dirty pages.
+     */
+    @Test public void checkpointDropsOldSegments() throws Exception {
+        System.setProperty(Database.LOG_SEGMENT_SIZE, "4096");
+        Database.reset();
+        hf = Utility.openHeapFile(2, hf.getFile());
+        log = Database.getLogFile();
+
+        for (int i = 0; i < 5; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            logInsert(t, i);
+            t.commit();
+        }
+        int segments = log.segmentCount();
+        assertTrue(segments > 2);
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 5, 5 }));
+        log.logCheckpoint();
+        assertTrue(log.segmentCount() < segments);
+        assertNotNull(Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY).isDirty());
+        t.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,194 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SnapshotTest extends SimpleDbTestBase {
+    private static final int ROWS = 10;
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        return count;
+    }
+
+    private TransactionId snapshot() {
+        TransactionId tid = new TransactionId();
+        bp.beginSnapshot(tid);
+        return tid;
+    }
+
+    /**
+     * A snapshot sees neither changes that are uncommitted when it reads
+     * nor changes that commit after it began.
+     */
+    @Test public void snapshotSeesCommittedState() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(new int[] { 1, 1 }));
+        TransactionId s1 = snapshot();
+        assertEquals(ROWS, count(s1));
+
+        bp.transactionComplete(writer);
+        assertEquals(ROWS, count(s1));
+        TransactionId s2 = snapshot();
+        assertEquals(ROWS + 1, count(s2));
+
+        TransactionId deleter = new TransactionId();
+        Tuple victim = ((HeapPage) bp.getPage(deleter, new HeapPageId(hf.getId(), 0),
+                                              Permissions.READ_ONLY)).iterator().next();
+        bp.deleteTuple(deleter, victim);
+        assertEquals(ROWS, count(s1));
+        assertEquals(ROWS + 1, count(s2));
+        bp.transactionComplete(deleter);
+        assertEquals(ROWS + 1, count(s2));
+        assertEquals(ROWS, count(snapshot()));
+
+        bp.transactionComplete(s1);
+        bp.transactionComplete(s2);
+    }
+
+    /**
+     * A snapshot takes no locks, so a writer can lock a page exclusively
+     * while the snapshot reads it, and the snapshot still sees the page as
+     * it was.
+     */
+    @Test public void snapshotDoesNotBlockWriters() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        TransactionId s = snapshot();
+        HeapPage before = (HeapPage) bp.getPage(s, pid, Permissions.READ_ONLY);
+        assertFalse(bp.holdsLock(s, pid));
+
+        TransactionId writer = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(writer, pid, Permissions.READ_WRITE);
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(true, writer);
+        bp.transactionComplete(writer);
+
+        HeapPage after = (HeapPage) bp.getPage(s, pid, Permissions.READ_ONLY);
+        assertEquals(before.getNumEmptySlots(), after.getNumEmptySlots());
+        assertEquals(page.getNumEmptySlots(), after.getNumEmptySlots() + 1);
+        bp.transactionComplete(s);
+    }
+
+    /**
+     * An aborted change is never visible to a snapshot.
+     */
+    @Test public void abortedChangesAreInvisible() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(new int[] { 1, 1 }));
+        TransactionId s = snapshot();
+        bp.transactionComplete(writer, false);
+        assertEquals(ROWS, count(s));
+        assertEquals(ROWS, count(snapshot()));
+    }
+
+    /**
+     * A snapshot copies pages without their latch, so it does not wait for a
+     * writer that holds the latch but is not changing the page.
+     */
+    @Test public void snapshotReadsWithoutLatch() throws Exception {
+        final HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        final TransactionId s = snapshot();
+        final AtomicReference<Page> read = new AtomicReference<Page>();
+        TransactionId writer = new TransactionId();
+        bp.pinPage(writer, pid, Permissions.READ_WRITE);
+        bp.latchPage(pid, Permissions.READ_WRITE);
+        try {
+            Thread reader = new Thread() {
+                public void run() {
+                    try {
+                        read.set(bp.getPage(s, pid, Permissions.READ_ONLY));
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            reader.start();
+            reader.join(5000);
+            assertNotNull(read.get());
+            assertTrue(bp.getOptimisticReads() > 0);
+        } finally {
+            bp.unlatchPage(pid, Permissions.READ_WRITE);
+            bp.unpinPage(pid);
+        }
+        bp.transactionComplete(writer);
+        bp.transactionComplete(s);
+    }
+
+    /**
+     * Snapshots taken while writers keep committing always see whole
+     * transactions: every writer inserts two tuples, so the count is even.
+     */
+    @Test public void snapshotsStayConsistentUnderWrites() throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; !stop.get() && i < 500; i++) {
+                        TransactionId tid = new TransactionId();
+                        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, 0 }));
+                        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, 1 }));
+                        bp.transactionComplete(tid);
+                    }
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            }
+        };
+        writer.start();
+        try {
+            for (int n = 0; n < 50; n++) {
+                TransactionId s = snapshot();
+                int first = count(s);
+                assertEquals(0, first % 2);
+                assertEquals(first, count(s));
+                bp.transactionComplete(s);
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+        assertNull(error.get());
+    }
+
+    @Test(expected=DbException.class) public void snapshotIsReadOnly() throws Exception {
+        TransactionId s = snapshot();
+        bp.getPage(s, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
@@ -0,0 +1,214 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Crashes the database at various points by throwing away everything but
+ * the files and the log, and checks that recovery installs exactly the
+ * committed changes.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+    private static final int ROWS = 10;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples);
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(Database.LOG_SEGMENT_SIZE);
+    }
+
+    private Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    private void insert(Transaction t, int value) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[] { value, value }));
+    }
+
+    private static ArrayList<Integer> row(int value) {
+        return new ArrayList<Integer>(Arrays.asList(value, value));
+    }
+
+    /** Lose the buffer pool and the running transactions, then recover. */
+    private void crashAndRecover() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(COLUMNS, hf.getFile());
+        Database.getLogFile().recover();
+    }
+
+    @Test public void committedChangesSurvive() throws Exception {
+        Transaction t = begin();
+        insert(t, 1);
+        t.commit();
+
+        crashAndRecover();
+        tuples.add(row(1));
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /** A page written while its writer was running is undone from the log. */
+    @Test public void stolenUncommittedChangesAreUndone() throws Exception {
+        Transaction t = begin();
+        insert(t, 1);
+        Database.getBufferPool().flushAllPages();
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A transaction that commits flushes a page that also holds another
+     * transaction's uncommitted record; recovery keeps only the committed
+     * one.
+     */
+    @Test public void writersOfTheSamePageAreKeptApart() throws Exception {
+        Transaction loser = begin();
+        insert(loser, 1);
+        Transaction winner = begin();
+        insert(winner, 2);
+        winner.commit();
+
+        crashAndRecover();
+        tuples.add(row(2));
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * An abort whose undo has not reached the disk yet is redone from the
+     * log.
+     */
+    @Test public void abortBeforeUndoIsWritten() throws Exception {
+        Transaction t = begin();
+        insert(t, 1);
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A checkpoint right after an ABORT record no longer covers the aborted
+     * transaction, so its stolen change must be undone on disk by then.
+     */
+    @Test public void checkpointAfterAbort() throws Exception {
+        Transaction t = begin();
+        insert(t, 1);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logAbort(t.getId());
+        Database.getLogFile().logCheckpoint();
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Transactions running at a checkpoint are undone from records written
+     * before it; those that commit after it are kept.
+     */
+    @Test public void recoverFromCheckpoint() throws Exception {
+        Transaction loser = begin();
+        insert(loser, 1);
+        Database.getLogFile().logCheckpoint();
+        Transaction winner = begin();
+        insert(winner, 2);
+        winner.commit();
+        Database.getBufferPool().flushAllPages();
+
+        crashAndRecover();
+        tuples.add(row(2));
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Checkpoints keep the log segments that a transaction running at them
+     * needs to be undone, and drop the rest.
+     */
+    @Test public void truncationKeepsRunningTransactions() throws Exception {
+        System.setProperty(Database.LOG_SEGMENT_SIZE, "4096");
+        Database.reset();
+        hf = Utility.openHeapFile(COLUMNS, hf.getFile());
+
+        Transaction loser = begin();
+        insert(loser, 1);
+        Database.getBufferPool().flushAllPages();
+        for (int i = 0; i < 5; i++) {
+            Transaction winner = begin();
+            insert(winner, 10 + i);
+            Database.getBufferPool().flushAllPages();
+            winner.commit();
+            tuples.add(row(10 + i));
+            Database.getLogFile().logCheckpoint();
+        }
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /** Recovering twice, e.g. after a crash during recovery, changes nothing. */
+    @Test public void recoveryIsRepeatable() throws Exception {
+        Transaction winner = begin();
+        insert(winner, 2);
+        winner.commit();
+        Transaction loser = begin();
+        insert(loser, 1);
+        Database.getBufferPool().flushAllPages();
+
+        crashAndRecover();
+        crashAndRecover();
+        tuples.add(row(2));
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        // the database keeps working after recovery
+        Transaction t = begin();
+        insert(t, 3);
+        t.commit();
+        tuples.add(row(3));
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A page that was only partly written when the database crashed is
+     * rebuilt from the full image logged the first time it was written.
+     */
+    @Test public void tornPageIsRepaired() throws Exception {
+        Transaction t = begin();
+        insert(t, 1);
+        t.commit();
+
+        RandomAccessFile file = new RandomAccessFile(hf.getFile(), "rw");
+        byte[] garbage = new byte[BufferPool.PAGE_SIZE / 2];
+        Arrays.fill(garbage, (byte) 0x55);
+        file.write(garbage);
+        file.close();
+
+        crashAndRecover();
+        tuples.add(row(1));
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}